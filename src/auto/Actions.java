@@ -29,9 +29,9 @@ public class Actions {
     }
     
     static void pickup(GameUI gui, Predicate<Gob> filter, boolean pickAll) {
-	List<ITarget> targets = gui.ui.sess.glob.oc.stream()
+	Stream<Gob> gobs = pickAll ? gui.ui.sess.glob.oc.stream() : nearPlayer(gui, CFG.AUTO_PICK_RADIUS.get());
+	List<ITarget> targets = gobs
 	    .filter(filter)
-	    .filter(gob -> pickAll || PositionHelper.distanceToPlayer(gob) <= CFG.AUTO_PICK_RADIUS.get())
 	    .filter(g -> pickAll || BotUtil.isOnRadar(g))
 	    .sorted(PositionHelper.byDistanceToPlayer)
 	    .map(GobTarget::new)
@@ -48,10 +48,9 @@ public class Actions {
     }
     
     public static void openGate(GameUI gui) {
-	List<ITarget> targets = gui.ui.sess.glob.oc.stream()
+	List<ITarget> targets = nearPlayer(gui, 35)
 	    .filter(gobIs(GobTag.GATE))
 	    .filter(gob -> !gob.isVisitorGate())
-	    .filter(gob -> PositionHelper.distanceToPlayer(gob) <= 35)
 	    .sorted(PositionHelper.byDistanceToPlayer)
 	    .limit(1)
 	    .map(GobTarget::new)
@@ -144,10 +143,8 @@ public class Actions {
     }
     
     public static void selectFlower(GameUI gui, long gobid, String option) {
-	List<ITarget> targets = gui.ui.sess.glob.oc.stream()
-	    .filter(gob -> gob.id == gobid)
-	    .map(GobTarget::new)
-	    .collect(Collectors.toList());
+	Gob gob = gui.ui.sess.glob.oc.getgob(gobid);
+	List<ITarget> targets = (gob == null) ? Collections.emptyList() : Collections.singletonList(new GobTarget(gob));
 	
 	selectFlower(gui, option, targets);
     }
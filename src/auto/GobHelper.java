@@ -2,53 +2,49 @@ package auto;
 
 import haven.*;
 
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class GobHelper {
     static List<ITarget> getNearest(GameUI gui, String name, int limit, double distance) {
-	return getGobs(gui, limit, PositionHelper.byDistanceToPlayer, gobIs(name), gob -> PositionHelper.distanceToPlayer(gob) <= distance);
+	return getNearest(gui, limit, distance, gobIs(name));
     }
     
     static List<ITarget> getNearest(GameUI gui, int limit, double distance, GobTag... tags) {
-	return getGobs(gui, limit, PositionHelper.byDistanceToPlayer, gobIsAny(tags), gob -> PositionHelper.distanceToPlayer(gob) <= distance);
+	return getNearest(gui, limit, distance, gobIsAny(tags));
     }
     
     @SafeVarargs
     static List<ITarget> getNearest(GameUI gui, int limit, double distance, Predicate<Gob>... filters) {
-	Predicate<Gob> distFilter = gob -> PositionHelper.distanceToPlayer(gob) <= distance;
-	if(filters == null || filters.length == 0) {
-	    filters = new Predicate[]{distFilter};
-	} else {
-	    filters = Utils.extend(filters, filters.length + 1);
-	    filters[filters.length - 1] = distFilter;
-	}
-	return getGobs(gui, limit, PositionHelper.byDistanceToPlayer, filters);
+	Gob player = gui.map.player();
+	if(player == null) {return Collections.emptyList();}
+	return getNearestToPoint(gui, limit, player.rc, distance, filters);
     }
     
     @SafeVarargs
     static List<ITarget> getNearestToPoint(GameUI gui, int limit, Coord2d pos, double distance, Predicate<Gob>... filters) {
-	Predicate<Gob> distFilter = g -> PositionHelper.distanceToCoord(pos, g) <= distance;
-	if(filters == null || filters.length == 0) {
-	    filters = new Predicate[]{distFilter};
-	} else {
-	    filters = Utils.extend(filters, filters.length + 1);
-	    filters[filters.length - 1] = distFilter;
-	}
-	return getGobs(gui, limit, Comparator.comparingDouble(g -> PositionHelper.distanceToCoord(pos, g)), filters);
+	if(pos == null) {return Collections.emptyList();}
+	return getGobs(gui.ui.sess.glob.oc.within(pos, distance).stream(), limit, Comparator.comparingDouble(g -> PositionHelper.distanceToCoord(pos, g)), filters);
     }
     
-    private static List<ITarget> getNearest(GameUI gui, int limit, Function<Gob, Double> meter, double distance, GobTag... tags) {
-	return getGobs(gui, limit, Comparator.comparingDouble(meter::apply), gobIsAny(tags), gob -> meter.apply(gob) <= distance);
+    /** Gobs within {@code distance} of the player, looked up through the object cache's spatial index */
+    static Stream<Gob> nearPlayer(GameUI gui, double distance) {
+	Gob player = gui.map.player();
+	if(player == null) {return Stream.empty();}
+	return gui.ui.sess.glob.oc.within(player.rc, distance).stream();
     }
     
     @SafeVarargs
     static List<ITarget> getGobs(GameUI gui, int limit, Comparator<Gob> sort, Predicate<Gob>... filters) {
-	Stream<Gob> stream = gui.ui.sess.glob.oc.stream();
+	return getGobs(gui.ui.sess.glob.oc.stream(), limit, sort, filters);
+    }
+    
+    @SafeVarargs
+    private static List<ITarget> getGobs(Stream<Gob> stream, int limit, Comparator<Gob> sort, Predicate<Gob>... filters) {
 	for (Predicate<Gob> filter : filters) {
 	    stream = stream.filter(filter);
 	}
@@ -50,6 +50,14 @@ public class Block{
   int floor_bits;
   int res_bits;
 
+  // decode scratch, kept per stream and reused from packet to packet,
+  // so that separate streams can be decoded concurrently
+  float[][] pcmbundle=null;
+  int[] zerobundle=null;
+  int[] nonzero=null;
+  Object[] floormemo=null;
+  int[][][] partword=new int[0][][];
+
   public Block(DspState vd){
     this.vd=vd;
     if(vd.analysisp!=0){
@@ -110,15 +118,12 @@ public class Block{
     if(pcm.length<vi.channels){
       pcm=new float[vi.channels][];
     }
+    // no need to clear reused vectors; the mapping clears the
+    // spectral half and the transform overwrites all of it
     for(int i=0; i<vi.channels; i++){
       if(pcm[i]==null||pcm[i].length<pcmend){
         pcm[i]=new float[pcmend];
       }
-      else{
-        for(int j=0; j<pcmend; j++){
-          pcm[i][j]=0;
-        }
-      }
     }
 
     // unpack_header enforces range checking
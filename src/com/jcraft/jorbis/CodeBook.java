@@ -81,9 +81,11 @@ class CodeBook{
     return (encode(best, b));
   }
 
-  private int[] t=new int[15]; // decodevs_add is synchronized for re-using t.
+  // scratch for decodevs_add; codebooks belong to a single DspState,
+  // so this needs no locking
+  private int[] t=new int[15];
 
-  synchronized int decodevs_add(float[] a, int offset, Buffer b, int n){
+  int decodevs_add(float[] a, int offset, Buffer b, int n){
     int step=n/dim;
     int entry;
     int i, j, o;
@@ -174,6 +176,24 @@ class CodeBook{
     int i, j, entry;
     int chptr=0;
 
+    if(ch==2&&(dim&1)==0){
+      // stereo with even-sized vectors, which is the common case;
+      // every entry then starts on the first channel
+      float[] a0=a[0], a1=a[1];
+      for(i=offset/2; i<(offset+n)/2;){
+        entry=decode(b);
+        if(entry==-1)
+          return (-1);
+
+        int t=entry*dim;
+        for(j=0; j<dim; j+=2, i++){
+          a0[i]+=valuelist[t+j];
+          a1[i]+=valuelist[t+j+1];
+        }
+      }
+      return (0);
+    }
+
     for(i=offset/ch; i<(offset+n)/ch;){
       entry=decode(b);
       if(entry==-1)
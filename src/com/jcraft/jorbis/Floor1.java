@@ -252,13 +252,11 @@ class Floor1 extends FuncFloor{
       if(memo instanceof int[]){
         fit_value=(int[])memo;
       }
+      // every post below is written before it is read, so a reused
+      // vector need not be cleared
       if(fit_value==null||fit_value.length<look.posts){
         fit_value=new int[look.posts];
       }
-      else{
-        for(int i=0; i<fit_value.length; i++)
-          fit_value[i]=0;
-      }
 
       fit_value[0]=vb.opb.read(Util.ilog(look.quant_q-1));
       fit_value[1]=vb.opb.read(Util.ilog(look.quant_q-1));
@@ -183,12 +183,7 @@ class Mapping0 extends FuncMapping{
     return info;
   }
 
-  float[][] pcmbundle=null;
-  int[] zerobundle=null;
-  int[] nonzero=null;
-  Object[] floormemo=null;
-
-  synchronized int inverse(Block vb, Object l){
+  int inverse(Block vb, Object l){
     DspState vd=vb.vd;
     Info vi=vd.vi;
     LookMapping0 look=(LookMapping0)l;
@@ -197,12 +192,16 @@ class Mapping0 extends FuncMapping{
     int n=vb.pcmend=vi.blocksizes[vb.W];
 
     float[] window=vd.window[vb.W][vb.lW][vb.nW][mode.windowtype];
-    if(pcmbundle==null||pcmbundle.length<vi.channels){
-      pcmbundle=new float[vi.channels][];
-      nonzero=new int[vi.channels];
-      zerobundle=new int[vi.channels];
-      floormemo=new Object[vi.channels];
+    if(vb.pcmbundle==null||vb.pcmbundle.length<vi.channels){
+      vb.pcmbundle=new float[vi.channels][];
+      vb.nonzero=new int[vi.channels];
+      vb.zerobundle=new int[vi.channels];
+      vb.floormemo=new Object[vi.channels];
     }
+    float[][] pcmbundle=vb.pcmbundle;
+    int[] zerobundle=vb.zerobundle;
+    int[] nonzero=vb.nonzero;
+    Object[] floormemo=vb.floormemo;
 
     // time domain information decode (note that applying the
     // information would have to happen later; we'll probably add a
@@ -259,29 +258,18 @@ class Mapping0 extends FuncMapping{
       float[] pcmM=vb.pcm[info.coupling_mag[i]];
       float[] pcmA=vb.pcm[info.coupling_ang[i]];
 
-      for(int j=0; j<n/2; j++){
+      for(int j=0, e=n/2; j<e; j++){
         float mag=pcmM[j];
         float ang=pcmA[j];
+        // same arithmetic as the four-way case split in the spec
+        float rec=((mag>0)==(ang>0)) ? mag-ang : mag+ang;
 
-        if(mag>0){
-          if(ang>0){
-            pcmM[j]=mag;
-            pcmA[j]=mag-ang;
-          }
-          else{
-            pcmA[j]=mag;
-            pcmM[j]=mag+ang;
-          }
+        if(ang>0){
+          pcmA[j]=rec;
         }
         else{
-          if(ang>0){
-            pcmM[j]=mag;
-            pcmA[j]=mag+ang;
-          }
-          else{
-            pcmA[j]=mag;
-            pcmM[j]=mag-ang;
-          }
+          pcmM[j]=rec;
+          pcmA[j]=mag;
         }
       }
     }
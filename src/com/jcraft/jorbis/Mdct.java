@@ -83,10 +83,12 @@ class Mdct{
   void forward(float[] in, float[] out){
   }
 
+  // work vectors; each DspState has its own transforms, so these
+  // need no locking
   float[] _x=new float[1024];
   float[] _w=new float[1024];
 
-  synchronized void backward(float[] in, float[] out){
+  void backward(float[] in, float[] out){
     if(_x.length<n/2){
       _x=new float[n/2];
     }
@@ -140,20 +140,56 @@ public class VorbisStream {
      * the input.
      */
     public float[][] decode() throws IOException {
+	int len = pcmavail();
+	if(len < 0)
+	    return(null);
+	float[][] ret = new float[chn][];
+	for(int i = 0; i < chn; i++) {
+	    ret[i] = new float[len];
+	    System.arraycopy(pcmp[0][i], idxp[i], ret[i], 0, len);
+	}
+	dsp.synthesis_read(len);
+	return(ret);
+    }
+
+    /**
+     * Perform a decode cycle into caller-supplied sample arrays,
+     * which makes it possible to decode a whole stream without
+     * allocating any memory. At most <code>len</code> samples are
+     * stored into each channel array of <code>buf</code>, starting
+     * at <code>off</code>. Samples that do not fit are kept for the
+     * next call.
+     *
+     * @param buf The destination arrays, at least one per channel.
+     * @param off The offset in each destination array to start at.
+     * @param len The maximum number of samples to decode.
+     * @return The number of samples stored into each channel array,
+     * or -1 when the stream ends.
+     *
+     * @exception java.io.IOException if the backing input stream
+     * itself throws an <code>IOException</code>.
+     * @exception FormatException if a format error is found in
+     * the input.
+     */
+    public int decode(float[][] buf, int off, int len) throws IOException {
+	int avail = pcmavail();
+	if(avail < 0)
+	    return(-1);
+	len = Math.min(len, avail);
+	for(int i = 0; i < chn; i++)
+	    System.arraycopy(pcmp[0][i], idxp[i], buf[i], off, len);
+	dsp.synthesis_read(len);
+	return(len);
+    }
+
+    private int pcmavail() throws IOException {
 	while(true) {
 	    int len = dsp.synthesis_pcmout(pcmp, idxp);
-	    if(len > 0) {
-		float[][] ret = new float[chn][];
-		for(int i = 0; i < chn; i++) {
-		    ret[i] = new float[len];
-		    System.arraycopy(pcmp[0][i], idxp[i], ret[i], 0, len);
-		}
-		dsp.synthesis_read(len);
-		return(ret);
-	    }
+	    if(len > 0)
+		return(len);
 	    Packet pkt = in.packet();
 	    if(pkt == null)
-		return(null);
+		return(-1);
 	    if((blk.synthesis(pkt) != 0) || (dsp.synthesis_blockin(blk) != 0))
 		throw(new VorbisException());
 	}
@@ -243,8 +279,16 @@ public class VorbisStream {
      * <pre>
      * java dolda.xiphutil.VorbisStream test.ogg | sox -t .raw -r 44100 -sw -c 2 - -t ossdsp /dev/dsp
      * </pre>
+     *
+     * Given <code>-b [-n ROUNDS] [-c CRC] FILE</code> instead, it
+     * benchmarks the decoder on the given file, and optionally
+     * checks the decoded samples against a known checksum.
      */
     public static void main(String[] args) throws Exception {
+	if(args[0].equals("-b")) {
+	    bench(args);
+	    return;
+	}
 	VorbisStream vs = new VorbisStream(new FileInputStream(args[0]));
 	InputStream pcm = vs.pcmstream();
 	byte[] buf = new byte[4096];
@@ -254,6 +298,69 @@ public class VorbisStream {
 	}
     }
     
+    private static long crc(java.util.zip.CRC32 crc, float[][] buf, int off, int len) {
+	for(int i = off; i < off + len; i++) {
+	    for(int ch = 0; ch < buf.length; ch++) {
+		int b = Float.floatToRawIntBits(buf[ch][i]);
+		crc.update(b); crc.update(b >> 8); crc.update(b >> 16); crc.update(b >> 24);
+	    }
+	}
+	return(len);
+    }
+
+    /* Decodes the given file repeatedly, printing the best decoding
+     * time and a checksum of the decoded samples. With -c, the
+     * checksum is verified against a known value, so that changes
+     * to the decoder can be checked for bit-exactness. */
+    private static void bench(String[] args) throws Exception {
+	int rounds = 20;
+	long expect = -1;
+	String file = null;
+	for(int i = 1; i < args.length; i++) {
+	    if(args[i].equals("-n"))
+		rounds = Integer.parseInt(args[++i]);
+	    else if(args[i].equals("-c"))
+		expect = Long.parseLong(args[++i], 16);
+	    else
+		file = args[i];
+	}
+	byte[] data = java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(file));
+	java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+	long samples = 0;
+	int rate;
+	{
+	    VorbisStream vs = new VorbisStream(new ByteArrayInputStream(data));
+	    float[][] buf;
+	    while((buf = vs.decode()) != null)
+		samples += crc(crc, buf, 0, buf[0].length);
+	    rate = vs.rate;
+	}
+	long sum = crc.getValue();
+	{
+	    java.util.zip.CRC32 crc2 = new java.util.zip.CRC32();
+	    VorbisStream vs = new VorbisStream(new ByteArrayInputStream(data));
+	    float[][] buf = new float[vs.chn][1000];
+	    int n;
+	    while((n = vs.decode(buf, 0, buf[0].length)) >= 0)
+		crc(crc2, buf, 0, n);
+	    if(crc2.getValue() != sum)
+		throw(new RuntimeException("buffered decoding differs"));
+	}
+	long t = Long.MAX_VALUE;
+	for(int r = 0; r < rounds; r++) {
+	    long st = System.nanoTime();
+	    VorbisStream vs = new VorbisStream(new ByteArrayInputStream(data));
+	    float[][] buf = new float[vs.chn][4096];
+	    while(vs.decode(buf, 0, buf[0].length) >= 0);
+	    t = Math.min(t, System.nanoTime() - st);
+	}
+	double secs = (double)samples / rate;
+	System.out.printf("%d samples, best %.2f ms per decode, %.1fx realtime, crc %08x\n",
+			  samples, t * 1e-6, secs / (t * 1e-9), sum);
+	if((expect >= 0) && (expect != sum))
+	    throw(new RuntimeException(String.format("checksum mismatch: expected %08x, got %08x", expect, sum)));
+    }
+
     /**
      * Closes the stream backing this object.
      *
@@ -0,0 +1,302 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import haven.render.*;
+import haven.Skeleton.Pose;
+import haven.Skeleton.PoseMod;
+
+/*
+ * Evaluates the skeletal poses of the animated objects of an object
+ * cache off the object tick. During OCache.ctick, animated objects
+ * advance their pose mods as before but only queue the resulting
+ * pose rebuild. Once every object has been ticked, the queued poses
+ * are evaluated, grouped by skeleton, on the common fork-join pool
+ * while the rest of the frame goes on. The results are computed into
+ * a back buffer per pose and copied to the pose that everything else
+ * reads at the start of the next object tick, so readers always see
+ * a complete pose, one tick behind.
+ *
+ * It also decides how often each object's animations are advanced
+ * at all, updating objects far from the player or outside the view
+ * less often than every frame.
+ */
+public class AnimJobs {
+    private static volatile boolean enabled = CFG.ANIM_JOBS.get(), lodon = CFG.ANIM_LOD.get();
+    static {
+	CFG.ANIM_JOBS.observe(cfg -> enabled = cfg.get());
+	CFG.ANIM_LOD.observe(cfg -> lodon = cfg.get());
+    }
+    public static final int CHUNK = 32;
+    public static final float MIDDIST = (float)(MCache.tilesz.x * 15), FARDIST = (float)(MCache.tilesz.x * 30);
+    public static final int MIDIVAL = 2, FARIVAL = 4, HIDDENIVAL = 8;
+    public final Glob glob;
+    private final Collection<Target> queue = new ArrayList<>();
+    private Target[] flight = new Target[0];
+    private int[] fgen = new int[0];
+    private ForkJoinTask<?> running = null;
+    private volatile Throwable failed = null;
+    private int frame = 0;
+    private volatile boolean ticking = false;
+    private ViewClip view = null;
+    private Coord3f plc = null;
+    private final Stats stats = new Stats();
+
+    public AnimJobs(Glob glob) {
+	this.glob = glob;
+    }
+
+    /* The double-buffered pose of one animated object. */
+    public static class Target {
+	public final Pose pose;
+	private final Pose work;
+	private PoseMod[] mods;
+	private Pose old;
+	private float d;
+	private int gen, qgen;
+	private boolean queued;
+
+	public Target(Pose pose, Pose base) {
+	    this.pose = pose;
+	    this.work = pose.skel().new Pose(base);
+	}
+
+	/* Rebuilds the pose right away, discarding any queued or
+	 * running evaluation. */
+	public synchronized void rebuild(PoseMod[] mods, Pose old, float d) {
+	    gen++;
+	    pose.update(mods, old, d);
+	}
+    }
+
+    public static class Stats {
+	public int queued, batches, published, stale, deferred;
+	public double eval, wait;
+	private final AtomicInteger ndeferred = new AtomicInteger(0);
+
+	public String toString() {
+	    return(String.format("%,d poses in %,d batches, %.2f ms eval, %.2f ms wait, %,d stale, %,d deferred by LOD",
+				 published, batches, eval * 1000, wait * 1000, stale, deferred));
+	}
+    }
+
+    public Stats stats() {
+	return(stats);
+    }
+
+    /* Queues a rebuild of a pose. Outside of the object tick, such
+     * as for objects ticked by something else than the object
+     * cache, the pose is rebuilt at once instead. */
+    public void submit(Target t, PoseMod[] mods, Pose old, float d) {
+	if(!enabled || !ticking) {
+	    t.rebuild(mods, old, d);
+	    return;
+	}
+	synchronized(t) {
+	    t.mods = mods;
+	    t.old = old;
+	    t.d = d;
+	    t.qgen = t.gen;
+	    if(t.queued)
+		return;
+	    t.queued = true;
+	}
+	synchronized(queue) {
+	    queue.add(t);
+	}
+    }
+
+    /* Waits for the evaluations started by the previous kick() and
+     * publishes their results. Called before objects are ticked. */
+    public void sync() {
+	frame++;
+	if(running != null) {
+	    double st = Utils.rtime();
+	    try {
+		running.get();
+	    } catch(InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return;
+	    } catch(ExecutionException e) {
+		failed = e.getCause();
+	    }
+	    stats.wait = (stats.wait * 0.95) + ((Utils.rtime() - st) * 0.05);
+	    running = null;
+	}
+	int published = 0, stale = 0;
+	Throwable failed = this.failed;
+	for(int i = 0; i < flight.length; i++) {
+	    Target t = flight[i];
+	    synchronized(t) {
+		if((failed == null) && (t.gen == fgen[i])) {
+		    t.pose.copy(t.work);
+		    published++;
+		} else {
+		    stale++;
+		}
+	    }
+	    flight[i] = null;
+	}
+	if(failed != null) {
+	    new Warning(failed, "animation evaluation failed").issue();
+	    this.failed = null;
+	}
+	stats.published = published;
+	stats.stale = stale;
+	stats.deferred = stats.ndeferred.getAndSet(0);
+	viewupd();
+	ticking = true;
+    }
+
+    /* Starts evaluating everything submitted since the last
+     * sync(). Called after objects are ticked. */
+    public void kick() {
+	ticking = false;
+	Target[] q;
+	synchronized(queue) {
+	    q = queue.toArray(new Target[0]);
+	    queue.clear();
+	}
+	stats.queued = q.length;
+	int[] gen = new int[q.length];
+	Map<Skeleton, Skeleton.PoseBatch> cur = new HashMap<>();
+	List<Skeleton.PoseBatch> batches = new ArrayList<>();
+	for(int i = 0; i < q.length; i++) {
+	    Target t = q[i];
+	    Skeleton skel = t.pose.skel();
+	    Skeleton.PoseBatch batch = cur.get(skel);
+	    if((batch == null) || (batch.size() >= CHUNK)) {
+		cur.put(skel, batch = skel.new PoseBatch());
+		batches.add(batch);
+	    }
+	    synchronized(t) {
+		batch.add(t.work, t.mods, t.old, t.d);
+		gen[i] = t.qgen;
+		t.queued = false;
+		t.mods = null;
+		t.old = null;
+	    }
+	}
+	flight = q;
+	fgen = gen;
+	stats.batches = batches.size();
+	if(batches.isEmpty())
+	    return;
+	Runnable eval = () -> {
+	    double st = Utils.rtime();
+	    try {
+		if((batches.size() > 1) && Config.par.get())
+		    batches.parallelStream().forEach(Skeleton.PoseBatch::run);
+		else
+		    batches.forEach(Skeleton.PoseBatch::run);
+	    } catch(Throwable e) {
+		failed = e;
+	    }
+	    synchronized(stats) {
+		stats.eval = (stats.eval * 0.95) + ((Utils.rtime() - st) * 0.05);
+	    }
+	};
+	if(Config.par.get())
+	    running = ForkJoinPool.commonPool().submit(eval);
+	else
+	    eval.run();
+    }
+
+    private void viewupd() {
+	view = null;
+	plc = null;
+	if(!lodon || ((view = ViewClip.of(glob)) == null))
+	    return;
+	Gob pl = view.map.player();
+	if(pl != null) {
+	    try {
+		plc = pl.getc();
+	    } catch(Loading l) {
+	    }
+	}
+    }
+
+    /* How many frames apart the animations of an object should be
+     * advanced. */
+    public int interval(Gob gob) {
+	int ival = Composited.cachedAnimSkip + 1;
+	ViewClip view = this.view;
+	if(!lodon || (view == null))
+	    return(ival);
+	Coord3f c;
+	try {
+	    c = gob.getc();
+	} catch(Loading l) {
+	    return(ival);
+	}
+	if(!ViewClip.visible(view.project(c)))
+	    return(Math.max(ival, HIDDENIVAL));
+	Coord3f plc = this.plc;
+	if(plc != null) {
+	    float dist = plc.dist(c);
+	    if(dist > FARDIST)
+		return(Math.max(ival, FARIVAL));
+	    if(dist > MIDDIST)
+		return(Math.max(ival, MIDIVAL));
+	}
+	return(ival);
+    }
+
+    /* Whether an object with the given interval should advance its
+     * animations this frame. Objects updated less than every frame
+     * are staggered by ID to spread the work out. The global frame
+     * skip keeps its common phase, which Composited's model updates
+     * rely on. */
+    public boolean due(Gob gob, int ival) {
+	if(ival <= 1)
+	    return(true);
+	boolean ret;
+	if(ival == Composited.cachedAnimSkip + 1)
+	    ret = ((Composited.animTickFrame + 1) % ival) == 0;
+	else
+	    ret = ((frame + (int)(gob.id & 0xffff)) % ival) == 0;
+	if(!ret)
+	    stats.ndeferred.incrementAndGet();
+	return(ret);
+    }
+
+    /* Finds the animation job queue responsible for the owner of a
+     * sprite, if any. */
+    public static AnimJobs get(OwnerContext owner) {
+	Gob gob;
+	try {
+	    gob = owner.context(Gob.class);
+	} catch(OwnerContext.NoContext e) {
+	    return(null);
+	}
+	return((gob == null) ? null : gob.glob.oc.anim);
+    }
+}
@@ -34,6 +34,7 @@ import dolda.xiphutil.*;
 
 public class Audio {
     public static final Config.Variable<String> outname = Config.Variable.prop("haven.audio-output", "");
+    public static final Config.Variable<Integer> pcmcachesz = Config.Variable.propi("haven.audio-cache", 32);
     public static final AudioFormat fmt = new AudioFormat(44100, 16, 2, true, false);
     public static boolean enabled = true;
     public static double volume = Double.parseDouble(Utils.getpref("sfxvol", "1.0"));
@@ -60,7 +61,8 @@ public class Audio {
 
     public static class Mixer implements CS {
 	public final boolean cont;
-	private final Collection<CS> clips = new LinkedList<CS>();
+	private final List<CS> clips = new ArrayList<CS>();
+	private double[][] buf = {};
 
 	public Mixer(boolean continuous) {
 	    this.cont = continuous;
@@ -72,17 +74,19 @@ public class Audio {
 
 	public int get(double[][] dst, int ns) {
 	    int nch = dst.length;
-	    double[][] buf = new double[nch][ns];
+	    if((buf.length != nch) || ((nch > 0) && (buf[0].length < ns)))
+		buf = new double[nch][ns];
+	    double[][] buf = this.buf;
 	    int max = 0;
 	    synchronized(clips) {
-		clip: for(Iterator<CS> i = clips.iterator(); i.hasNext();) {
-		    CS cs = i.next();
+		clip: for(int ci = 0; ci < clips.size(); ci++) {
+		    CS cs = clips.get(ci);
 		    int left = ns;
 		    int boff = 0;
 		    while(left > 0) {
 			int ret = cs.get(buf, left);
 			if(ret < 0) {
-			    i.remove();
+			    clips.remove(ci--);
 			    continue clip;
 			}
 			if(boff + ret > max) {
@@ -91,8 +95,9 @@ public class Audio {
 			    max = boff + ret;
 			}
 			for(int ch = 0; ch < nch; ch++) {
+			    double[] d = dst[ch], b = buf[ch];
 			    for(int sm = 0; sm < ret; sm++)
-				dst[ch][boff + sm] += buf[ch][sm];
+				d[boff + sm] += b[sm];
 			}
 			left -= ret;
 			boff += ret;
@@ -168,12 +173,14 @@ public class Audio {
 	public final int sch, sfmt, ssz;
 	public int size = -1;
 	private final byte[] dbuf = new byte[256];
+	private final double[] dec;
 	private int head = 0, tail = 0;
 	private boolean eof = false;
 
 	public PCMClip(InputStream clip, int nch, int sfmt) {
 	    this.clip = clip;
 	    this.sch = nch;
+	    this.dec = new double[nch];
 	    switch(this.sfmt = sfmt) {
 	    case UN8:  ssz = 1; break;
 	    case SN8:  ssz = 1; break;
@@ -216,7 +223,6 @@ public class Audio {
 
 	public int get(double[][] dst, int ns) {
 	    int nch = dst.length;
-	    double[] dec = new double[sch];
 	    for(int sm = 0; sm < ns; sm++) {
 		while(tail - head < ssz * sch) {
 		    if(head > 0) {
@@ -335,39 +341,177 @@ public class Audio {
 
     public static class VorbisClip implements CS {
 	public final VorbisStream clip;
-	private float[][] data = new float[1][0];
-	private int dp = 0;
+	private float[][] data;
+	private int dp = 0, dlen = 0;
+	private Object ckey = null;
+	private float[][] rec = null;
+	private int rlen = 0;
 
 	public VorbisClip(VorbisStream clip) {
 	    this.clip = clip;
+	    this.data = new float[clip.chn][4096];
 	}
 
 	public VorbisClip(InputStream bs) throws IOException {
 	    this(new VorbisStream(bs));
 	}
 
+	/* Keeps the decoded samples as they are played, and enters
+	 * them into the PCM cache under the given key once the clip
+	 * has been played to its end. */
+	public VorbisClip cache(Object key) {
+	    this.ckey = (pcmcache.maxmem > 0) ? key : null;
+	    return(this);
+	}
+
+	private void record(float[][] buf, int n) {
+	    if(rlen + n > pcmcache.maxlen) {
+		ckey = null;
+		rec = null;
+		return;
+	    }
+	    if(rec == null)
+		rec = new float[buf.length][Math.max(n, 4096)];
+	    if(rlen + n > rec[0].length) {
+		for(int ch = 0; ch < rec.length; ch++)
+		    rec[ch] = Arrays.copyOf(rec[ch], Math.max(rec[ch].length * 2, rlen + n));
+	    }
+	    for(int ch = 0; ch < rec.length; ch++)
+		System.arraycopy(buf[ch], 0, rec[ch], rlen, n);
+	    rlen += n;
+	}
+
+	private void recorded() {
+	    if((ckey != null) && (rec != null)) {
+		for(int ch = 0; ch < rec.length; ch++)
+		    rec[ch] = Arrays.copyOf(rec[ch], rlen);
+		pcmcache.put(ckey, new PCMData(rec, rlen));
+	    }
+	    ckey = null;
+	    rec = null;
+	}
+
 	public int get(double[][] dst, int ns) {
 	    int nch = dst.length;
 	    if(data == null)
 		return(-1);
-	    for(int sm = 0; sm < ns; sm++) {
-		while(dp >= data[0].length) {
+	    for(int sm = 0; sm < ns;) {
+		if(dp >= dlen) {
 		    try {
-			if((data = clip.decode()) == null)
+			if((dlen = clip.decode(data, 0, data[0].length)) < 0) {
+			    data = null;
+			    recorded();
 			    return((sm > 0)?sm:-1);
+			}
 		    } catch(IOException e) {
+			ckey = null;
+			rec = null;
 			return(-1);
 		    }
+		    if(ckey != null)
+			record(data, dlen);
 		    dp = 0;
 		}
-		for(int ch = 0; ch < nch; ch++)
-		    dst[ch][sm] = data[ch % clip.chn][dp];
-		dp++;
+		int n = Math.min(ns - sm, dlen - dp);
+		for(int ch = 0; ch < nch; ch++) {
+		    double[] d = dst[ch];
+		    float[] s = data[ch % clip.chn];
+		    for(int i = 0; i < n; i++)
+			d[sm + i] = s[dp + i];
+		}
+		sm += n;
+		dp += n;
 	    }
 	    return(ns);
 	}
     }
 
+    /* The fully decoded samples of a clip, one array per channel. */
+    public static class PCMData {
+	public final float[][] data;
+	public final int len;
+
+	public PCMData(float[][] data, int len) {
+	    this.data = data;
+	    this.len = len;
+	}
+
+	public long size() {
+	    return((long)data.length * len * 4);
+	}
+
+	public CS stream() {
+	    return(new PCMStream(this));
+	}
+    }
+
+    public static class PCMStream implements CS {
+	public final PCMData pcm;
+	private int pos = 0;
+
+	public PCMStream(PCMData pcm) {
+	    this.pcm = pcm;
+	}
+
+	public int get(double[][] dst, int ns) {
+	    int n = Math.min(ns, pcm.len - pos);
+	    if(n <= 0)
+		return(-1);
+	    float[][] src = pcm.data;
+	    for(int ch = 0; ch < dst.length; ch++) {
+		float[] s = src[ch % src.length];
+		double[] d = dst[ch];
+		for(int sm = 0, sp = pos; sm < n; sm++, sp++)
+		    d[sm] = s[sp];
+	    }
+	    pos += n;
+	    return(n);
+	}
+    }
+
+    /* Decoded samples of recently played short clips, least recently
+     * used first, bounded by the total size of the samples. */
+    public static class PCMCache {
+	public final long maxmem;
+	public final int maxlen;
+	private final Map<Object, PCMData> data = new LinkedHashMap<>(16, 0.75f, true);
+	private long mem = 0;
+	private int hits, misses, evicted;
+
+	public PCMCache(long maxmem, int maxlen) {
+	    this.maxmem = maxmem;
+	    this.maxlen = maxlen;
+	}
+
+	public synchronized PCMData get(Object key) {
+	    PCMData ret = data.get(key);
+	    if(ret != null)
+		hits++;
+	    else
+		misses++;
+	    return(ret);
+	}
+
+	public synchronized void put(Object key, PCMData pcm) {
+	    if(pcm.size() > maxmem)
+		return;
+	    PCMData prev = data.put(key, pcm);
+	    if(prev != null)
+		mem -= prev.size();
+	    mem += pcm.size();
+	    for(Iterator<PCMData> i = data.values().iterator(); (mem > maxmem) && i.hasNext();) {
+		mem -= i.next().size();
+		i.remove();
+		evicted++;
+	    }
+	}
+
+	public synchronized String stats() {
+	    return(String.format("%,d clips, %,d kB, %,d hits, %,d misses, %,d evicted", data.size(), mem >> 10, hits, misses, evicted));
+	}
+    }
+    public static final PCMCache pcmcache = new PCMCache((long)pcmcachesz.get() << 20, Math.round(fmt.getSampleRate() * 10));
+
     public static class VolAdjust implements CS {
 	public final CS bk;
 	public double vol = 1.0, bal = 0.0;
@@ -551,6 +695,8 @@ public class Audio {
 	private final int nch;
 	private volatile boolean reopen = false;
 
+	private double[][] val = {};
+
 	Player(CS stream) {
 	    super("Haven audio player");
 	    this.stream = stream;
@@ -560,7 +706,9 @@ public class Audio {
 
 	private int fillbuf(byte[] dst, int off, int len) {
 	    int ns = len / (2 * nch);
-	    double[][] val = new double[nch][ns];
+	    if((val.length != nch) || (val[0].length < ns))
+		val = new double[nch][ns];
+	    double[][] val = this.val;
 	    int left = ns, wr = 0;
 	    while(left > 0) {
 		int ret = stream.get(val, left);
@@ -767,6 +915,56 @@ public class Audio {
 	Utils.setprefi("audiobuf", nsz);
     }
 
+    /* Mixes a number of simultaneous clips through VolAdjust and a
+     * continuous Mixer, as the player does, and reports the time and
+     * allocation per output buffer. Given an Ogg Vorbis file, it
+     * mixes both freshly decoding clips and cached PCM of the file;
+     * otherwise a synthesized clip. */
+    private static void mixbench(String[] args) throws Exception {
+	int nclips = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+	byte[] ogg = (args.length > 2) ? Files.readAllBytes(Utils.path(args[2])) : null;
+	int nch = fmt.getChannels(), ns = bufsize() / 2;
+	PCMData pcm;
+	if(ogg != null) {
+	    VorbisClip dec = new VorbisClip(new ByteArrayInputStream(ogg)).cache("bench");
+	    double[][] buf = new double[nch][ns];
+	    while(dec.get(buf, ns) >= 0);
+	    if((pcm = pcmcache.get("bench")) == null)
+		throw(new RuntimeException("clip too long to cache"));
+	} else {
+	    int len = Math.round(fmt.getSampleRate() * 2);
+	    float[] sine = new float[len];
+	    for(int i = 0; i < len; i++)
+		sine[i] = (float)Math.sin(i * 0.05) * 0.5f;
+	    pcm = new PCMData(new float[][] {sine}, len);
+	}
+	com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+	long tid = Thread.currentThread().getId();
+	String[] names = (ogg != null) ? new String[] {"decoding", "cached"} : new String[] {"cached"};
+	for(int round = 0; round < 3; round++) {
+	    for(String name : names) {
+		Mixer mix = new Mixer(true);
+		for(int i = 0; i < nclips; i++) {
+		    CS clip = name.equals("decoding") ? new VorbisClip(new ByteArrayInputStream(ogg)) : pcm.stream();
+		    mix.add(new VolAdjust(clip, 1.0 / nclips));
+		}
+		double[][] out = new double[nch][ns];
+		int nbuf = 0;
+		long a = tmx.getThreadAllocatedBytes(tid);
+		double st = Utils.rtime();
+		while(!mix.empty()) {
+		    mix.get(out, ns);
+		    nbuf++;
+		}
+		double t = Utils.rtime() - st;
+		a = tmx.getThreadAllocatedBytes(tid) - a;
+		if(round == 2)
+		    System.out.printf("%s: %d clips, %d buffers of %d samples, %.1f us/buffer, %,d bytes allocated/buffer%n",
+				      name, nclips, nbuf, ns, t * 1e6 / nbuf, a / nbuf);
+	    }
+	}
+    }
+
     public static void main(String[] args) throws Exception {
 	if(args[0].equals("play")) {
 	    Collection<Monitor> clips = new LinkedList<Monitor>();
@@ -782,6 +980,8 @@ public class Audio {
 		play(c);
 	    for(Monitor c : clips)
 		c.finwait();
+	} else if(args[0].equals("mixbench")) {
+	    mixbench(args);
 	} else if(args[0].equals("outputs")) {
 	    for(javax.sound.sampled.Mixer.Info m : AudioSystem.getMixerInfo()) {
 		System.out.printf("%s\t%s (%s %s)\n", m.getName(), m.getDescription(), m.getVendor(), m.getVersion());
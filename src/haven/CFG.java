@@ -214,6 +214,9 @@ public class CFG<T> {
     public static final CFG<Boolean> FREEZE_DOMESTIC_ANIM = new CFG<>("perf.freeze_domestic_anim", false);
     public static final CFG<Boolean> HIDE_DOMESTIC_ANIMALS = new CFG<>("perf.hide_domestic_animals", false);
     public static final CFG<Boolean> PARALLEL_TICK = new CFG<>("perf.parallel_tick", true);
+    public static final CFG<Boolean> ANIM_JOBS = new CFG<>("perf.anim_jobs", true);
+    public static final CFG<Boolean> ANIM_LOD = new CFG<>("perf.anim_lod", true);
+    public static final CFG<Integer> MESH_LOD = new CFG<>("perf.mesh_lod", 1);
     public static final CFG<Integer> GL_DISPOSE_PER_FRAME = new CFG<>("perf.gl_dispose_per_frame", 64);
     public static final CFG<Boolean> DISABLE_YULELIGHTS_FX = new CFG<>("display.disable_yulelights_fx", true);
     public static final CFG<Boolean> HIDE_GAMEUI_PORTRAIT = new CFG<>("display.hide_gameui_portrait", false);
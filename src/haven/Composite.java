@@ -138,15 +138,11 @@ public class Composite extends Drawable implements EquipTarget {
 	    updequ();
 	}
 	processResId();
-	int skip = Composited.cachedAnimSkip;
-	if(skip > 0) {
-	    animAccumDt += dt;
-	    if(((Composited.animTickFrame + 1) % (skip + 1)) == 0) {
-		comp.tick(animAccumDt);
-		animAccumDt = 0;
-	    }
-	} else {
-	    comp.tick(dt);
+	AnimJobs anim = gob.glob.oc.anim;
+	animAccumDt += dt;
+	if(anim.due(gob, anim.interval(gob))) {
+	    comp.tick(animAccumDt, anim);
+	    animAccumDt = 0;
 	}
     }
     
@@ -39,6 +39,7 @@ public class Composited implements RenderTree.Node, EquipTarget {
     public volatile boolean frozen = false;
     public final Skeleton skel;
     public final Pose pose;
+    private final AnimJobs.Target target;
     public final OwnerContext eqowner;
     public Collection<Model> mod = new ArrayList<Model>();
     public Collection<Equipped> equ = new ArrayList<Equipped>();
@@ -71,13 +72,12 @@ public class Composited implements RenderTree.Node, EquipTarget {
 	    }
 	}
 
-	private void rebuild() {
-	    pose.reset();
-	    for(PoseMod m : mods)
-		m.apply(pose);
-	    if(ipold > 0.0f)
-		pose.blend(old, ipold);
-	    pose.gbuild();
+	private void rebuild(AnimJobs jobs) {
+	    Pose old = (ipold > 0.0f) ? this.old : null;
+	    if(jobs == null)
+		target.rebuild(mods, old, ipold);
+	    else
+		jobs.submit(target, mods, old, ipold);
 	}
 
 	public void set(float ipol) {
@@ -86,10 +86,14 @@ public class Composited implements RenderTree.Node, EquipTarget {
 		this.ipold = 1.0f;
 	    }
 	    Composited.this.poses = this;
-	    rebuild();
+	    rebuild(null);
 	}
 
 	public void tick(float dt) {
+	    tick(dt, null);
+	}
+
+	public void tick(float dt, AnimJobs jobs) {
 	    rsmod = Utils.clip(rsmod + (srnd.nextFloat() * 0.005f) - 0.0025f, 0.90f, 1.10f);
 	    dt *= rsmod;
 	    boolean build = false;
@@ -113,7 +117,7 @@ public class Composited implements RenderTree.Node, EquipTarget {
 		build = true;
 	    }
 	    if(build)
-		rebuild();
+		rebuild(jobs);
 	    if(done)
 		done();
 	}
@@ -124,6 +128,7 @@ public class Composited implements RenderTree.Node, EquipTarget {
     public Composited(Skeleton skel, OwnerContext eqowner) {
 	this.skel = skel;
 	this.pose = skel.new Pose(skel.bindpose);
+	this.target = new AnimJobs.Target(pose, skel.bindpose);
 	this.eqowner = eqowner;
     }
 
@@ -546,9 +551,13 @@ public class Composited implements RenderTree.Node, EquipTarget {
     }
     
     public void tick(double dt) {
+	tick(dt, null);
+    }
+
+    public void tick(double dt, AnimJobs jobs) {
 	if(frozen) return;
 	if(poses != null)
-	    poses.tick((float)dt);
+	    poses.tick((float)dt, jobs);
 	for(Equipped equ : this.equ)
 	    equ.tick(dt);
     }
@@ -288,13 +288,13 @@ public class Connection implements Transport {
 	} else if(ret == 0) {
 	    return(null);
 	} else {
-	    recvbuf.flip();
-	    byte type = recvbuf.get();
-	    byte[] buf = new byte[recvbuf.remaining()];
-	    recvbuf.get(buf);
+	    /* The returned message reads directly from the receive
+	     * buffer, so it is only valid until the next recv(). Anything
+	     * that outlives the handling of a datagram copies out of
+	     * it. */
 	    stats.prx++;
-	    stats.brx += buf.length;
-	    return(new PMessage(type, buf));
+	    stats.brx += ret - 1;
+	    return(new PMessage(recvbuf.get(0), recvbuf.array(), 1, ret - 1));
 	}
     }
 
@@ -436,52 +436,192 @@ public class Connection implements Transport {
 	}
     }
 
-    private static class ObjAck {
-	long id;
-	int frame;
-	double frecv, lrecv;
+    /* Pending object acknowledgements, as an open-addressed table
+     * over parallel arrays so that tracking them allocates nothing
+     * per object. Removed slots are left as tombstones until the
+     * next rehash. */
+    static class ObjAcks {
+	private static final byte FREE = 0, USED = 1, DEAD = 2;
+	long[] id = new long[64];
+	int[] frame = new int[64];
+	double[] frecv = new double[64], lrecv = new double[64];
+	byte[] st = new byte[64];
+	private int n = 0, fill = 0;
+
+	private static int hash(long id) {
+	    return((int)((id * 0x9e3779b97f4a7c15L) >>> 32));
+	}
+
+	void got(long oid, int fr, double now) {
+	    int mask = id.length - 1, free = -1, i;
+	    for(i = hash(oid) & mask; st[i] != FREE; i = (i + 1) & mask) {
+		if((st[i] == USED) && (id[i] == oid)) {
+		    if(fr > frame[i]) {
+			frame[i] = fr;
+			lrecv[i] = now;
+		    }
+		    return;
+		}
+		if((st[i] == DEAD) && (free < 0))
+		    free = i;
+	    }
+	    if(free >= 0) {
+		i = free;
+	    } else {
+		fill++;
+	    }
+	    st[i] = USED;
+	    id[i] = oid;
+	    frame[i] = fr;
+	    frecv[i] = lrecv[i] = now;
+	    n++;
+	    if(fill * 2 > id.length)
+		rehash((n * 4 > id.length) ? (id.length * 2) : id.length);
+	}
+
+	void remove(int i) {
+	    st[i] = DEAD;
+	    if(--n == 0) {
+		Arrays.fill(st, FREE);
+		fill = 0;
+	    }
+	}
+
+	int size() {
+	    return(n);
+	}
+
+	private void rehash(int nsz) {
+	    long[] oid = id;
+	    int[] ofr = frame;
+	    double[] ofrecv = frecv, olrecv = lrecv;
+	    byte[] ost = st;
+	    id = new long[nsz];
+	    frame = new int[nsz];
+	    frecv = new double[nsz];
+	    lrecv = new double[nsz];
+	    st = new byte[nsz];
+	    int mask = nsz - 1;
+	    for(int o = 0; o < ost.length; o++) {
+		if(ost[o] != USED)
+		    continue;
+		int i;
+		for(i = hash(oid[o]) & mask; st[i] != FREE; i = (i + 1) & mask);
+		st[i] = USED;
+		id[i] = oid[o];
+		frame[i] = ofr[o];
+		frecv[i] = ofrecv[o];
+		lrecv[i] = olrecv[o];
+	    }
+	    fill = n;
+	}
+    }
+
+    /* Decodes MSG_OBJDATA datagrams into a batch of deltas per
+     * datagram. The payload is copied out of the receive buffer once,
+     * and every attribute is a view into that copy. */
+    static class ObjDecoder {
+	final ObjAcks acks = new ObjAcks();
+
+	List<OCache.ObjDelta> decode(Message dgram, double now) {
+	    byte[] buf = dgram.bytes();
+	    MessageBuf msg = new MessageBuf(buf);
+	    List<OCache.ObjDelta> ret = new ArrayList<>();
+	    while(!msg.eom()) {
+		int fl = msg.uint8();
+		long id = msg.uint32();
+		int fr = msg.int32();
+		OCache.ObjDelta delta = new OCache.ObjDelta(fl, id, fr);
+		if((fl & 1) != 0)
+		    delta.initframe = fr;
+		if((fl & 8) != 0)
+		    delta.initframe = msg.int32();
+		while(true) {
+		    int afl = 0, len, type = msg.uint8();
+		    if(type == OCache.OD_END)
+			break;
+		    if((type & 0x80) == 0) {
+			len = (type & 0x78) >> 3;
+			if(len > 0)
+			    len++;
+			type = OCache.compodmap[type & 0x7];
+		    } else {
+			type = type & 0x7f;
+			if(((afl = msg.uint8()) & 0x80) == 0) {
+			    len = afl & 0x7f;
+			    afl = 0;
+			} else {
+			    len = msg.uint16();
+			}
+		    }
+		    if(len > msg.rem())
+			throw(new Message.EOF("Required " + len + " bytes, got only " + msg.rem()));
+		    if(type == OCache.OD_REM)
+			delta.rem = true;
+		    else
+			delta.attrs.add(new OCache.AttrDelta(delta, type, buf, msg.rh, len));
+		    msg.rh += len;
+		}
+		ret.add(delta);
+		acks.got(id, fr, now);
+	    }
+	    return(ret);
+	}
+    }
 
-	ObjAck(long id, int frame, double recv) {
-	    this.id = id;
-	    this.frame = frame;
-	    this.frecv = this.lrecv = recv;
+    /* Reassembles RMSG_FRAGMENT sequences. Fragments are kept as they
+     * are until the last one arrives, and then copied once into a
+     * buffer of the exact size, so reassembly is linear in the total
+     * size. */
+    static class FragBuf {
+	private final List<PMessage> parts = new ArrayList<>();
+	private int type = -1, len;
+
+	PMessage add(PMessage msg) {
+	    int head = msg.uint8();
+	    if((head & 0x80) == 0) {
+		if(type >= 0)
+		    throw(new Session.MessageException("Got start fragment while still defragmenting", msg));
+		type = head;
+		len = 0;
+	    } else if((head != 0x80) && (head != 0x81)) {
+		throw(new Session.MessageException("Got invalid fragment type: " + head, msg));
+	    } else if(type < 0) {
+		throw(new Session.MessageException("Got continuation fragment without start", msg));
+	    }
+	    parts.add(msg);
+	    len += msg.rt - msg.rh;
+	    if(head == 0x81) {
+		byte[] buf = new byte[len];
+		int off = 0;
+		for(PMessage part : parts) {
+		    int n = part.rt - part.rh;
+		    System.arraycopy(part.rbuf, part.rh, buf, off, n);
+		    part.rh = part.rt;
+		    off += n;
+		}
+		PMessage ret = new PMessage(type, buf);
+		parts.clear();
+		type = -1;
+		return(ret);
+	    }
+	    return(null);
 	}
     }
 
     private class Main implements Task {
 	private final Map<Short, RMessage> waiting = new HashMap<>();
-	private final Map<Long, ObjAck> objacks = new HashMap<>();
+	private final ObjDecoder objs = new ObjDecoder();
 	private double now, lasttx;
 	private short rseq, ackseq;
 	private double acktime = -1;
-	private byte[] fragbuf = null;
-	private int fragtype;
+	private final FragBuf frags = new FragBuf();
 
 	private void handlerel(PMessage msg) {
 	    if(msg.type == RMessage.RMSG_FRAGMENT) {
-		int head = msg.uint8();
-		if((head & 0x80) == 0) {
-		    if(fragbuf != null)
-			throw(new Session.MessageException("Got start fragment while still defragmenting", msg));
-		    fragbuf = msg.bytes();
-		    fragtype = head;
-		} else {
-		    if((head == 0x80) || (head == 0x81)) {
-			byte[] frag = msg.bytes();
-			byte[] curbuf = fragbuf;
-			byte[] newbuf = new byte[curbuf.length + frag.length];
-			System.arraycopy(curbuf, 0, newbuf, 0, curbuf.length);
-			System.arraycopy(frag, 0, newbuf, curbuf.length, frag.length);
-			fragbuf = newbuf;
-			if(head == 0x81) {
-			    PMessage nmsg = new PMessage(fragtype, fragbuf);
-			    fragbuf = null;
-			    handlerel(nmsg);
-			}
-		    } else {
-			throw(new Session.MessageException("Got invalid fragment type: " + head, msg));
-		    }
-		}
+		PMessage nmsg = frags.add(msg);
+		if(nmsg != null)
+		    handlerel(nmsg);
 	    } else {
 		for(Iterator<Callback> i = cbs.iterator(); i.hasNext();) {
 		    Callback cb = i.next();
@@ -539,52 +679,16 @@ public class Connection implements Transport {
 	}
 
 	private void gotobjdata(Message msg) {
-	    while(!msg.eom()) {
-		int fl = msg.uint8();
-		long id = msg.uint32();
-		int fr = msg.int32();
-		OCache.ObjDelta delta = new OCache.ObjDelta(fl, id, fr);
-		if((fl & 1) != 0)
-		    delta.initframe = fr;
-		if((fl & 8) != 0)
-		    delta.initframe = msg.int32();
-		while(true) {
-		    int afl = 0, len, type = msg.uint8();
-		    if(type == OCache.OD_END)
-			break;
-		    if((type & 0x80) == 0) {
-			len = (type & 0x78) >> 3;
-			if(len > 0)
-			    len++;
-			type = OCache.compodmap[type & 0x7];
-		    } else {
-			type = type & 0x7f;
-			if(((afl = msg.uint8()) & 0x80) == 0) {
-			    len = afl & 0x7f;
-			    afl = 0;
-			} else {
-			    len = msg.uint16();
-			}
-		    }
-		    OCache.AttrDelta attr = new OCache.AttrDelta(delta, type, msg, len);
-		    if(type == OCache.OD_REM) {
-			delta.rem = true;
-		    } else {
-			delta.attrs.add(attr);
-		    }
-		}
-		for(Iterator<Callback> i = cbs.iterator(); i.hasNext();) {
-		    Callback cb = i.next();
-		    cb.handle(i.hasNext() ? delta.clone() : delta);
-		}
-		ObjAck ack = objacks.get(id);
-		if(ack == null) {
-		    objacks.put(id, ack = new ObjAck(id, fr, now));
+	    List<OCache.ObjDelta> deltas = objs.decode(msg, now);
+	    for(Iterator<Callback> i = cbs.iterator(); i.hasNext();) {
+		Callback cb = i.next();
+		if(i.hasNext()) {
+		    List<OCache.ObjDelta> copy = new ArrayList<>(deltas.size());
+		    for(OCache.ObjDelta delta : deltas)
+			copy.add(delta.clone());
+		    cb.handle(copy);
 		} else {
-		    if(fr > ack.frame) {
-			ack.frame = fr;
-			ack.lrecv = now;
-		    }
+		    cb.handle(deltas);
 		}
 	    }
 	}
@@ -666,9 +770,11 @@ public class Connection implements Transport {
 	private double sendobjacks() {
 	    double mint = -1;
 	    PMessage msg = null;
-	    for(Iterator<ObjAck> i = objacks.values().iterator(); i.hasNext();) {
-		ObjAck ack = i.next();
-		double txtime = Math.min(ack.lrecv + OBJACK_HOLD, ack.frecv + OBJACK_HOLD_MAX);
+	    ObjAcks acks = objs.acks;
+	    for(int i = 0; (i < acks.st.length) && (acks.size() > 0); i++) {
+		if(acks.st[i] != ObjAcks.USED)
+		    continue;
+		double txtime = Math.min(acks.lrecv[i] + OBJACK_HOLD, acks.frecv[i] + OBJACK_HOLD_MAX);
 		if(txtime <= now) {
 		    if(msg == null) {
 			msg = new PMessage(Session.MSG_OBJACK);
@@ -676,9 +782,9 @@ public class Connection implements Transport {
 			send(msg);
 			msg = new PMessage(Session.MSG_OBJACK);
 		    }
-		    msg.adduint32(ack.id);
-		    msg.addint32(ack.frame);
-		    i.remove();
+		    msg.adduint32(acks.id[i]);
+		    msg.addint32(acks.frame[i]);
+		    acks.remove(i);
 		} else {
 		    mint = min2(mint, txtime);
 		}
@@ -864,4 +970,52 @@ public class Connection implements Transport {
 	    throw(new SessionError("Connection failed: " + init.result));
 	}
     }
+
+    /* Allocation microbenchmark for fragment reassembly, comparing
+     * against reassembly that copies the accumulated buffer on every
+     * fragment. */
+    public static void main(String[] args) {
+	com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+	long tid = Thread.currentThread().getId();
+	int fragsz = 480, reps = 200;
+	for(int size : new int[] {16 << 10, 64 << 10, 256 << 10, 1 << 20}) {
+	    int nfrag = (size + fragsz - 1) / fragsz;
+	    RMessage[] frags = new RMessage[nfrag];
+	    for(int i = 0; i < nfrag; i++) {
+		int head = (i == 0) ? RMessage.RMSG_WDGMSG : ((i == nfrag - 1) ? 0x81 : 0x80);
+		frags[i] = new RMessage(RMessage.RMSG_FRAGMENT, new byte[1 + fragsz]);
+		frags[i].rbuf[0] = (byte)head;
+	    }
+	    for(int pass = 0; pass < 2; pass++) {
+		long a0 = tmx.getThreadAllocatedBytes(tid), t0 = System.nanoTime();
+		for(int r = 0; r < reps; r++) {
+		    if(pass == 0) {
+			FragBuf fb = new FragBuf();
+			for(RMessage frag : frags) {
+			    frag.rh = 0;
+			    fb.add(frag);
+			}
+		    } else {
+			byte[] acc = null;
+			for(RMessage frag : frags) {
+			    frag.rh = 0;
+			    frag.uint8();
+			    byte[] part = frag.bytes();
+			    if(acc == null) {
+				acc = part;
+			    } else {
+				byte[] n = new byte[acc.length + part.length];
+				System.arraycopy(acc, 0, n, 0, acc.length);
+				System.arraycopy(part, 0, n, acc.length, part.length);
+				acc = n;
+			    }
+			}
+		    }
+		}
+		long a1 = tmx.getThreadAllocatedBytes(tid), t1 = System.nanoTime();
+		System.out.printf("%-8s %8d bytes, %5d frags: %10.1f KiB alloc/msg, %9.1f us/msg\n",
+				  (pass == 0) ? "fragbuf" : "copying", size, nfrag, (a1 - a0) / 1024.0 / reps, (t1 - t0) * 1e-3 / reps);
+	    }
+	}
+    }
 }
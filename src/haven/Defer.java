@@ -33,7 +33,7 @@ import java.util.concurrent.atomic.*;
 
 public class Defer extends ThreadGroup {
     private static final Map<ThreadGroup, Defer> groups = new WeakHashMap<ThreadGroup, Defer>();
-    private final Queue<Future<?>> queue = new PrioQueue<Future<?>>();
+    private final TaskQueue<Future<?>> queue = new TaskQueue<Future<?>>(1.0);
     private final Collection<Thread> pool = new LinkedList<Thread>();
     private final int maxthreads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
     private final AtomicInteger busy = new AtomicInteger(0);
@@ -119,6 +119,7 @@ public class Defer extends ThreadGroup {
 	private Throwable exc = null;
 	private Loading lastload = null;
 	private volatile Thread running = null;
+	private TaskQueue.Entry<Future<?>> qent = null;
 	
 	private Future(Callable<T> task) {
 	    this.task = task;
@@ -227,8 +228,11 @@ public class Defer extends ThreadGroup {
 	
 	public void boostprio(int prio) {
 	    synchronized(this) {
-		if(this.prio < prio)
+		if(this.prio < prio) {
 		    this.prio = prio;
+		    if(qent != null)
+			qent = queue.reprio(qent);
+		}
 	    }
 	}
     }
@@ -242,18 +246,13 @@ public class Defer extends ThreadGroup {
 	}
 	
 	public void run() {
+	    queue.register();
 	    try {
 		while(true) {
 		    Future<?> f;
 		    try {
-			long start = System.currentTimeMillis();
-			synchronized(queue) {
-			    while((f = queue.poll()) == null) {
-				if(System.currentTimeMillis() - start > 5000)
-				    return;
-				queue.wait(1000);
-			    }
-			}
+			if((f = queue.poll(5.0)) == null)
+			    return;
 		    } catch(InterruptedException e) {
 			return;
 		    }
@@ -261,9 +260,10 @@ public class Defer extends ThreadGroup {
 		    f = null;
 		}
 	    } finally {
-		synchronized(queue) {
+		queue.unregister();
+		synchronized(pool) {
 		    pool.remove(this);
-		    if((pool.size() < 1) && !queue.isEmpty()) {
+		    if((pool.size() < 1) && (queue.size() > 0)) {
 			Thread n = new Worker();
 			n.start();
 			pool.add(n);
@@ -278,14 +278,16 @@ public class Defer extends ThreadGroup {
     }
 
     private void defer(final Future<?> f) {
-	synchronized(queue) {
-	    boolean e = queue.isEmpty();
-	    queue.add(f);
-	    queue.notify();
-	    if((pool.isEmpty() || !e) && (pool.size() < maxthreads)) {
-		Thread n = new Worker();
-		n.start();
-		pool.add(n);
+	synchronized(f) {
+	    f.qent = queue.add(f);
+	}
+	if(queue.idle() == 0) {
+	    synchronized(pool) {
+		if(pool.size() < maxthreads) {
+		    Thread n = new Worker();
+		    n.start();
+		    pool.add(n);
+		}
 	    }
 	}
     }
@@ -321,9 +323,11 @@ public class Defer extends ThreadGroup {
     }
 
     public String stats() {
-	synchronized(queue) {
-	    return(String.format("%d %d/%d", queue.size(), busy.get(), pool.size()));
+	int np;
+	synchronized(pool) {
+	    np = pool.size();
 	}
+	return(String.format("%d %d/%d %s", queue.size(), busy.get(), np, queue.stats()));
     }
 
     public static String gstats() {
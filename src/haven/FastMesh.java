@@ -33,12 +33,17 @@ import haven.render.VertexArray.Layout;
 import haven.render.Model.Indices;
 import haven.render.Rendered;
 
-public class FastMesh implements Rendered.Instancable, RenderTree.Node, Disposable {
+public class FastMesh implements Rendered.Instancable, Rendered.Detailed, RenderTree.Node, Disposable {
+    /* Meshes smaller than this are not worth reducing. */
+    public static final int LODMIN = 64;
+    /* Clustering grid resolutions for each reduced detail level. */
+    private static final int[] LODRES = {16, 6};
     public final VertexBuf vert;
     public final ShortBuffer indb;
     public final int num;
     public final Model model;
     private Volume3f bounds;
+    private Model[] lods = null;
 
     public FastMesh(VertexBuf vert, ShortBuffer ind) {
 	this.vert = vert;
@@ -101,23 +106,126 @@ public class FastMesh implements Rendered.Instancable, RenderTree.Node, Disposab
 	return(bounds.p);
     }
 
+    private static VertexBuf.VertexData posbuf(VertexBuf vert) {
+	for(VertexBuf.AttribData buf : vert.bufs) {
+	    if(buf instanceof VertexBuf.VertexData)
+		return((VertexBuf.VertexData)buf);
+	}
+	return(null);
+    }
+
+    /* Collapses all vertices within the same grid cell to the first
+     * one found in it, and keeps only the triangles that still have
+     * three distinct corners, dropping duplicates. */
+    private static short[] cluster(FloatBuffer pos, ShortBuffer ind, Coord3f org, float csz) {
+	int[] rep = new int[pos.capacity() / 3];
+	Arrays.fill(rep, -1);
+	Map<Long, Integer> cells = new HashMap<>();
+	Set<Long> tris = new HashSet<>();
+	short[] ret = new short[ind.capacity()];
+	int n = 0;
+	int[] tri = new int[3];
+	for(int i = 0; i < ind.capacity(); i += 3) {
+	    for(int o = 0; o < 3; o++) {
+		int v = ind.get(i + o) & 0xffff;
+		if(rep[v] < 0) {
+		    long cx = (long)Math.floor((pos.get(v * 3 + 0) - org.x) / csz);
+		    long cy = (long)Math.floor((pos.get(v * 3 + 1) - org.y) / csz);
+		    long cz = (long)Math.floor((pos.get(v * 3 + 2) - org.z) / csz);
+		    Integer r = cells.putIfAbsent((cx << 42) | (cy << 21) | cz, v);
+		    rep[v] = (r == null) ? v : r;
+		}
+		tri[o] = rep[v];
+	    }
+	    if((tri[0] == tri[1]) || (tri[1] == tri[2]) || (tri[0] == tri[2]))
+		continue;
+	    /* Rotate the smallest index first, which keeps the winding. */
+	    int f = (tri[0] < tri[1]) ? ((tri[0] < tri[2]) ? 0 : 2) : ((tri[1] < tri[2]) ? 1 : 2);
+	    long key = ((long)tri[f] << 32) | ((long)tri[(f + 1) % 3] << 16) | (long)tri[(f + 2) % 3];
+	    if(!tris.add(key))
+		continue;
+	    for(int o = 0; o < 3; o++)
+		ret[n++] = (short)tri[o];
+	}
+	return(Arrays.copyOf(ret, n));
+    }
+
+    private Model lodmodel(short[] ind) {
+	int nind = ind.length;
+	return(new Model(Model.Mode.TRIANGLES, vert.data(),
+			 new Indices(nind, NumberFormat.UINT16, DataBuffer.Usage.STATIC, DataBuffer.Filler.of(ShortBuffer.wrap(ind))).shared().desc(this),
+			 0, nind).desc(this));
+    }
+
+    /* Builds reduced versions of this mesh for drawing at lower
+     * detail levels. They share its vertex data and only carry
+     * index lists of their own. A level that does not save at
+     * least a quarter of the triangles of the one above it just
+     * reuses that one. */
+    public void mklods() {
+	if((num < LODMIN) || (lods != null))
+	    return;
+	VertexBuf.VertexData vbuf = posbuf(vert);
+	if(vbuf == null)
+	    return;
+	Volume3f b = bounds();
+	float ext = Math.max(Math.max(b.p.x - b.n.x, b.p.y - b.n.y), b.p.z - b.n.z);
+	if(!(ext > 0))
+	    return;
+	Model[] lods = new Model[Rendered.Detail.MAX + 1];
+	lods[0] = model;
+	boolean any = false;
+	for(int lvl = 1; lvl < lods.length; lvl++) {
+	    short[] ind = cluster(vbuf.data, indb, b.n, ext / LODRES[Math.min(lvl, LODRES.length) - 1]);
+	    if((ind.length > 0) && (ind.length <= (lods[lvl - 1].n * 3) / 4)) {
+		lods[lvl] = lodmodel(ind);
+		any = true;
+	    } else {
+		lods[lvl] = lods[lvl - 1];
+	    }
+	}
+	if(any)
+	    this.lods = lods;
+    }
+
+    public Model model(int level) {
+	Model[] lods = this.lods;
+	if((lods == null) || (level <= 0))
+	    return(model);
+	return(lods[Math.min(level, lods.length - 1)]);
+    }
+
+    public int prims(int level) {
+	if(lods == null)
+	    return(-1);
+	return(model(level).n / 3);
+    }
+
     public void draw(Pipe context, Render out) {
-	out.draw(context, model);
+	out.draw(context, model(Rendered.Detail.level(context)));
     }
 
     public void dispose() {
+	if(lods != null) {
+	    for(int i = 1; i < lods.length; i++) {
+		if(lods[i] != lods[i - 1]) {
+		    lods[i].ind.dispose();
+		    lods[i].dispose();
+		}
+	    }
+	}
 	model.ind.dispose();
 	model.dispose();
 	vert.dispose();
     }
 
-    public class Instanced implements Rendered.Instanced {
+    public class Instanced implements Rendered.Instanced, Rendered.Detailed {
 	public final InstanceBatch bat;
 	private final InstanceBatch.AttributeData attr;
 	private final Layout fmt;
 	private VertexArray data;
 	private Model model;
-	private int ninst;
+	private int ninst, level;
 
 	private Layout mkfmt(Layout.Input[] ifmt) {
 	    VertexArray sdat = vert.data();
@@ -151,13 +259,23 @@ public class FastMesh implements Rendered.Instancable, RenderTree.Node, Disposab
 	}
 
 	public void draw(Pipe context, Render out) {
+	    int level = Rendered.Detail.level(context);
+	    if(level != this.level) {
+		this.level = level;
+		modupdate(false);
+	    }
 	    out.draw(context, model);
 	}
 
+	public int prims(int level) {
+	    int ret = FastMesh.this.prims(level);
+	    return((ret < 0) ? ret : (ret * ninst));
+	}
+
 	private void modupdate(boolean batupd) {
 	    if(model != null)
 		model.dispose();
-	    Model smod = FastMesh.this.model;
+	    Model smod = FastMesh.this.model(level);
 	    model = new Model(smod.mode, (data != null) ? data : vert.data(),
 			      smod.ind, smod.f, smod.n,
 			      ninst).desc(this);
@@ -365,6 +483,7 @@ public class FastMesh implements Rendered.Instancable, RenderTree.Node, Disposab
 	public void init() {
 	    VertexBuf v = getres().layer(VertexBuf.VertexRes.class, vbufid).b;
 	    this.m = new ResourceMesh(v, this.tmp, this);
+	    this.m.mklods();
 	    this.tmp = null;
 	    int matid = Utils.iv(info.getOrDefault("mat", -1));
 	    if(matid >= 0) {
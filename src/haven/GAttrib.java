@@ -43,6 +43,23 @@ public abstract class GAttrib {
     
     public void ctick(double dt) {
     }
+
+    private static final ClassValue<Boolean> ticking = new ClassValue<Boolean>() {
+	protected Boolean computeValue(Class<?> cl) {
+	    try {
+		return(cl.getMethod("ctick", Double.TYPE).getDeclaringClass() != GAttrib.class);
+	    } catch(NoSuchMethodException e) {
+		throw(new AssertionError(e));
+	    }
+	}
+    };
+
+    /* Whether ticking this attribute would do nothing. Attributes
+     * that do not override ctick are assumed to be idle; those that
+     * do should override this if they can tell better. */
+    public boolean idle() {
+	return(!ticking.get(getClass()));
+    }
     
     public void dispose() {
     }
@@ -281,7 +281,7 @@ public interface GLPanel extends UIPanel, UI.Context {
 	    prevfree = free;
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Mem: %,011d/%,011d/%,011d/%,011d (%,d)", free, total - free, total, rt.maxMemory(), framealloc);
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "State slots: %d", State.Slot.numslots());
-	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "GL progs: %d", buf.env.numprogs());
+	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "GL progs: %d, %s", buf.env.numprogs(), buf.env.progstats());
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "V-Mem: %s", buf.env.memstats());
 	    MapView map = ui.root.findchild(MapView.class);
 	    if((map != null) && (map.back != null)) {
@@ -291,10 +291,28 @@ public interface GLPanel extends UIPanel, UI.Context {
 	    }
 	    if((ui.sess != null) && (ui.sess.conn instanceof Connection))
 		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Connection: %s", ((Connection)ui.sess.conn).stats);
+	    if(ui.sess != null) {
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Objects: %s", ui.sess.glob.oc.tickstats());
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Animation: %s", ui.sess.glob.oc.anim.stats());
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Mesh LOD: %s", ui.sess.glob.oc.lod.stats());
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Audio cache: %s", Audio.pcmcache.stats());
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Map data: %s", ui.sess.glob.map.decstats());
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Map cuts: %s", ui.sess.glob.map.cutstats());
+	    }
+	    if((ui.gui != null) && (ui.gui.mapfile != null)) {
+		MapFile file = ui.gui.mapfile.file;
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Map store: %s", file.storestats());
+		MapFile.ZoomBuilder zb = file.zoombuild;
+		if(zb != null)
+		    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Map zoom: %s", zb);
+	    }
 	    FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Async: L %s, D %s", ui.loader.stats(), Defer.gstats());
 	    int rqd = Resource.local().qdepth() + Resource.remote().qdepth();
-	    if(rqd > 0)
-		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "RQ depth: %d (%d)", rqd, Resource.local().numloaded() + Resource.remote().numloaded());
+	    if(rqd > 0) {
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "RQ depth: %d (%d), %s", rqd, Resource.local().numloaded() + Resource.remote().numloaded(), Resource.remote().stats());
+		List<Resource.DecodeTime> dt = Resource.dectimes();
+		FastText.aprintf(g, new Coord(10, y -= dy), 0, 1, "Res decode: %s", dt.subList(0, Math.min(dt.size(), 4)));
+	    }
 	    synchronized(Debug.framestats) {
 		for(Object line : Debug.framestats)
 		    FastText.aprint(g, new Coord(10, y -= dy), 0, 1, String.valueOf(line));
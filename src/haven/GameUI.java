@@ -1147,8 +1147,18 @@ public class GameUI extends ConsoleHost implements Console.Directory, UI.Notice.
 		mapfile = null;
 	    }
 	    ResCache mapstore = ResCache.global;
-	    if(MapFile.mapbase.get() != null)
-		mapstore = HashDirCache.get(MapFile.mapbase.get());
+	    if(MapFile.mapbase.get() != null) {
+		if(PackCache.enabled.get()) {
+		    try {
+			mapstore = PackCache.get(MapFile.mapbase.get());
+		    } catch(java.io.IOException e) {
+			new Warning(e, "opening map store").issue();
+			mapstore = HashDirCache.get(MapFile.mapbase.get());
+		    }
+		} else {
+		    mapstore = HashDirCache.get(MapFile.mapbase.get());
+		}
+	    }
 	    if(mapstore != null) {
 		MapFile file;
 		try {
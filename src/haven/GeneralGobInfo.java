@@ -175,6 +175,11 @@ public class GeneralGobInfo extends GobInfo {
 	super.ctick(dt);
     }
     
+    @Override
+    public boolean idle() {
+	return super.idle() && (!enabled() || timer.idle());
+    }
+    
     @Override
     public void dispose() {
 	health = null;
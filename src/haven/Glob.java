@@ -203,7 +203,9 @@ public class Glob {
 	}
 	
 	tickgtime(now, dt);
-	oc.ctick(dt);
+	try(CPUProfile.Current prof = CPUProfile.begin("objs")) {
+	    oc.ctick(dt);
+	}
 	map.ctick(dt);
 	Timer.tick(dt);
 	
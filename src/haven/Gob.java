@@ -44,6 +44,11 @@ import static haven.OCache.*;
 
 public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, EquipTarget, RandomSource {
     public Coord2d rc;
+    Coord icell = null;
+    volatile int liveidx = -1;
+    volatile int actidx = -1, wakeseq = 0;
+    int tickseq = -1;
+    double idletime = 0;
     public double a;
     public boolean virtual = false;
     int clprio = 0;
@@ -597,6 +602,24 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	    botActions();
     }
     
+    /* Whether this object would do nothing if ticked again, so that
+     * OCache may stop ticking it until something changes. */
+    boolean idle() {
+	if(virtual || (isMe == null) || !mapProcessed || stateDirty || status.updated())
+	    return(false);
+	if(is(GobTag.ME) || is(GobTag.ANIMAL))
+	    return(false);
+	for(GAttrib a : getAttrSnapshot()) {
+	    if(!a.idle())
+		return(false);
+	}
+	for(Overlay ol : ols) {
+	    if((ol.slots == null) || (ol.spr == null) || !ol.spr.idle())
+		return(false);
+	}
+	return(true);
+    }
+    
     public void gtick(Render g) {
 	Drawable d = getattr(Drawable.class);
 	if(d != null)
@@ -821,6 +844,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	this.rc = c;
 	this.a = a;
 	placed.dirty = true;
+	glob.oc.moved(this);
     }
     
     public Boolean isMe() {
@@ -956,6 +980,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	    }
 	}
 	if(ac == Moving.class) {updateMovingInfo(a, prev);}
+	glob.oc.changed(this);
     }
     
     public void setattr(GAttrib a) {
@@ -1031,6 +1056,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
     
     private class GobState implements Pipe.Op {
 	final Pipe.Op mods;
+	final Rendered.Detail detail = Rendered.Detail.of(Gob.this.detail);
 	
 	private GobState() {
 	    if(setupmods.isEmpty()) {
@@ -1051,12 +1077,13 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 		buf.prep(new GobClick(Gob.this));
 	    buf.prep(new TickList.Monitor(Gob.this));
 	    obstate(buf);
+	    buf.prep(detail);
 	    if(mods != null)
 		buf.prep(mods);
 	}
 	
 	public boolean equals(GobState that) {
-	    return(Utils.eq(this.mods, that.mods));
+	    return(Utils.eq(this.mods, that.mods) && (this.detail == that.detail));
 	}
 	public boolean equals(Object o) {
 	    return((o instanceof GobState) && equals((GobState)o));
@@ -1118,6 +1145,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	    if(updwait != null)
 		updwait.wnotify();
 	}
+	glob.oc.changed(this);
     }
     
     public void updwait(Runnable callback, Consumer<Waitable.Waiting> reg) {
@@ -1608,7 +1636,18 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 
     public void placementDirty() {placed.dirty = true;}
 
-    public void markStateDirty() {stateDirty = true; placed.dirty = true;}
+    public void markStateDirty() {stateDirty = true; placed.dirty = true; glob.oc.wake(this);}
+
+    private volatile int detail = 0;
+    /* The mesh level of detail, as chosen by MeshLOD. */
+    public int detail() {return(detail);}
+    void detail(int lvl) {
+	if(lvl != detail) {
+	    detail = lvl;
+	    stateDirty = true;
+	    glob.oc.wake(this);
+	}
+    }
     
     private static void updateStatus(UI ui, long gobId, StatusType type) {
 	Gob gob = ui.sess.glob.oc.getgob(gobId);
@@ -1801,13 +1840,14 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
     
     public String contents() {return info.contents();}
     
-    private static class StatusUpdates {
+    private class StatusUpdates {
 	private final Set<StatusType> updated = new HashSet<>();
 	
 	private void update(StatusType type) {
 	    synchronized (updated) {
 		updated.add(type);
 	    }
+	    glob.oc.wake(Gob.this);
 	}
 	
 	private boolean updated(StatusType... types) {
@@ -1885,8 +1925,9 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
     }
     
     private long eseq() {
-	if(glob.sess.ui.gui != null && glob.sess.ui.gui.equipory != null) {
-	    return glob.sess.ui.gui.equipory.seq;
+	UI ui = glob.sess.ui;
+	if(ui != null && ui.gui != null && ui.gui.equipory != null) {
+	    return ui.gui.equipory.seq;
 	}
 	return 0;
     }
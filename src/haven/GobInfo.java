@@ -34,6 +34,13 @@ public abstract class GobInfo extends GAttrib implements RenderTree.Node, PView.
 	}
     }
 
+    @Override
+    public boolean idle() {
+	synchronized (texLock) {
+	    return !enabled() || noContent || (!dirty && tex != null);
+	}
+    }
+
     private boolean hasLoadedRes() {
 	return gob != null && gob.resid() != null;
     }
@@ -66,6 +73,7 @@ public abstract class GobInfo extends GAttrib implements RenderTree.Node, PView.
     public void dirty() {
 	noContent = false;
 	dirty = true;
+	if(gob != null) {gob.glob.oc.wake(gob);}
     }
 
     public void dispose() {
@@ -285,7 +285,7 @@ public class HashDirCache implements ResCache {
 	    });
     }
 
-    private Iterator<String> list() throws IOException {
+    Iterator<String> list() throws IOException {
 	return(list(true));
     }
 
@@ -60,6 +60,10 @@ public class LinMove extends Moving {
 	}
     }
 
+    public boolean idle() {
+	return(ts || (!Double.isNaN(e) && (t >= e)));
+    }
+
     public void sett(double t) {
 	lt = t;
 	if(t > this.t) {
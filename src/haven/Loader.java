@@ -242,6 +242,14 @@ public class Loader {
 		}, false));
     }
 
+    /* True when no task is queued or running. Tasks waiting for a
+     * Loading to complete don't count. */
+    public boolean idle() {
+	synchronized(queue) {
+	    return(queue.isEmpty() && (busy.get() == 0));
+	}
+    }
+
     public String stats() {
 	synchronized(queue) {
 	    return(String.format("%d+%d %d/%d", queue.size(), loading.size(), busy.get(), pool.size()));
@@ -28,6 +28,7 @@ package haven;
 
 import java.util.*;
 import java.util.function.*;
+import java.util.concurrent.atomic.*;
 import java.lang.ref.*;
 import haven.render.*;
 import me.ender.minimap.Minesweeper;
@@ -43,7 +44,7 @@ public class MCache implements MapSource {
     public static final Coord sgridsz = new Coord(100, 100);
     private final Object setmon = new Object();
     @SuppressWarnings("unchecked")
-    private Indir<Resource>[] sets = new Indir[16];
+    private volatile Indir<Resource>[] sets = new Indir[16];
     @SuppressWarnings("unchecked")
     private Reference<Tileset>[] csets = new Reference[16];
     @SuppressWarnings("unchecked")
@@ -55,6 +56,8 @@ public class MCache implements MapSource {
     Set<LocalOverlay> ols = new HashSet<>();
     public volatile int olseq = 0, chseq = 0;
     Map<Integer, Defrag> fragbufs = new TreeMap<Integer, Defrag>();
+    private final AtomicLong dataseq = new AtomicLong(0);
+    private final DecodeStats decstats = new DecodeStats();
     public long lastupdate = 0;
     
     public static class LoadingMap extends Loading {
@@ -93,6 +96,14 @@ public class MCache implements MapSource {
     private static class Request {
 	private long lastreq = 0;
 	private int reqs = 0;
+	/* Map data is decoded off the connection thread, so data
+	 * received before the request was made or last invalidated
+	 * may still be decoding; it must not satisfy it. */
+	private long after;
+
+	Request(long after) {
+	    this.after = after;
+	}
     }
     
     public static interface ZSurface {
@@ -352,6 +363,453 @@ public class MCache implements MapSource {
 	}
     }
     
+    /* The decoded contents of one map data message. Decoding is done
+     * off the connection thread and without any of the map locks
+     * held; the result is then applied to its grid in one go. */
+    private class GridData {
+	int[] tiles;
+	float[] z;
+	Indir<Resource>[] ols;
+	boolean[][] ol;
+	long id;
+	boolean hasid = false;
+	/* Tileset definitions are only entered into the shared table
+	 * when the grid is published, see define(). */
+	final Map<Integer, Indir<Resource>> defs = new HashMap<>();
+	private Indir<Resource>[] fill_plots;
+	
+	GridData(Message msg) {
+	    int ver = msg.uint8();
+	    if(ver == 1) {
+		subfill(msg);
+	    } else {
+		throw(new RuntimeException("Unknown map data version " + ver));
+	    }
+	}
+	
+	private boolean defined(int tileid) {
+	    if(defs.containsKey(tileid))
+		return(true);
+	    Indir<Resource>[] sets = MCache.this.sets;
+	    return((tileid < sets.length) && (sets[tileid] != null));
+	}
+	
+	/* Must be called with the grids monitor held. */
+	void define() {
+	    synchronized(setmon) {
+		for(Map.Entry<Integer, Indir<Resource>> def : defs.entrySet()) {
+		    cktileid(def.getKey());
+		    sets[def.getKey()] = def.getValue();
+		}
+	    }
+	}
+	
+	private void filltiles(Message buf) {
+	    while(true) {
+		int tileid = buf.uint8();
+		if(tileid == 255)
+		    break;
+		String resnm = buf.string();
+		int resver = buf.uint16();
+		defs.put(tileid, new Resource.Spec(Resource.remote(), resnm, resver));
+	    }
+	    tiles = new int[cmaps.x * cmaps.y];
+	    for(int i = 0; i < tiles.length; i++) {
+		tiles[i] = buf.uint8();
+		if(!defined(tiles[i]))
+		    throw(new Message.FormatError(String.format("Got undefined tile: " + tiles[i])));
+	    }
+	}
+	
+	private void filltiles2(Message buf) {
+	    int[] tileids = new int[1];
+	    int maxid = 0;
+	    while(true) {
+		int encid = buf.uint16();
+		if(encid == 65535)
+		    break;
+		maxid = Math.max(maxid, encid);
+		int tileid = buf.uint16();
+		if(encid >= tileids.length)
+		    tileids = Utils.extend(tileids, Integer.highestOneBit(encid) * 2);
+		tileids[encid] = tileid;
+		String resnm = buf.string();
+		int resver = buf.uint16();
+		defs.put(tileid, new Resource.Spec(Resource.remote(), resnm, resver));
+	    }
+	    boolean lg = maxid >= 256;
+	    tiles = new int[cmaps.x * cmaps.y];
+	    for(int i = 0; i < tiles.length; i++) {
+		tiles[i] = tileids[lg ? buf.uint16() : buf.uint8()];
+		if(!defined(tiles[i]))
+		    throw(new Message.FormatError(String.format("Got undefined tile: " + tiles[i])));
+	    }
+	}
+
+	private void filltiles3(Message buf) {
+	    int[] tileids = new int[1];
+	    int maxid = 0;
+	    while(true) {
+		int encid = buf.uint16();
+		if(encid == 65535)
+		    break;
+		maxid = Math.max(maxid, encid);
+		int tileid = buf.uint16();
+		if(encid >= tileids.length)
+		    tileids = Utils.extend(tileids, Integer.highestOneBit(encid) * 2);
+		tileids[encid] = tileid;
+		defs.put(tileid, sess.getres(buf.uint16()));
+	    }
+	    boolean lg = maxid >= 256;
+	    tiles = new int[cmaps.x * cmaps.y];
+	    for(int i = 0; i < tiles.length; i++) {
+		tiles[i] = tileids[lg ? buf.uint16() : buf.uint8()];
+		if(!defined(tiles[i]))
+		    throw(new Message.FormatError(String.format("Got undefined tile: " + tiles[i])));
+	    }
+	}
+	
+	private void fillz(Message buf) {
+	    int fmt = buf.uint8();
+	    z = new float[cmaps.x * cmaps.y];
+	    if(fmt == 0) {
+		float z = buf.float32() * 11;
+		for(int i = 0; i < this.z.length; i++)
+		    this.z[i] = z;
+	    } else if(fmt == 1) {
+		float min = buf.float32() * 11, q = buf.float32() * 11;
+		for(int i = 0; i < z.length; i++)
+		    z[i] = min + (buf.uint8() * q);
+	    } else if(fmt == 2) {
+		float min = buf.float32() * 11, q = buf.float32() * 11;
+		for(int i = 0; i < z.length; i++)
+		    z[i] = min + (buf.uint16() * q);
+	    } else if(fmt == 3) {
+		for(int i = 0; i < z.length; i++)
+		    z[i] = buf.float32() * 11;
+	    } else {
+		throw(new Message.FormatError(String.format("Unknown z-map format: %d", fmt)));
+	    }
+	}
+	
+	private void decplots(Message buf) {
+	    @SuppressWarnings("unchecked") Indir<Resource>[] pt = new Indir[256];
+	    while(!buf.eom()) {
+		int pidx = buf.uint8();
+		if(pidx == 255)
+		    break;
+		pt[pidx] = sess.getres(buf.uint16());
+	    }
+	    fill_plots = pt;
+	}
+	
+	private void fillplots(Message buf) {
+	    if(fill_plots == null)
+		return;
+	    @SuppressWarnings("unchecked") Indir<Resource>[] olids = new Indir[0];
+	    boolean[][] ols = {};
+	    while(!buf.eom()) {
+		int pidx = buf.uint8();
+		if(pidx == 255)
+		    break;
+		int fl = buf.uint8();
+		Coord c1 = Coord.of(buf.uint8(), buf.uint8());
+		Coord c2 = Coord.of(buf.uint8(), buf.uint8());
+		boolean[] mask = new boolean[(c2.x - c1.x) * (c2.y - c1.y)];
+		if((fl & 1) != 0) {
+		    for(int i = 0, l = 0, m = buf.uint8(); i < mask.length; i++) {
+			if(l >= 8) {
+			    m = buf.uint8();
+			    l = 0;
+			}
+			mask[i] = (m & 1) != 0;
+			m >>= 1;
+			l++;
+		    }
+		} else {
+		    for(int i = 0; i < mask.length; i++)
+			mask[i] = true;
+		}
+		Indir<Resource> olid = fill_plots[pidx];
+		if(olid == null)
+		    continue;
+		int oi;
+		find: {
+		    for(oi = 0; oi < olids.length; oi++) {
+			if(olids[oi] == olid)
+			    break find;
+		    }
+		    olids = Arrays.copyOf(olids, oi + 1);
+		    ols = Arrays.copyOf(ols, oi + 1);
+		    olids[oi] = olid;
+		}
+		boolean[] ol = ols[oi];
+		if(ol == null)
+		    ols[oi] = ol = new boolean[cmaps.x * cmaps.y];
+		for(int y = c1.y, mi = 0; y < c2.y; y++) {
+		    for(int x = c1.x; x < c2.x; x++) {
+			ol[x + (y * cmaps.x)] |= mask[mi++];
+		    }
+		}
+	    }
+	    this.ols = olids;
+	    this.ol = ols;
+	    fill_plots = null;
+	}
+	
+	private void subfill(Message msg) {
+	    while(!msg.eom()) {
+		String lnm = msg.string();
+		int len = msg.uint8();
+		if((len & 0x80) != 0)
+		    len = msg.int32();
+		Message buf = new LimitMessage(msg, len);
+		switch(lnm) {
+		case "z":
+		    subfill(new ZMessage(buf));
+		    break;
+		case "m":
+		    id = buf.int64();
+		    hasid = true;
+		    break;
+		case "t":
+		    filltiles(buf);
+		    break;
+		case "t2":
+		    filltiles2(buf);
+		    break;
+		case "t3":
+		    filltiles3(buf);
+		    break;
+		case "h":
+		    fillz(buf);
+		    break;
+		case "pi":
+		    decplots(buf);
+		    break;
+		case "p":
+		    fillplots(buf);
+		    break;
+		}
+		buf.skip();
+	    }
+	}
+    }
+    
+    private static class Flavobjs implements RenderTree.Node {
+	final RenderTree.Node[] mats;
+	final Gob[] all;
+	
+	Flavobjs(Map<NodeWrap, Collection<Gob>> flavobjs) {
+	    Collection<Gob> all = new ArrayList<>();
+	    RenderTree.Node[] mats = new RenderTree.Node[flavobjs.size()];
+	    int i = 0;
+	    for(Map.Entry<NodeWrap, Collection<Gob>> matent : flavobjs.entrySet()) {
+		final NodeWrap mat = matent.getKey();
+		Collection<Gob> fos = matent.getValue();
+		final Gob[] fol = fos.toArray(new Gob[0]);
+		all.addAll(fos);
+		mats[i] = new RenderTree.Node() {
+		    public void added(RenderTree.Slot slot) {
+			for(Gob fo : fol)
+			    slot.add(fo.placed);
+		    }
+		};
+		if(mat != null)
+		    mats[i] = mat.apply(mats[i]);
+		i++;
+	    }
+	    this.mats = mats;
+	    this.all = all.toArray(new Gob[0]);
+	}
+	
+	public void added(RenderTree.Slot slot) {
+	    for(RenderTree.Node mat : mats)
+		slot.add(mat);
+	}
+	
+	void tick(double dt) {
+	    for(Gob fo : all)
+		fo.ctick(dt);
+	}
+	
+	void gtick(Render g) {
+	    for(Gob fo : all)
+		fo.gtick(g);
+	}
+	
+	long memsize() {
+	    return(1024 + (all.length * 2048L));
+	}
+    }
+    
+    /* Built cuts are placed in world coordinates, so the key has
+     * the cut's absolute position as well as its contents. */
+    private static class CutKey {
+	final long id, hash;
+	final Coord gc, cc;
+	
+	CutKey(long id, Coord gc, Coord cc, long hash) {
+	    this.id = id;
+	    this.gc = gc;
+	    this.cc = cc;
+	    this.hash = hash;
+	}
+	
+	public int hashCode() {
+	    return(((Long.hashCode(id) * 31 + gc.hashCode()) * 31 + cc.hashCode()) * 31 + Long.hashCode(hash));
+	}
+	
+	public boolean equals(Object o) {
+	    if(!(o instanceof CutKey))
+		return(false);
+	    CutKey that = (CutKey)o;
+	    return((this.id == that.id) && (this.hash == that.hash) && this.gc.equals(that.gc) && this.cc.equals(that.cc));
+	}
+    }
+    
+    /* Cut meshes and flavor objects that are no longer shown, because
+     * their grid was trimmed or rebuilt, are parked here rather than
+     * disposed, so that revisiting unchanged terrain does not have to
+     * build them again. Bounded by an estimate of their size. */
+    public static final Config.Variable<Integer> cutcachesz = Config.Variable.propi("haven.cut-cache", 64);
+    private class CutCache {
+	private final Map<CutKey, Parked> parked = new LinkedHashMap<>(16, 0.75f, true);
+	/* Weak, since a build whose result is never collected (its
+	 * future was cancelled) is never released either. */
+	private final Map<Object, CutKey> lent = new WeakHashMap<>();
+	private long size = 0;
+	private int mhit, mmiss, fhit, fmiss;
+	private double mbuild, fbuild, saved;
+	
+	private class Parked {
+	    MapMesh mesh;
+	    Flavobjs fo;
+	    long msz, fsz;
+	}
+	
+	synchronized MapMesh mesh(CutKey key) {
+	    Parked p = parked.get(key);
+	    if((p == null) || (p.mesh == null)) {
+		mmiss++;
+		return(null);
+	    }
+	    MapMesh ret = p.mesh;
+	    p.mesh = null;
+	    size -= p.msz;
+	    if(p.fo == null)
+		parked.remove(key);
+	    lent.put(ret, key);
+	    mhit++;
+	    saved += mbuild;
+	    return(ret);
+	}
+	
+	synchronized Flavobjs flavor(CutKey key) {
+	    Parked p = parked.get(key);
+	    if((p == null) || (p.fo == null)) {
+		fmiss++;
+		return(null);
+	    }
+	    Flavobjs ret = p.fo;
+	    p.fo = null;
+	    size -= p.fsz;
+	    if(p.mesh == null)
+		parked.remove(key);
+	    lent.put(ret, key);
+	    fhit++;
+	    saved += fbuild;
+	    return(ret);
+	}
+	
+	synchronized void built(CutKey key, MapMesh mesh, long st) {
+	    double t = (System.nanoTime() - st) * 1e-9;
+	    mbuild = (mbuild == 0) ? t : ((mbuild * 0.9) + (t * 0.1));
+	    lent.put(mesh, key);
+	}
+	
+	synchronized void built(CutKey key, Flavobjs fo, long st) {
+	    double t = (System.nanoTime() - st) * 1e-9;
+	    fbuild = (fbuild == 0) ? t : ((fbuild * 0.9) + (t * 0.1));
+	    lent.put(fo, key);
+	}
+	
+	void park(MapMesh mesh) {
+	    synchronized(this) {
+		CutKey key = lent.remove(mesh);
+		if((key != null) && (cutcachesz.get() > 0)) {
+		    Parked p = parked.computeIfAbsent(key, k -> new Parked());
+		    if(p.mesh == null) {
+			p.mesh = mesh;
+			size += p.msz = mesh.memsize();
+			mesh = null;
+		    }
+		}
+	    }
+	    if(mesh != null)
+		mesh.dispose();
+	    evict();
+	}
+	
+	void park(Flavobjs fo) {
+	    synchronized(this) {
+		CutKey key = lent.remove(fo);
+		if((key != null) && (cutcachesz.get() > 0)) {
+		    Parked p = parked.computeIfAbsent(key, k -> new Parked());
+		    if(p.fo == null) {
+			p.fo = fo;
+			size += p.fsz = fo.memsize();
+		    }
+		}
+	    }
+	    evict();
+	}
+	
+	private void evict() {
+	    Collection<MapMesh> dead = new ArrayList<>();
+	    synchronized(this) {
+		long max = cutcachesz.get() * 1048576L;
+		for(Iterator<Parked> i = parked.values().iterator(); (size > max) && i.hasNext();) {
+		    Parked p = i.next();
+		    if(p.mesh != null) {
+			dead.add(p.mesh);
+			size -= p.msz;
+		    }
+		    if(p.fo != null)
+			size -= p.fsz;
+		    i.remove();
+		}
+	    }
+	    for(MapMesh mesh : dead)
+		mesh.dispose();
+	}
+	
+	void clear() {
+	    Collection<MapMesh> dead = new ArrayList<>();
+	    synchronized(this) {
+		for(Parked p : parked.values()) {
+		    if(p.mesh != null)
+			dead.add(p.mesh);
+		}
+		parked.clear();
+		lent.clear();
+		size = 0;
+	    }
+	    for(MapMesh mesh : dead)
+		mesh.dispose();
+	}
+	
+	synchronized String stats() {
+	    return(String.format("mesh %d/%d, flavor %d/%d hits, %d parked (%.1f MB), %.1f s saved",
+				 mhit, mhit + mmiss, fhit, fhit + fmiss, parked.size(), size / 1048576.0, saved));
+	}
+    }
+    private final CutCache cutcache = new CutCache();
+    
+    public String cutstats() {
+	return(cutcache.stats());
+    }
+    
     public class Grid implements MapSource {
 	public final Coord gc, ul;
 	public final int tiles[] = new int[cmaps.x * cmaps.y];
@@ -360,6 +818,7 @@ public class MCache implements MapSource {
 	public boolean ol[][];
 	public long id;
 	public int seq = -1;
+	private long dseq = -1;
 	public boolean removed = false;
 	private int olseq = -1;
 	private final Cut cuts[];
@@ -386,8 +845,8 @@ public class MCache implements MapSource {
 			    T prev = ret;
 			    update(ret = this.def.get());
 			    this.def = null;
-			    if((prev != null) && (prev instanceof Disposable))
-				((Disposable)prev).dispose();
+			    if(prev != null)
+				release(prev);
 			}
 		    }
 		}
@@ -402,6 +861,11 @@ public class MCache implements MapSource {
 		return(this.val);
 	    }
 	    
+	    protected void release(T val) {
+		if(val instanceof Disposable)
+		    ((Disposable)val).dispose();
+	    }
+	    
 	    public void rebuild() {
 		synchronized(this) {
 		    Defer.Future<T> prev = this.def;
@@ -422,8 +886,7 @@ public class MCache implements MapSource {
 			this.def = null;
 		    }
 		    if(this.val != null) {
-			if(this.val instanceof Disposable)
-			    ((Disposable)this.val).dispose();
+			release(this.val);
 			this.val = null;
 		    }
 		}
@@ -444,22 +907,42 @@ public class MCache implements MapSource {
 		this.cc = cc;
 		this.mesh = new Deferred<MapMesh>() {
 		    public MapMesh build() {
+			CutKey key = cutkey(cc);
+			MapMesh ret = cutcache.mesh(key);
+			if(ret != null)
+			    return(ret);
+			long st = System.nanoTime();
 			Random rnd = new Random(id);
 			rnd.setSeed(rnd.nextInt() ^ cc.x);
 			rnd.setSeed(rnd.nextInt() ^ cc.y);
-			return(MapMesh.build(MCache.this, rnd, ul.add(cc.mul(cutsz)), cutsz));
+			ret = MapMesh.build(MCache.this, rnd, ul.add(cc.mul(cutsz)), cutsz);
+			cutcache.built(key, ret, st);
+			return(ret);
 		    }
 		    public void update(MapMesh mesh) {
 			super.update(mesh);
 			olseq = -1;
 		    }
+		    protected void release(MapMesh mesh) {
+			cutcache.park(mesh);
+		    }
 		    public String message() {
 			return("Building map...");
 		    }
 		};
 		this.fo = new Deferred<Flavobjs>() {
 		    public Flavobjs build() {
-			return(makeflavor(cc));
+			CutKey key = cutkey(cc);
+			Flavobjs ret = cutcache.flavor(key);
+			if(ret != null)
+			    return(ret);
+			long st = System.nanoTime();
+			ret = makeflavor(cc);
+			cutcache.built(key, ret, st);
+			return(ret);
+		    }
+		    protected void release(Flavobjs fo) {
+			cutcache.park(fo);
 		    }
 		    public String message() {
 			return("Flavoring map...");
@@ -521,47 +1004,20 @@ public class MCache implements MapSource {
 		buf[o] = false;
 	}
 	
-	private class Flavobjs implements RenderTree.Node {
-	    final RenderTree.Node[] mats;
-	    final Gob[] all;
-	    
-	    Flavobjs(Map<NodeWrap, Collection<Gob>> flavobjs) {
-		Collection<Gob> all = new ArrayList<>();
-		RenderTree.Node[] mats = new RenderTree.Node[flavobjs.size()];
-		int i = 0;
-		for(Map.Entry<NodeWrap, Collection<Gob>> matent : flavobjs.entrySet()) {
-		    final NodeWrap mat = matent.getKey();
-		    Collection<Gob> fos = matent.getValue();
-		    final Gob[] fol = fos.toArray(new Gob[0]);
-		    all.addAll(fos);
-		    mats[i] = new RenderTree.Node() {
-			public void added(RenderTree.Slot slot) {
-			    for(Gob fo : fol)
-				slot.add(fo.placed);
-			}
-		    };
-		    if(mat != null)
-			mats[i] = mat.apply(mats[i]);
-		    i++;
+	/* Identifies the built contents of a cut by its position and
+	 * the terrain within two tiles of it, which is as far as
+	 * MapMesh and the flavor objects look. */
+	private CutKey cutkey(Coord cc) {
+	    Coord ul = this.ul.add(cc.mul(cutsz)).sub(2, 2), br = ul.add(cutsz).add(4, 4);
+	    long h = 0xcbf29ce484222325L;
+	    for(int y = ul.y; y < br.y; y++) {
+		for(int x = ul.x; x < br.x; x++) {
+		    Coord tc = Coord.of(x, y);
+		    h = (h ^ MCache.this.gettile(tc)) * 0x100000001b3L;
+		    h = (h ^ Float.floatToIntBits((float)getfz2(tc))) * 0x100000001b3L;
 		}
-		this.mats = mats;
-		this.all = all.toArray(new Gob[0]);
-	    }
-	    
-	    public void added(RenderTree.Slot slot) {
-		for(RenderTree.Node mat : mats)
-		    slot.add(mat);
-	    }
-	    
-	    void tick(double dt) {
-		for(Gob fo : all)
-		    fo.ctick(dt);
-	    }
-	    
-	    void gtick(Render g) {
-		for(Gob fo : all)
-		    fo.gtick(g);
 	    }
+	    return(new CutKey(id, gc, cc, h));
 	}
 	
 	private Flavobjs makeflavor(Coord cutc) {
@@ -696,208 +1152,30 @@ public class MCache implements MapSource {
 		cut.dispose();
 	}
 	
-	private void filltiles(Message buf) {
-	    while(true) {
-		int tileid = buf.uint8();
-		if(tileid == 255)
-		    break;
-		String resnm = buf.string();
-		int resver = buf.uint16();
-		cktileid(tileid);
-		sets[tileid] = new Resource.Spec(Resource.remote(), resnm, resver);
-	    }
-	    for(int i = 0; i < tiles.length; i++) {
-		tiles[i] = buf.uint8();
-		if(sets[tiles[i]] == null)
-		    throw(new Message.FormatError(String.format("Got undefined tile: " + tiles[i])));
-	    }
-	}
-	
-	private void filltiles2(Message buf) {
-	    int[] tileids = new int[1];
-	    int maxid = 0;
-	    while(true) {
-		int encid = buf.uint16();
-		if(encid == 65535)
-		    break;
-		maxid = Math.max(maxid, encid);
-		int tileid = buf.uint16();
-		if(encid >= tileids.length)
-		    tileids = Utils.extend(tileids, Integer.highestOneBit(encid) * 2);
-		tileids[encid] = tileid;
-		String resnm = buf.string();
-		int resver = buf.uint16();
-		cktileid(tileid);
-		sets[tileid] = new Resource.Spec(Resource.remote(), resnm, resver);
-	    }
-	    boolean lg = maxid >= 256;
-	    for(int i = 0; i < tiles.length; i++) {
-		tiles[i] = tileids[lg ? buf.uint16() : buf.uint8()];
-		if(sets[tiles[i]] == null)
-		    throw(new Message.FormatError(String.format("Got undefined tile: " + tiles[i])));
-	    }
-	}
-
-	private void filltiles3(Message buf) {
-	    int[] tileids = new int[1];
-	    int maxid = 0;
-	    while(true) {
-		int encid = buf.uint16();
-		if(encid == 65535)
-		    break;
-		maxid = Math.max(maxid, encid);
-		int tileid = buf.uint16();
-		if(encid >= tileids.length)
-		    tileids = Utils.extend(tileids, Integer.highestOneBit(encid) * 2);
-		tileids[encid] = tileid;
-		Indir<Resource> res = sess.getres(buf.uint16());
-		cktileid(tileid);
-		sets[tileid] = res;
-	    }
-	    boolean lg = maxid >= 256;
-	    for(int i = 0; i < tiles.length; i++) {
-		tiles[i] = tileids[lg ? buf.uint16() : buf.uint8()];
-		if(sets[tiles[i]] == null)
-		    throw(new Message.FormatError(String.format("Got undefined tile: " + tiles[i])));
-	    }
-	}
-	
-	private void fillz(Message buf) {
-	    int fmt = buf.uint8();
-	    if(fmt == 0) {
-		float z = buf.float32() * 11;
-		for(int i = 0; i < this.z.length; i++)
-		    this.z[i] = z;
-	    } else if(fmt == 1) {
-		float min = buf.float32() * 11, q = buf.float32() * 11;
-		for(int i = 0; i < z.length; i++)
-		    z[i] = min + (buf.uint8() * q);
-	    } else if(fmt == 2) {
-		float min = buf.float32() * 11, q = buf.float32() * 11;
-		for(int i = 0; i < z.length; i++)
-		    z[i] = min + (buf.uint16() * q);
-	    } else if(fmt == 3) {
-		for(int i = 0; i < z.length; i++)
-		    z[i] = buf.float32() * 11;
-	    } else {
-		throw(new Message.FormatError(String.format("Unknown z-map format: %d", fmt)));
-	    }
-	}
-	
-	private Indir<Resource>[] fill_plots;
-	private void decplots(Message buf) {
-	    @SuppressWarnings("unchecked") Indir<Resource>[] pt = new Indir[256];
-	    while(!buf.eom()) {
-		int pidx = buf.uint8();
-		if(pidx == 255)
-		    break;
-		pt[pidx] = sess.getres(buf.uint16());
-	    }
-	    fill_plots = pt;
+	public void fill(Message msg) {
+	    apply(new GridData(msg), dseq);
 	}
 	
-	private void fillplots(Message buf) {
-	    if(fill_plots == null)
-		return;
-	    @SuppressWarnings("unchecked") Indir<Resource>[] olids = new Indir[0];
-	    boolean[][] ols = {};
-	    while(!buf.eom()) {
-		int pidx = buf.uint8();
-		if(pidx == 255)
-		    break;
-		int fl = buf.uint8();
-		Coord c1 = Coord.of(buf.uint8(), buf.uint8());
-		Coord c2 = Coord.of(buf.uint8(), buf.uint8());
-		boolean[] mask = new boolean[(c2.x - c1.x) * (c2.y - c1.y)];
-		if((fl & 1) != 0) {
-		    for(int i = 0, l = 0, m = buf.uint8(); i < mask.length; i++) {
-			if(l >= 8) {
-			    m = buf.uint8();
-			    l = 0;
-			}
-			mask[i] = (m & 1) != 0;
-			m >>= 1;
-			l++;
-		    }
-		} else {
-		    for(int i = 0; i < mask.length; i++)
-			mask[i] = true;
-		}
-		Indir<Resource> olid = fill_plots[pidx];
-		if(olid == null)
-		    continue;
-		int oi;
-		find: {
-		    for(oi = 0; oi < olids.length; oi++) {
-			if(olids[oi] == olid)
-			    break find;
-		    }
-		    olids = Arrays.copyOf(olids, oi + 1);
-		    ols = Arrays.copyOf(ols, oi + 1);
-		    olids[oi] = olid;
-		}
-		boolean[] ol = ols[oi];
-		if(ol == null)
-		    ols[oi] = ol = new boolean[cmaps.x * cmaps.y];
-		for(int y = c1.y, mi = 0; y < c2.y; y++) {
-		    for(int x = c1.x; x < c2.x; x++) {
-			ol[x + (y * cmaps.x)] |= mask[mi++];
-		    }
-		}
+	private void apply(GridData data, long dseq) {
+	    boolean ch = false;
+	    data.define();
+	    if(data.tiles != null) {
+		ch |= !Arrays.equals(tiles, data.tiles);
+		System.arraycopy(data.tiles, 0, tiles, 0, tiles.length);
 	    }
-	    this.ols = olids;
-	    this.ol = ols;
-	    fill_plots = null;
-	}
-	
-	private void subfill(Message msg) {
-	    while(!msg.eom()) {
-		String lnm = msg.string();
-		int len = msg.uint8();
-		if((len & 0x80) != 0)
-		    len = msg.int32();
-		Message buf = new LimitMessage(msg, len);
-		switch(lnm) {
-		case "z":
-		    subfill(new ZMessage(buf));
-		    break;
-		case "m":
-		    id = buf.int64();
-		    break;
-		case "t":
-		    filltiles(buf);
-		    break;
-		case "t2":
-		    filltiles2(buf);
-		    break;
-		case "t3":
-		    filltiles3(buf);
-		    break;
-		case "h":
-		    fillz(buf);
-		    break;
-		case "pi":
-		    decplots(buf);
-		    break;
-		case "p":
-		    fillplots(buf);
-		    break;
-		}
-		buf.skip();
+	    if(data.z != null) {
+		ch |= !Arrays.equals(z, data.z);
+		System.arraycopy(data.z, 0, z, 0, z.length);
 	    }
-	}
-	
-	public void fill(Message msg) {
-	    int ver = msg.uint8();
-	    if(ver == 1) {
-		int[] prevTiles = tiles.clone();
-		float[] prevZ = z.clone();
-		subfill(msg);
-		if(!Arrays.equals(tiles, prevTiles) || !Arrays.equals(z, prevZ))
-		    invalidate();
-	    } else {
-		throw(new RuntimeException("Unknown map data version " + ver));
+	    if(data.hasid)
+		id = data.id;
+	    if(data.ols != null) {
+		ols = data.ols;
+		ol = data.ol;
 	    }
+	    if(ch)
+		invalidate();
+	    this.dseq = dseq;
 	    seq++;
 	}
 	
@@ -919,6 +1197,7 @@ public class MCache implements MapSource {
     private void resetMap(CFG<?> cfg) {
 	synchronized (MCache.this) {
 	    trimall();
+	    cutcache.clear();
 	}
     }
     
@@ -944,8 +1223,11 @@ public class MCache implements MapSource {
     
     public void invalidate(Coord cc) {
 	synchronized(req) {
-	    if(req.get(cc) == null)
-		req.put(cc, new Request());
+	    Request r = req.get(cc);
+	    if(r == null)
+		req.put(cc, new Request(dataseq.get()));
+	    else
+		r.after = dataseq.get();
 	}
     }
     
@@ -1141,28 +1423,59 @@ public class MCache implements MapSource {
     }
     
     public void mapdata2(Message msg) {
+	mapdata2(msg, dataseq.incrementAndGet(), System.nanoTime());
+    }
+    
+    private void mapdata2(Message msg, long dseq, long recv) {
 	Coord c = msg.coord();
+	GridData data = new GridData(msg);
 	Grid g = null;
 	synchronized(grids) {
 	    synchronized(req) {
-		if(req.containsKey(c)) {
+		Request r = req.get(c);
+		if((r != null) && (dseq > r.after)) {
 		    g = grids.get(c);
-		    if(g == null)
-			grids.put(c, g = new Grid(c));
-		    g.fill(msg);
-		    req.remove(c);
-		    olseq++;
-		    chseq++;
-		    gridwait.wnotify();
+		    if(g == null) {
+			g = new Grid(c);
+			g.apply(data, dseq);
+			grids.put(c, g);
+		    } else if(dseq > g.dseq) {
+			g.apply(data, dseq);
+		    } else {
+			g = null;
+		    }
+		    if(g != null) {
+			req.remove(c);
+			olseq++;
+			chseq++;
+			gridwait.wnotify();
+		    }
 		}
 	    }
 	}
+	decstats.done(recv, g != null);
 	if(CFG.STORE_MAP.get() && g != null) {
 	    MapDumper.dump(this, g);
 	}
 	lastupdate = System.currentTimeMillis();
     }
     
+    private void decode(Message msg) {
+	long dseq = dataseq.incrementAndGet(), recv = System.nanoTime();
+	decstats.queued();
+	Defer.later(() -> {
+		try {
+		    mapdata2(msg, dseq, recv);
+		} catch(RuntimeException e) {
+		    decstats.done(recv, false);
+		    new Warning(e, "could not decode map data").issue();
+		} finally {
+		    decstats.dequeued();
+		}
+		return(null);
+	    });
+    }
+    
     public void mapdata(Message msg) {
 	long now = System.currentTimeMillis();
 	lastupdate = now;
@@ -1178,7 +1491,7 @@ public class MCache implements MapSource {
 	    fragbuf.add(msg.bytes(), off);
 	    fragbuf.last = now;
 	    if(fragbuf.done()) {
-		mapdata2(fragbuf.msg());
+		decode(fragbuf.msg());
 		fragbufs.remove(pktid);
 	    }
 	    
@@ -1191,6 +1504,39 @@ public class MCache implements MapSource {
 	    }
 	}
     }
+    
+    private static class DecodeStats {
+	private int pending, grids, dropped;
+	private double last, avg, max;
+	
+	synchronized void queued() {
+	    pending++;
+	}
+	
+	synchronized void dequeued() {
+	    pending--;
+	}
+	
+	synchronized void done(long recv, boolean used) {
+	    if(!used) {
+		dropped++;
+		return;
+	    }
+	    double lat = (System.nanoTime() - recv) * 1e-6;
+	    last = lat;
+	    avg = (grids == 0) ? lat : ((avg * 0.9) + (lat * 0.1));
+	    max = Math.max(max, lat);
+	    grids++;
+	}
+	
+	public synchronized String toString() {
+	    return(String.format("%,d grids, %d pending, %d dropped, ready in %.1f ms (avg %.1f, max %.1f)", grids, pending, dropped, last, avg, max));
+	}
+    }
+    
+    public String decstats() {
+	return(decstats.toString());
+    }
 
     public Resource tilesetr(int i) {
 	Indir<Resource>[] sets = this.sets;
@@ -1269,7 +1615,7 @@ public class MCache implements MapSource {
     public void request(Coord gc) {
 	synchronized(req) {
 	    if(!req.containsKey(gc))
-		req.put(Coord.of(gc), new Request());
+		req.put(Coord.of(gc), new Request(dataseq.get()));
 	}
     }
     
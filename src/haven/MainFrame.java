@@ -468,9 +468,15 @@ public class MainFrame extends java.awt.Frame implements Console.Directory {
 	UI.Runner fun = null;
 	if(Bootstrap.replay.get() != null) {
 	    try {
-		Transport.Playback player = new Transport.Playback(Files.newBufferedReader(Bootstrap.replay.get(), Utils.utf8));
-		fun = new RemoteUI(new Session(player, new Session.User("Playback")));
-		player.start();
+		if(Recording.isrec(Bootstrap.replay.get())) {
+		    Recording.Replay player = new Recording.Replay(Bootstrap.replay.get());
+		    fun = new RemoteUI(new Session(player, new Session.User("Playback")));
+		    player.start();
+		} else {
+		    Transport.Playback player = new Transport.Playback(Files.newBufferedReader(Bootstrap.replay.get(), Utils.utf8));
+		    fun = new RemoteUI(new Session(player, new Session.User("Playback")));
+		    player.start();
+		}
 	    } catch(IOException e) {
 		System.err.println("hafen: " + e.getMessage());
 		System.exit(1);
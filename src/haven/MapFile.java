@@ -27,6 +27,8 @@
 package haven;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
 import java.util.concurrent.locks.*;
 import java.util.function.Function;
 import java.io.*;
@@ -51,6 +53,7 @@ public class MapFile {
     public static boolean debug = false;
     public final ResCache store;
     public final String filename;
+    private final WriteBehindCache wstore;
     public final Collection<Long> knownsegs = new HashSet<>();
     public final Collection<Marker> markers = new ArrayList<>();
     public final Map<Long, SMarker> smarkers = new HashMap<>();
@@ -62,6 +65,7 @@ public class MapFile {
     public MapFile(ResCache store, String filename) {
 	this.store = store;
 	this.filename = filename;
+	this.wstore = WriteBehindCache.get(store, mangle("wal"));
     }
 
     private void checklock() {
@@ -80,10 +84,17 @@ public class MapFile {
 	return(buf.toString());
     }
     public InputStream sfetch(String ctl, Object... args) throws IOException {
-	return(store.fetch(mangle(String.format(ctl, args))));
+	return(wstore.fetch(mangle(String.format(ctl, args))));
     }
+    /* Stores are written out in the background, so that they can be
+     * made while holding the lock without stalling readers on the
+     * disk. */
     public OutputStream sstore(String ctl, Object... args) throws IOException {
-	return(store.store(mangle(String.format(ctl, args))));
+	return(wstore.store(mangle(String.format(ctl, args))));
+    }
+
+    public String storestats() {
+	return(wstore.stats());
     }
 
     public static void warn(Throwable cause, String msg) {
@@ -236,6 +247,12 @@ public class MapFile {
     private final Collection<Pair<MCache, Collection<MCache.Grid>>> updqueue = new HashSet<>();
     private final Collection<Segment> dirty = new HashSet<>();
     private boolean gdirty = false;
+    /* Grids included into each segment since its zoomgrids were
+     * last built, which are built in the background once the
+     * segment has been left alone for zdelay milliseconds. */
+    private final Map<Segment, Collection<Coord>> zdirty = new HashMap<>();
+    private long zlast = 0;
+    private static final long zdelay = 2000;
     private class Processor extends HackThread {
 	Processor() {
 	    super("Mapfile processor");
@@ -258,12 +275,20 @@ public class MapFile {
 			} else if(gdirty) {
 			    task = locked(MapFile.this::save, lock.readLock());
 			    gdirty = false;
+			} else if(!zdirty.isEmpty() && (now - zlast >= zdelay)) {
+			    Segment seg = zdirty.keySet().iterator().next();
+			    Collection<Coord> dc = zdirty.remove(seg);
+			    task = () -> zoomdirty(seg, dc);
 			} else {
-			    if(now - last > 10000) {
-				processor = null;
-				return;
+			    if(zdirty.isEmpty()) {
+				if(now - last > 10000) {
+				    processor = null;
+				    return;
+				}
+				procmon.wait(5000);
+			    } else {
+				procmon.wait(Math.max(zdelay - (now - zlast), 1));
 			    }
-			    procmon.wait(5000);
 			    continue;
 			}
 		    }
@@ -1065,11 +1090,24 @@ public class MapFile {
 	    if((lvl < 1) || ((sc.x & ((1 << lvl) - 1)) != 0) || ((sc.y & ((1 << lvl) - 1)) != 0))
 		throw(new IllegalArgumentException(String.format("%s %s", sc, lvl)));
 	    DataGrid[] lower = new DataGrid[4];
-	    boolean any = false;
-	    long maxmtime = 0;
 	    for(int i = 0; i < 4; i++) {
 		int x = i % 2, y = i / 2;
 		lower[i] = fetchg(file, seg, lvl - 1, sc.add(x << (lvl - 1), y << (lvl - 1)));
+	    }
+	    ZoomGrid ret = combine(seg.id, lvl, sc, lower);
+	    if(ret != null)
+		ret.save(file);
+	    return(ret);
+	}
+
+	/* Computes the zoomgrid at the given level and coordinates
+	 * from the four grids under it, in row-major order, of which
+	 * missing ones may be null. Returns null if all are missing. */
+	public static ZoomGrid combine(long seg, int lvl, Coord sc, DataGrid[] lower) {
+	    lower = Arrays.copyOf(lower, 4);
+	    boolean any = false;
+	    long maxmtime = 0;
+	    for(int i = 0; i < 4; i++) {
 		if(lower[i] != null) {
 		    any = true;
 		    maxmtime = Math.max(maxmtime, lower[i].mtime);
@@ -1161,9 +1199,8 @@ public class MapFile {
 		    }
 		}
 	    }
-	    ZoomGrid ret = new ZoomGrid(seg.id, lvl, sc, infos, tiles, zmap, maxmtime);
+	    ZoomGrid ret = new ZoomGrid(seg, lvl, sc, infos, tiles, zmap, maxmtime);
 	    zoomols(ret.ols, lower);
-	    ret.save(file);
 	    return(ret);
 	}
 
@@ -1319,12 +1356,326 @@ public class MapFile {
 	}
     }
 
+    /* Builds the zoomgrid pyramid of a segment level by level from
+     * the bottom, computing all the zoomgrids of each level in
+     * parallel. Given the grid coordinates that have changed, only
+     * the zoomgrids above them are rebuilt; the others are fetched
+     * as they are. Stops without writing anything further if the
+     * segment changes while it runs, as its zoomgrids will then
+     * have been invalidated again and are built on demand. */
+    public static class ZoomBuilder {
+	public final MapFile file;
+	public final Segment seg;
+	public volatile int lvl = 0, nlvl = 0, ldone = 0, ltotal = 0, built = 0;
+	public volatile boolean done = false, aborted = false;
+	private long start = 0, end = 0;
+
+	public ZoomBuilder(Segment seg) {
+	    this.file = seg.file();
+	    this.seg = seg;
+	}
+
+	private static Coord zc(Coord c, int lvl) {
+	    return(new Coord(c.x & ~((1 << lvl) - 1), c.y & ~((1 << lvl) - 1)));
+	}
+
+	/* Passing null as dirty rebuilds the whole pyramid. */
+	public void build(Collection<Coord> dirty) {
+	    start = System.nanoTime();
+	    try {
+		build0(dirty);
+	    } finally {
+		end = System.nanoTime();
+		done = true;
+	    }
+	}
+
+	private void build0(Collection<Coord> dirty) {
+	    Map<Coord, Long> grids;
+	    int gen;
+	    file.lock.readLock().lock();
+	    try {
+		grids = new HashMap<>(seg.map);
+		gen = seg.zgen;
+	    } finally {
+		file.lock.readLock().unlock();
+	    }
+	    if(grids.isEmpty())
+		return;
+	    Coord ul = null, br = null;
+	    for(Coord c : grids.keySet()) {
+		ul = (ul == null) ? c : Coord.of(Math.min(ul.x, c.x), Math.min(ul.y, c.y));
+		br = (br == null) ? c : Coord.of(Math.max(br.x, c.x), Math.max(br.y, c.y));
+	    }
+	    /* The topmost level is the lowest one at which a single
+	     * zoomgrid covers the whole segment. */
+	    int top = 1;
+	    while(!zc(ul, top).equals(zc(br, top)))
+		top++;
+	    nlvl = top;
+	    Set<Coord> cur = new HashSet<>();
+	    for(Coord c : (dirty == null) ? grids.keySet() : dirty) {
+		if((dirty == null) || grids.containsKey(c))
+		    cur.add(c);
+	    }
+	    Map<Coord, DataGrid> prev = null;
+	    for(int lvl = 1; (lvl <= top) && !cur.isEmpty(); lvl++) {
+		int clvl = lvl;
+		Set<Coord> below = cur;
+		Map<Coord, DataGrid> lower = prev;
+		Set<Coord> next = new HashSet<>();
+		for(Coord c : below)
+		    next.add(zc(c, clvl));
+		Map<Coord, DataGrid> built = new ConcurrentHashMap<>();
+		this.lvl = clvl;
+		this.ltotal = next.size();
+		AtomicInteger ndone = new AtomicInteger();
+		AtomicBoolean stale = new AtomicBoolean();
+		next.parallelStream().forEach(zc -> {
+			if(stale.get())
+			    return;
+			DataGrid[] sub = new DataGrid[4];
+			for(int i = 0; i < 4; i++) {
+			    Coord sc = zc.add((i % 2) << (clvl - 1), (i / 2) << (clvl - 1));
+			    if(below.contains(sc)) {
+				sub[i] = (lower == null) ? grid(grids, sc) : lower.get(sc);
+			    } else if(clvl == 1) {
+				sub[i] = grid(grids, sc);
+			    } else {
+				file.lock.readLock().lock();
+				try {
+				    sub[i] = ZoomGrid.fetch(file, seg, clvl - 1, sc);
+				} finally {
+				    file.lock.readLock().unlock();
+				}
+			    }
+			}
+			ZoomGrid zg = ZoomGrid.combine(seg.id, clvl, zc, sub);
+			file.lock.readLock().lock();
+			try {
+			    if(seg.zgen != gen) {
+				stale.set(true);
+				return;
+			    }
+			    if(zg != null) {
+				zg.save(file);
+			    } else {
+				try(OutputStream fp = file.sstore("zgrid-%x-%d-%d-%d", seg.id, clvl, zc.x, zc.y)) {
+				} catch(IOException e) {
+				    throw(new StreamMessage.IOError(e));
+				}
+			    }
+			} finally {
+			    file.lock.readLock().unlock();
+			}
+			if(zg != null)
+			    built.put(zc, zg);
+			ldone = ndone.incrementAndGet();
+		    });
+		if(stale.get()) {
+		    aborted = true;
+		    return;
+		}
+		this.built += built.size();
+		prev = built;
+		cur = next;
+	    }
+	}
+
+	private DataGrid grid(Map<Coord, Long> grids, Coord sc) {
+	    Long id = grids.get(sc);
+	    if(id == null)
+		return(null);
+	    return(Grid.load(file, id));
+	}
+
+	public double time() {
+	    return(((done ? end : System.nanoTime()) - start) * 1e-9);
+	}
+
+	public String toString() {
+	    if(done)
+		return(String.format("%x: %s %,d zoomgrids, %d levels, %.1f s", seg.id, aborted ? "aborted after" : "built", built, nlvl, time()));
+	    return(String.format("%x: level %d/%d, %,d/%,d, %,d built, %.1f s", seg.id, lvl, nlvl, ldone, ltotal, built, time()));
+	}
+
+	/* Heights are quantized when stored, which the parallel
+	 * builder skips for the levels it keeps in memory, so they
+	 * may differ by the quantization error per level. */
+	private static boolean same(DataGrid a, DataGrid b) {
+	    for(int i = 0; i < a.tiles.length; i++) {
+		if(!a.tilesets[a.tiles[i]].res.name.equals(b.tilesets[b.tiles[i]].res.name))
+		    return(false);
+		if(Math.abs(a.zmap[i] - b.zmap[i]) > 0.1f)
+		    return(false);
+	    }
+	    return(true);
+	}
+
+	/* Compares building every zoom level of a synthetic segment of
+	 * n-by-n grids by fetching each zoomgrid in turn, as the map
+	 * window does, against the parallel builder. */
+	public static void main(String[] args) {
+	    int n = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+	    Random rnd = new Random(1);
+	    TileInfo[] sets = {
+		new TileInfo(new Resource.Saved(null, "gfx/tiles/grass", 1), 0),
+		new TileInfo(new Resource.Saved(null, "gfx/tiles/dirt", 1), 1),
+		new TileInfo(new Resource.Saved(null, "gfx/tiles/water", 1), 2),
+	    };
+	    Grid[] grids = new Grid[n * n];
+	    for(int i = 0; i < grids.length; i++) {
+		int[] tiles = new int[cmaps.x * cmaps.y];
+		float[] zmap = new float[cmaps.x * cmaps.y];
+		for(int o = 0; o < tiles.length; o++) {
+		    tiles[o] = rnd.nextInt(sets.length);
+		    /* Real heights are quantized, which keeps savez() fast */
+		    zmap[o] = rnd.nextInt(1000) * 0.1f;
+		}
+		grids[i] = new Grid(i + 1, sets, tiles, zmap, i);
+	    }
+	    MapFile[] files = new MapFile[2];
+	    Segment[] segs = new Segment[2];
+	    for(int f = 0; f < 2; f++) {
+		Map<String, byte[]> data = new ConcurrentHashMap<>();
+		MapFile file = files[f] = new MapFile(new ResCache() {
+			public OutputStream store(String name) {
+			    return(new ByteArrayOutputStream() {
+				    public void close() {data.put(name, toByteArray());}
+				});
+			}
+			public InputStream fetch(String name) throws IOException {
+			    byte[] d = data.get(name);
+			    if(d == null)
+				throw(new FileNotFoundException(name));
+			    return(new ByteArrayInputStream(d));
+			}
+		    }, "");
+		Segment seg = segs[f] = file.new Segment(1);
+		file.lock.writeLock().lock();
+		try {
+		    for(int i = 0; i < grids.length; i++) {
+			grids[i].save(file);
+			seg.include(grids[i], Coord.of(i % n, i / n));
+		    }
+		} finally {
+		    file.lock.writeLock().unlock();
+		}
+	    }
+	    int top = 1;
+	    while((1 << top) < n)
+		top++;
+	    long st = System.nanoTime();
+	    int nz = 0;
+	    for(int lvl = 1; lvl <= top; lvl++) {
+		for(int y = 0; y < n; y += 1 << lvl) {
+		    for(int x = 0; x < n; x += 1 << lvl) {
+			files[0].lock.readLock().lock();
+			try {
+			    if(ZoomGrid.fetch(files[0], segs[0], lvl, Coord.of(x, y)) != null)
+				nz++;
+			} finally {
+			    files[0].lock.readLock().unlock();
+			}
+		    }
+		}
+	    }
+	    double seq = (System.nanoTime() - st) * 1e-9;
+	    System.out.printf("sequential: %,d zoomgrids in %.2f s\n", nz, seq);
+	    ZoomBuilder b = files[1].buildzoom(segs[1], null);
+	    System.out.printf("parallel:   %s (%.1fx, %d threads)\n", b, seq / b.time(), java.util.concurrent.ForkJoinPool.getCommonPoolParallelism() + 1);
+	    int bad = 0;
+	    for(int lvl = 1; lvl <= top; lvl++) {
+		for(int y = 0; y < n; y += 1 << lvl) {
+		    for(int x = 0; x < n; x += 1 << lvl) {
+			ZoomGrid a = ZoomGrid.load(files[0], 1, lvl, Coord.of(x, y));
+			ZoomGrid c = ZoomGrid.load(files[1], 1, lvl, Coord.of(x, y));
+			if(!same(a, c))
+			    bad++;
+		    }
+		}
+	    }
+	    System.out.printf("mismatches: %d\n", bad);
+	    /* Change one grid and rebuild only what is above it. */
+	    Coord dc = Coord.of(n / 2, n / 2);
+	    files[1].lock.writeLock().lock();
+	    try {
+		Grid ng = new Grid(grids.length + 1, sets, grids[0].tiles, grids[0].zmap, 0);
+		ng.save(files[1]);
+		segs[1].include(ng, dc);
+	    } finally {
+		files[1].lock.writeLock().unlock();
+	    }
+	    b = files[1].buildzoom(segs[1], Collections.singleton(dc));
+	    System.out.printf("incremental: %s\n", b);
+	    System.exit(0);
+	}
+    }
+
+    /* The most recently started zoomgrid build, for display */
+    public volatile ZoomBuilder zoombuild = null;
+
+    public ZoomBuilder buildzoom(long id, Collection<Coord> dirty) {
+	Segment seg;
+	lock.readLock().lock();
+	try {
+	    seg = segments.get(id);
+	} finally {
+	    lock.readLock().unlock();
+	}
+	if(seg == null)
+	    return(null);
+	return(buildzoom(seg, dirty));
+    }
+
+    public ZoomBuilder buildzoom(Segment seg, Collection<Coord> dirty) {
+	synchronized(procmon) {
+	    Collection<Coord> pending = zdirty.get(seg);
+	    if(pending != null) {
+		if(dirty != null)
+		    pending.removeAll(dirty);
+		if((dirty == null) || pending.isEmpty())
+		    zdirty.remove(seg);
+	    }
+	}
+	ZoomBuilder ret = new ZoomBuilder(seg);
+	zoombuild = ret;
+	ret.build(dirty);
+	if(debug) Debug.log.printf("mapfile: zoomgrids %s\n", ret);
+	if(ret.aborted && (dirty != null))
+	    zdirtied(seg, dirty);
+	return(ret);
+    }
+
+    private void zdirtied(Segment seg, Collection<Coord> sc) {
+	synchronized(procmon) {
+	    zdirty.computeIfAbsent(seg, k -> new HashSet<>()).addAll(sc);
+	    zlast = System.currentTimeMillis();
+	    process();
+	}
+    }
+
+    private void zoomdirty(Segment seg, Collection<Coord> dirty) {
+	lock.readLock().lock();
+	try {
+	    /* Merged into another segment since. */
+	    if(!knownsegs.contains(seg.id))
+		return;
+	} finally {
+	    lock.readLock().unlock();
+	}
+	buildzoom(seg, dirty);
+    }
+
     public class Segment {
 	public final long id;
 	private final BMap<Coord, Long> map = new HashBMap<>();
 	private final Map<Long, Cached> cache = new CacheMap<>(CacheMap.RefType.WEAK);
 	private final Map<Coord, ByCoord> ccache = new CacheMap<>(CacheMap.RefType.WEAK);
 	private final Map<ZoomCoord, ByZCoord> zcache = new CacheMap<>(CacheMap.RefType.WEAK);
+	/* Incremented whenever a grid is included, so that zoomgrids
+	 * computed from older data can be recognized. */
+	private volatile int zgen = 0;
 
 	public Segment(long id) {
 	    this.id = id;
@@ -1440,6 +1791,8 @@ public class MapFile {
 
 	private void include(long id, Coord sc) {
 	    map.put(sc, id);
+	    zgen++;
+	    zdirtied(this, Collections.singleton(sc));
 	    int zl = ZoomGrid.inval(MapFile.this, this.id, sc);
 	    synchronized(zcache) {
 		/* XXX? Not sure how nice it is to iterate through the
@@ -2063,6 +2416,7 @@ public class MapFile {
 
     private class Importer {
 	final Map<Long, ImportedSegment> segs = new HashMap<>();
+	final Map<Long, Collection<Coord>> touched = new HashMap<>();
 	final ImportFilter filter;
 	Segment curseg;
 
@@ -2151,6 +2505,12 @@ public class MapFile {
 			    Coord noff = seg.offs.get(info.seg);
 			    Coord soff = seg.noff.sub(noff);
 			    merge(nseg, curseg, soff);
+			    Collection<Coord> moved = touched.remove(curseg.id);
+			    if(moved != null) {
+				Collection<Coord> dst = touched.computeIfAbsent(nseg.id, k -> new HashSet<>());
+				for(Coord c : moved)
+				    dst.add(c.sub(soff));
+			    }
 			    seg.nseg = nseg.id;
 			    seg.noff = noff;
 			    rseg = curseg = nseg;
@@ -2160,6 +2520,7 @@ public class MapFile {
 		    if(info == null) {
 			rseg.include(rgrid, nc);
 			gridinfo.put(rgrid.id, new GridInfo(rgrid.id, rseg.id, nc));
+			touched.computeIfAbsent(rseg.id, k -> new HashSet<>()).add(nc);
 		    }
 		} finally {
 		    lock.writeLock().unlock();
@@ -2260,6 +2621,12 @@ public class MapFile {
 		throw(e);
 	    }
 	    flush();
+	    /* Build the zoom levels of everything imported now, rather
+	     * than having the map window do it a grid at a time. */
+	    for(Map.Entry<Long, Collection<Coord>> ent : touched.entrySet()) {
+		buildzoom(ent.getKey(), ent.getValue());
+		Utils.checkirq();
+	    }
 	}
     }
 
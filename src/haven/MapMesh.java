@@ -781,6 +781,21 @@ public class MapMesh implements RenderTree.Node, Disposable {
 	    p.dispose();
     }
 
+    /* Rough estimate of the memory held by this cut, including the
+     * ground surface kept around for getsurf(). */
+    public long memsize() {
+	long ret = (sz.x + 3) * (sz.y + 3) * 128L;
+	for(Disposable p : dparts) {
+	    if(p instanceof FastMesh) {
+		FastMesh m = (FastMesh)p;
+		ret += m.indb.capacity() * 2L;
+		for(VertexBuf.AttribData a : m.vert.bufs)
+		    ret += (long)a.size() * a.elfmt.size();
+	    }
+	}
+	return(ret);
+    }
+
     public void added(RenderTree.Slot slot) {
 	for(RenderTree.Node e : extras)
 	    slot.add(e);
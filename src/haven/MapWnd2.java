@@ -82,12 +82,37 @@ public class MapWnd2 extends MapWnd {
 	}
     }
 
+    private long gobver = -1;
+    private Object gobloc = null;
+    
     public void updateGobMarkers() {
+	OCache oc = ui.sess.glob.oc;
 	Map<Long, GobMarker> markers;
 	synchronized (this.markers) {
+	    if(this.markers.isEmpty()) {
+		gobver = oc.version();
+		return;
+	    }
 	    markers = new HashMap<>(this.markers);
 	}
-	markers.values().forEach(GobMarker::update);
+	//only markers whose gobs changed need updating, unless the session location moved
+	Set<GobMarker> changed = new HashSet<>();
+	long ver = (view.sessloc != gobloc) ? -1 : oc.changes(gobver, (type, gob) -> {
+	    GobMarker marker = markers.get(gob.id);
+	    if(marker != null) {changed.add(marker);}
+	});
+	//moves are not journalled, so check the positions directly
+	for(GobMarker marker : markers.values()) {
+	    if(marker.moved()) {changed.add(marker);}
+	}
+	gobloc = view.sessloc;
+	if(ver < 0) {
+	    gobver = oc.version();
+	    markers.values().forEach(GobMarker::update);
+	} else {
+	    gobver = ver;
+	    changed.forEach(GobMarker::update);
+	}
     }
 
     public void track(Gob gob) {
@@ -98,6 +123,7 @@ public class MapWnd2 extends MapWnd {
 	    } else {
 		marker = new GobMarker(gob);
 		markers.put(gob.id, marker);
+		gobver = -1;
 	    }
 	}
 	ui.gui.track(marker);
@@ -147,6 +173,7 @@ public class MapWnd2 extends MapWnd {
 	public final long gobid;
 	public final Indir<Resource> res;
 	private Coord2d rc = null;
+	private Coord2d grc = null;
 	public final Color col;
 
 	public GobMarker(Gob gob) {
@@ -173,12 +200,19 @@ public class MapWnd2 extends MapWnd {
 	    if(gob != null) {
 		seg = view.sessloc.seg.id;
 		try {
-		    rc = gob.rc.add(view.sessloc.tc.mul(tilesz));
+		    Coord2d grc = gob.rc;
+		    rc = grc.add(view.sessloc.tc.mul(tilesz));
 		    tc = rc.floor(tilesz);
+		    this.grc = grc;
 		} catch (Exception ignore) {}
 	    }
 	}
 
+	private boolean moved() {
+	    Gob gob = ui.sess.glob.oc.getgob(gobid);
+	    return((gob != null) && !Objects.equals(gob.rc, grc));
+	}
+
 	public Coord2d rc() {
 	    try {
 		return rc.sub(view.sessloc.tc.mul(tilesz));
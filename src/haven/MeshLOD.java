@@ -0,0 +1,120 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+import haven.render.*;
+
+/*
+ * Chooses a level of detail for every object from how large it
+ * appears on screen, which follows the camera distance and zoom.
+ * Resource meshes carry reduced versions of themselves, built at
+ * load time (see FastMesh.mklods), which they draw when the level
+ * in their state asks for it.
+ *
+ * Since most objects are asleep and not ticked, the levels are
+ * refreshed by scanning a slice of all objects every frame. Changes
+ * make draw lists redraw the meshes of the object, so they only
+ * happen on crossing a threshold by some margin, and only so many
+ * of them are made per frame.
+ */
+public class MeshLOD {
+    private static volatile int quality = CFG.MESH_LOD.get();
+    static {
+	CFG.MESH_LOD.observe(cfg -> quality = cfg.get());
+    }
+    /* On-screen size of a tile, in pixels, below which objects drop
+     * to level one, for each quality setting. Level two starts at
+     * half of it. */
+    private static final float[] THRESHOLD = {0, 12, 18, 26};
+    private static final float HYSTERESIS = 1.2f;
+    public static final int MINSCAN = 64, SCANDIV = 16, MAXCHANGES = 128;
+    public final Glob glob;
+    private ViewClip view = null;
+    private int budget;
+    private long changes;
+
+    public MeshLOD(Glob glob) {
+	this.glob = glob;
+    }
+
+    /* Updates the view for this frame. */
+    public void viewupd() {
+	budget = MAXCHANGES;
+	view = ViewClip.of(glob);
+    }
+
+    /* How many objects to look at this frame. */
+    public int slice(int nlive) {
+	return(Math.min(nlive, Math.max(MINSCAN, nlive / SCANDIV)));
+    }
+
+    public int level(Gob gob, int cur) {
+	int q = quality;
+	ViewClip view = this.view;
+	if((q <= 0) || (view == null))
+	    return(0);
+	Coord3f c;
+	try {
+	    c = gob.getc();
+	} catch(Loading l) {
+	    return(cur);
+	}
+	HomoCoord4f cc = view.project(c);
+	if(!ViewClip.visible(cc))
+	    return(cur);
+	float px = view.pixels(cc, (float)MCache.tilesz.x);
+	float t1 = THRESHOLD[Math.min(q, THRESHOLD.length - 1)], t2 = t1 * 0.5f;
+	int lvl = (px < t2) ? 2 : ((px < t1) ? 1 : 0);
+	if(lvl < cur) {
+	    /* Coming closer; only go back up past a margin. */
+	    float t = (cur > 1) ? t2 : t1;
+	    if(px < t * HYSTERESIS)
+		return(cur);
+	}
+	return(lvl);
+    }
+
+    public void update(Gob[] gobs, int n) {
+	for(int i = 0; (i < n) && (budget > 0); i++) {
+	    Gob gob = gobs[i];
+	    int cur = gob.detail();
+	    int lvl = level(gob, cur);
+	    if(lvl != cur) {
+		gob.detail(lvl);
+		budget--;
+		changes++;
+	    }
+	}
+    }
+
+    public String stats() {
+	long full = Rendered.Detail.full.get(), reduced = Rendered.Detail.reduced.get();
+	return(String.format("quality %d, %,d changes, %,d draws reduced, %,d of %,d triangles saved",
+			     quality, changes, Rendered.Detail.draws.get(), full - reduced, full));
+    }
+}
@@ -990,6 +990,12 @@ public class MiniMap extends Widget {
 	}
     }
 
+    /* Objects that had a GobIcon as of iconver, kept up to date from
+     * the object cache's change journal. */
+    private final Set<Gob> iconic = new HashSet<>();
+    private OCache iconoc = null;
+    private long iconver = -1;
+
     public List<DisplayIcon> findicons(Collection<? extends DisplayIcon> prev) {
 	if((ui.sess == null) || (iconconf == null))
 	    return(Collections.emptyList());
@@ -1001,22 +1007,42 @@ public class MiniMap extends Widget {
 	}
 	List<DisplayIcon> ret = new ArrayList<>();
 	OCache oc = ui.sess.glob.oc;
-	synchronized(oc) {
-	    for(Gob gob : oc) {
-		try {
-		    GobIcon icon = gob.getattr(GobIcon.class);
-		    if(icon != null) {
-			GobIcon.Setting conf = iconconf.get(icon.icon());
-			if((conf != null) && conf.show && GobIconCategoryList.GobCategory.categorize(conf).enabled()) {
-			    DisplayIcon disp = pmap.remove(icon);
-			    if(disp == null)
-				disp = new DisplayIcon(icon, conf);
-			    ret.add(disp);
-			}
-		    }
-		} catch(Loading l) {}
+	if(oc != iconoc) {
+	    iconic.clear();
+	    iconver = -1;
+	    iconoc = oc;
+	}
+	long ver = oc.changes(iconver, (type, gob) -> {
+		if((type != OCache.CH_REMOVED) && (gob.getattr(GobIcon.class) != null))
+		    iconic.add(gob);
+		else
+		    iconic.remove(gob);
+	    });
+	if(ver < 0) {
+	    iconic.clear();
+	    synchronized(oc) {
+		ver = oc.version();
+		for(Gob gob : oc) {
+		    if(gob.getattr(GobIcon.class) != null)
+			iconic.add(gob);
+		}
 	    }
 	}
+	iconver = ver;
+	for(Gob gob : iconic) {
+	    try {
+		GobIcon icon = gob.getattr(GobIcon.class);
+		if(icon != null) {
+		    GobIcon.Setting conf = iconconf.get(icon.icon());
+		    if((conf != null) && conf.show && GobIconCategoryList.GobCategory.categorize(conf).enabled()) {
+			DisplayIcon disp = pmap.remove(icon);
+			if(disp == null)
+			    disp = new DisplayIcon(icon, conf);
+			ret.add(disp);
+		    }
+		}
+	    } catch(Loading l) {}
+	}
 	for(DisplayIcon disp : pmap.values()) {
 	    if(disp.force())
 		ret.add(disp);
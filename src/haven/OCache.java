@@ -29,6 +29,7 @@ package haven;
 import java.util.*;
 import java.util.List;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.lang.annotation.*;
 import java.lang.reflect.*;
 import haven.render.Render;
@@ -66,11 +67,31 @@ public class OCache implements Iterable<Gob> {
     private MultiMap<Long, Gob> objs = new HashMultiMap<Long, Gob>();
     private Glob glob;
     private final Collection<ChangeCallback> cbs = new WeakList<ChangeCallback>();
-    private List<Gob> gobSnapshot = new ArrayList<>();
-    private boolean gobSnapshotDirty = true;
+    private final List<Gob> live = new ArrayList<>();
+    private final List<Gob> active = new ArrayList<>();
+    private Gob[] activesnap = null;
+    private final TickStats tickstats = new TickStats();
+    public final AnimJobs anim;
+    public final MeshLOD lod;
+    private Gob[] lodscan = new Gob[0];
+    private int lodpos = 0;
     public final PathVisualizer paths = new PathVisualizer();
     private final List<Disposable> disposables = new LinkedList<>();
     
+    /* Set by profiling tools to collect time spent applying
+     * each attribute type; left null otherwise. */
+    public static volatile DeltaTimes timing = null;
+
+    public static class DeltaTimes {
+	public final java.util.concurrent.atomic.AtomicLongArray time = new java.util.concurrent.atomic.AtomicLongArray(256);
+	public final java.util.concurrent.atomic.AtomicLongArray count = new java.util.concurrent.atomic.AtomicLongArray(256);
+
+	public void add(int type, long ns) {
+	    time.addAndGet(type, ns);
+	    count.incrementAndGet(type);
+	}
+    }
+
     public interface ChangeCallback {
 	public void added(Gob ob);
 	public void removed(Gob ob);
@@ -78,6 +99,8 @@ public class OCache implements Iterable<Gob> {
     
     public OCache(Glob glob) {
 	this.glob = glob;
+	this.anim = new AnimJobs(glob);
+	this.lod = new MeshLOD(glob);
 	
 	callback(Gob.CHANGED);
 	disposables.add(CFG.DISPLAY_GOB_HITBOX.observe(cfg -> gobAction(Gob::hitboxUpdated)));
@@ -139,6 +162,122 @@ public class OCache implements Iterable<Gob> {
     }
     
     public synchronized Stream<Gob> stream() {return Stream.of(objs.values().toArray(new Gob[0]));}
+
+    /* Uniform grid over the object positions (Gob.rc) of all
+     * network objects, in cells the size of a map cut. It has its
+     * own lock, which is always taken last, so it may be updated
+     * from under a gob's lock. */
+    private static final Coord2d cellsz = MCache.tilesz.mul(MCache.cutsz.x, MCache.cutsz.y);
+    private final Map<Coord, List<Gob>> cells = new HashMap<>();
+
+    private void index(Gob ob) {
+	synchronized(cells) {
+	    Coord cc = ob.rc.floor(cellsz);
+	    if(cc.equals(ob.icell))
+		return;
+	    if(ob.icell != null)
+		unindex(ob);
+	    cells.computeIfAbsent(cc, k -> new ArrayList<>()).add(ob);
+	    ob.icell = cc;
+	}
+    }
+
+    private void unindex(Gob ob) {
+	synchronized(cells) {
+	    if(ob.icell == null)
+		return;
+	    List<Gob> cell = cells.get(ob.icell);
+	    if(cell != null) {
+		cell.remove(ob);
+		if(cell.isEmpty())
+		    cells.remove(ob.icell);
+	    }
+	    ob.icell = null;
+	}
+    }
+
+    /* Called by Gob.move. */
+    void moved(Gob ob) {
+	if(ob.icell != null)
+	    index(ob);
+    }
+
+    private List<Gob> cellscan(Coord2d ul, Coord2d br) {
+	Coord cul = ul.floor(cellsz), cbr = br.floor(cellsz);
+	List<Gob> ret = new ArrayList<>();
+	synchronized(cells) {
+	    if((long)(cbr.x - cul.x + 1) * (cbr.y - cul.y + 1) > cells.size()) {
+		for(Map.Entry<Coord, List<Gob>> ent : cells.entrySet()) {
+		    if(ent.getKey().isect(cul, cbr.sub(cul).add(1, 1)))
+			ret.addAll(ent.getValue());
+		}
+	    } else {
+		for(int y = cul.y; y <= cbr.y; y++) {
+		    for(int x = cul.x; x <= cbr.x; x++) {
+			List<Gob> cell = cells.get(Coord.of(x, y));
+			if(cell != null)
+			    ret.addAll(cell);
+		    }
+		}
+	    }
+	}
+	return(ret);
+    }
+
+    /* Returns all network objects whose position lies in the
+     * rectangle spanned by ul and br, inclusive. */
+    public List<Gob> within(Coord2d ul, Coord2d br) {
+	List<Gob> ret = cellscan(ul, br);
+	for(Iterator<Gob> i = ret.iterator(); i.hasNext();) {
+	    Coord2d c = i.next().rc;
+	    if((c.x < ul.x) || (c.y < ul.y) || (c.x > br.x) || (c.y > br.y))
+		i.remove();
+	}
+	return(ret);
+    }
+
+    /* Returns all network objects within distance r of c. */
+    public List<Gob> within(Coord2d c, double r) {
+	List<Gob> ret = cellscan(c.sub(r, r), c.add(r, r));
+	double r2 = r * r;
+	for(Iterator<Gob> i = ret.iterator(); i.hasNext();) {
+	    Coord2d gc = i.next().rc;
+	    double dx = gc.x - c.x, dy = gc.y - c.y;
+	    if((dx * dx) + (dy * dy) > r2)
+		i.remove();
+	}
+	return(ret);
+    }
+
+    /* Returns up to limit network objects within distance r of c
+     * that match the filter, closest first. */
+    public List<Gob> nearest(Coord2d c, double r, int limit, Predicate<Gob> filter) {
+	List<Gob> ret = within(c, r);
+	if(filter != null)
+	    ret.removeIf(filter.negate());
+	ret.sort(Comparator.comparingDouble(g -> g.rc.dist(c)));
+	return((ret.size() > limit) ? ret.subList(0, limit) : ret);
+    }
+
+    /* Returns the closest network object within distance r of c that
+     * matches the filter, searching outward from c a ring of cells
+     * at a time. */
+    public Gob nearest(Coord2d c, double r, Predicate<Gob> filter) {
+	Gob best = null;
+	double bestd = r;
+	for(double ir = 0; ir <= r; ir += Math.min(cellsz.x, cellsz.y)) {
+	    for(Gob g : within(c, Math.min(ir + Math.min(cellsz.x, cellsz.y), r))) {
+		double d = g.rc.dist(c);
+		if((d <= bestd) && ((filter == null) || filter.test(g))) {
+		    best = g;
+		    bestd = d;
+		}
+	    }
+	    if((best != null) && (bestd <= ir + Math.min(cellsz.x, cellsz.y)))
+		break;
+	}
+	return(best);
+    }
     
     public synchronized void callback(ChangeCallback cb) {
 	cbs.add(cb);
@@ -147,15 +286,230 @@ public class OCache implements Iterable<Gob> {
     public synchronized void uncallback(ChangeCallback cb) {
 	cbs.remove(cb);
     }
+
+    /* Copied for each dispatch rather than cached, since a cached
+     * array would keep weakly registered callbacks alive. */
+    private ChangeCallback[] callbacks() {
+	return(cbs.toArray(new ChangeCallback[0]));
+    }
+
+    /* All objects, network and local, are kept in one list, from
+     * which the active list below is fed. Each gob knows its index
+     * in both, so that removal is constant-time. */
+    private void liveadd(Gob ob) {
+	if(ob.liveidx >= 0)
+	    return;
+	ob.liveidx = live.size();
+	live.add(ob);
+	journal(CH_ADDED, ob);
+	wake(ob);
+    }
+
+    private void liverem(Gob ob) {
+	int i = ob.liveidx;
+	if((i < 0) || (i >= live.size()) || (live.get(i) != ob))
+	    return;
+	Gob last = live.remove(live.size() - 1);
+	if(last != ob) {
+	    live.set(i, last);
+	    last.liveidx = i;
+	}
+	synchronized(jgob) {
+	    ob.liveidx = -1;
+	    journal(CH_REMOVED, ob);
+	}
+	synchronized(active) {
+	    actrem(ob);
+	}
+    }
+
+    /* Only objects that may still be doing something are ticked.
+     * An object that has been idle for SLEEPTIME of consecutive
+     * ticks is dropped from the active list, and goes back on it
+     * as soon as anything about it changes. Every wakeup bumps the
+     * object's wakeseq, so that an object that is woken while it is
+     * being ticked does not go to sleep afterwards. */
+    public static final double SLEEPTIME = 1.0;
+
+    private void actrem(Gob ob) {
+	int i = ob.actidx;
+	if((i < 0) || (i >= active.size()) || (active.get(i) != ob))
+	    return;
+	Gob last = active.remove(active.size() - 1);
+	if(last != ob) {
+	    active.set(i, last);
+	    last.actidx = i;
+	}
+	ob.actidx = -1;
+	activesnap = null;
+    }
+
+    void wake(Gob ob) {
+	synchronized(active) {
+	    ob.wakeseq++;
+	    if((ob.actidx >= 0) || (ob.liveidx < 0))
+		return;
+	    ob.actidx = active.size();
+	    active.add(ob);
+	    activesnap = null;
+	    tickstats.woken++;
+	}
+    }
+
+    private void sleep(Gob ob, int seq) {
+	synchronized(active) {
+	    if(ob.wakeseq != seq)
+		return;
+	    actrem(ob);
+	    tickstats.slept++;
+	}
+    }
+
+    private Gob[] active() {
+	synchronized(active) {
+	    if(activesnap == null)
+		activesnap = active.toArray(new Gob[0]);
+	    return(activesnap);
+	}
+    }
+
+    private void ctick(Gob g, double dt) {
+	synchronized(g) {
+	    int seq = g.wakeseq;
+	    if(g.liveidx < 0) {
+		sleep(g, seq);
+		return;
+	    }
+	    if(seq != g.tickseq) {
+		g.tickseq = seq;
+		g.idletime = 0;
+	    }
+	    g.ctick(dt);
+	    if(g.idle()) {
+		if((g.idletime += dt) >= SLEEPTIME)
+		    sleep(g, seq);
+	    } else {
+		g.idletime = 0;
+	    }
+	}
+    }
+
+    /* Sleeping objects are not ticked, so level-of-detail changes
+     * are found by going over a slice of all objects each frame. */
+    private void lodtick() {
+	lod.viewupd();
+	int n;
+	synchronized(this) {
+	    n = lod.slice(live.size());
+	    if(lodscan.length < n)
+		lodscan = new Gob[n];
+	    for(int i = 0; i < n; i++) {
+		if(lodpos >= live.size())
+		    lodpos = 0;
+		lodscan[i] = live.get(lodpos++);
+	    }
+	}
+	lod.update(lodscan, n);
+	Arrays.fill(lodscan, 0, n, null);
+    }
+
+    public static class TickStats {
+	public int active, total;
+	public long woken, slept;
+	public double time;
+
+	public String toString() {
+	    return(String.format("%,d/%,d active, %.2f ms, %,d woken, %,d slept", active, total, time * 1000, woken, slept));
+	}
+    }
+
+    public TickStats tickstats() {
+	return(tickstats);
+    }
+
+    /* The change journal records every addition, removal and update
+     * of an object under a new version number, so that consumers
+     * can keep the last version they have seen and ask only for what
+     * has happened since. Only the most recent entries are kept;
+     * consumers that have fallen further behind than that have to
+     * rescan. */
+    public static final int CH_ADDED = 0, CH_REMOVED = 1, CH_CHANGED = 2;
+    private static final int JOURNALSZ = 4096;
+    private final Gob[] jgob = new Gob[JOURNALSZ];
+    private final byte[] jtype = new byte[JOURNALSZ];
+    private long jver = 0;
+
+    public interface Journal {
+	public void change(int type, Gob gob);
+    }
+
+    private void journal(int type, Gob ob) {
+	synchronized(jgob) {
+	    int i = (int)(++jver % JOURNALSZ);
+	    jgob[i] = ob;
+	    jtype[i] = (byte)type;
+	}
+    }
+
+    /* Called by Gob when it has been updated. Changes aren't made
+     * under the OCache monitor, so liveness is checked under the
+     * journal lock instead, which liverem() also holds when it
+     * journals the removal; a change can therefore never be
+     * journalled after its object's removal. */
+    void changed(Gob ob) {
+	boolean live;
+	synchronized(jgob) {
+	    if(live = (ob.liveidx >= 0))
+		journal(CH_CHANGED, ob);
+	}
+	if(live)
+	    wake(ob);
+    }
+
+    /* Additions and removals are journalled under the OCache
+     * monitor, so a consumer that reads the version and rescans while
+     * holding it gets a scan consistent with that version. */
+    public long version() {
+	synchronized(jgob) {
+	    return(jver);
+	}
+    }
+
+    /* Reports, in order, every change made after the given version,
+     * and returns the current version. If changes since then have
+     * already been dropped from the journal, nothing is reported and
+     * -1 is returned. */
+    public long changes(long since, Journal cb) {
+	Gob[] gobs;
+	byte[] types;
+	long ver;
+	synchronized(jgob) {
+	    ver = jver;
+	    if((since < 0) || (since > ver) || (ver - since > JOURNALSZ))
+		return(-1);
+	    int n = (int)(ver - since);
+	    gobs = new Gob[n];
+	    types = new byte[n];
+	    for(int o = 0; o < n; o++) {
+		int i = (int)((since + 1 + o) % JOURNALSZ);
+		gobs[o] = jgob[i];
+		types[o] = jtype[i];
+	    }
+	}
+	for(int i = 0; i < gobs.length; i++)
+	    cb.change(types[i], gobs[i]);
+	return(ver);
+    }
     
     public void add(Gob ob) {
 	synchronized(ob) {
-	    Collection<ChangeCallback> cbs;
+	    ChangeCallback[] cbs;
 	    synchronized(this) {
-		cbs = new ArrayList<>(this.cbs);
+		cbs = callbacks();
 		objs.put(ob.id, ob);
-		gobSnapshotDirty = true;
+		liveadd(ob);
 	    }
+	    index(ob);
 	    for(ChangeCallback cb : cbs) {
 		cb.added(ob);
 	    }
@@ -164,16 +518,18 @@ public class OCache implements Iterable<Gob> {
     
     public void remove(Gob ob) {
 	Gob old;
-	Collection<ChangeCallback> cbs;
+	ChangeCallback[] cbs;
 	synchronized(this) {
 	    old = objs.remove(ob.id, ob);
 	    if((old != null) && (old != ob))
 		throw(new RuntimeException(String.format("object %d removed wrong object", ob.id)));
-	    cbs = new ArrayList<>(this.cbs);
-	    gobSnapshotDirty = true;
+	    cbs = callbacks();
+	    if(old != null)
+		liverem(old);
 	}
 	if(old != null) {
 	    synchronized(old) {
+		unindex(old);
 		old.removed();
 		for(ChangeCallback cb : cbs)
 		    cb.removed(old);
@@ -181,29 +537,26 @@ public class OCache implements Iterable<Gob> {
 	}
     }
     
-    private List<Gob> getGobSnapshot() {
-	synchronized(this) {
-	    if(gobSnapshotDirty) {
-		gobSnapshot = new ArrayList<>();
-		for(Gob g : this)
-		    gobSnapshot.add(g);
-		gobSnapshotDirty = false;
-	    }
-	    return gobSnapshot;
-	}
-    }
-
     public void ctick(double dt) {
-	List<Gob> copy = getGobSnapshot();
-	Consumer<Gob> task = g -> {
-	    synchronized(g) {
-		g.ctick(dt);
+	long st = System.nanoTime();
+	anim.sync();
+	lodtick();
+	Gob[] copy = active();
+	try {
+	    if(!Config.par.get()) {
+		for(Gob g : copy)
+		    ctick(g, dt);
+	    } else {
+		Arrays.stream(copy).parallel().forEach(g -> ctick(g, dt));
 	    }
-	};
-	if(!Config.par.get())
-	    copy.forEach(task);
-	else
-	    copy.parallelStream().forEach(task);
+	} finally {
+	    anim.kick();
+	}
+	synchronized(this) {
+	    tickstats.total = live.size();
+	}
+	tickstats.active = copy.length;
+	tickstats.time = (tickstats.time * 0.95) + ((System.nanoTime() - st) * 1e-9 * 0.05);
 	paths.tick(dt);
 	if(glob.sess.ui != null && glob.sess.ui.gui != null && glob.sess.ui.gui.mapfile != null) {
 	    glob.sess.ui.gui.mapfile.updateGobMarkers();
@@ -211,17 +564,17 @@ public class OCache implements Iterable<Gob> {
     }
     
     public void gtick(Render g) {
-	List<Gob> copy = getGobSnapshot();
+	Gob[] copy = active();
 	if(!Config.par.get()) {
-	    copy.forEach(ob -> {
+	    for(Gob ob : copy) {
 		synchronized(ob) {
 		    ob.gtick(g);
 		}
-	    });
+	    }
 	} else {
 	    Collection<Render> subs = new ArrayList<>();
 	    ThreadLocal<Render> subv = new ThreadLocal<>();
-	    copy.parallelStream().forEach(ob -> {
+	    Arrays.stream(copy).parallel().forEach(ob -> {
 		Render sub = subv.get();
 		if(sub == null) {
 		    sub = g.env().render();
@@ -248,10 +601,12 @@ public class OCache implements Iterable<Gob> {
     }
     
     public void ladd(Collection<Gob> gob) {
-	Collection<ChangeCallback> cbs;
+	ChangeCallback[] cbs;
 	synchronized(this) {
-	    cbs = new ArrayList<>(this.cbs);
+	    cbs = callbacks();
 	    local.add(gob);
+	    for(Gob g : gob)
+		liveadd(g);
 	}
 	for(Gob g : gob) {
 	    synchronized(g) {
@@ -262,10 +617,12 @@ public class OCache implements Iterable<Gob> {
     }
     
     public void lrem(Collection<Gob> gob) {
-	Collection<ChangeCallback> cbs;
+	ChangeCallback[] cbs;
 	synchronized(this) {
-	    cbs = new ArrayList<>(this.cbs);
+	    cbs = callbacks();
 	    local.remove(gob);
+	    for(Gob g : gob)
+		liverem(g);
 	}
 	for(Gob g : gob) {
 	    synchronized(g) {
@@ -471,9 +828,13 @@ public class OCache implements Iterable<Gob> {
 			if((d = pending.peek()) == null)
 			    break;
 		    }
+		    DeltaTimes tm = timing;
+		    long st = (tm == null) ? 0 : System.nanoTime();
 		    synchronized(gob) {
 			deltas.get(d.type).apply(gob, d.clone());
 		    }
+		    if(tm != null)
+			tm.add(d.type, System.nanoTime() - st);
 		    synchronized(this) {
 			if((pending.poll()) != d)
 			    throw(new RuntimeException());
@@ -544,7 +905,7 @@ public class OCache implements Iterable<Gob> {
 	public int fl, frame;
 	public int initframe;
 	public long id;
-	public final List<AttrDelta> attrs = new LinkedList<>();
+	public final List<AttrDelta> attrs = new ArrayList<>(4);
 	public boolean rem = false;
 	
 	public ObjDelta(int fl, long id, int frame) {
@@ -578,6 +939,11 @@ public class OCache implements Iterable<Gob> {
 	    this.old = ((od.fl & 4) != 0);
 	}
 
+	public AttrDelta(ObjDelta od, int type, byte[] blob, int off, int len) {
+	    super(type, blob, off, len);
+	    this.old = ((od.fl & 4) != 0);
+	}
+
 	public AttrDelta(ObjDelta od, int type, Message blob, int len) {
 	    this(od, type, blob.bytes(len));
 	}
@@ -610,4 +976,11 @@ public class OCache implements Iterable<Gob> {
 	    return(ng);
 	}
     }
+
+    public void receive(List<ObjDelta> deltas) {
+	synchronized(netinfo) {
+	    for(ObjDelta delta : deltas)
+		receive(delta);
+	}
+    }
 }
@@ -0,0 +1,538 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.net.*;
+import static haven.Utils.pj;
+
+/* A cache that keeps its entries in large append-only pack files
+ * rather than one file per entry as HashDirCache does. Where each
+ * entry lives is kept in an in-memory index, which is built by
+ * scanning the packs when the cache is opened, and entries are read
+ * straight out of read-only mappings of the packs. Replacing or
+ * removing an entry only appends a new record, so packs that have
+ * become mostly garbage are compacted in the background by copying
+ * their remaining live records to the newest pack. Several clients
+ * may share the same cache directory; appends are serialized by a
+ * lock file, and each client picks up the others' records when it
+ * misses in its index. */
+public class PackCache implements ResCache {
+    public static final Config.Variable<Boolean> enabled = Config.Variable.propb("haven.packcache", true);
+    public static long packsize = 64L << 20;
+    private static final int MAGIC = 0x4850414b;
+    private static final int T_DATA = 0, T_RM = 1;
+    private final Path base, lockfile, migrated;
+    private final String pfx;
+    public final URI id;
+    private final Map<String, Entry> index = new HashMap<>();
+    private final TreeMap<Integer, Pack> packs = new TreeMap<>();
+    private HashDirCache legacy = null;
+    private boolean compacting = false;
+
+    private static class Entry {
+	final Pack pack;
+	final boolean rm;
+	final long off, rlen;
+	final int len;
+
+	Entry(Pack pack, boolean rm, long off, int len, long rlen) {
+	    this.pack = pack;
+	    this.rm = rm;
+	    this.off = off;
+	    this.len = len;
+	    this.rlen = rlen;
+	}
+    }
+    /* Passed to append() as the expected entry to only write records
+     * for names not already in the cache. */
+    private static final Entry ABSENT = new Entry(null, false, 0, 0, 0);
+
+    private class Pack {
+	final int seq;
+	final Path path;
+	final FileChannel fp;
+	MappedByteBuffer map = null;
+	long end = 0, live = 0, dead = 0;
+
+	Pack(int seq, boolean creat) throws IOException {
+	    this.seq = seq;
+	    this.path = packpath(seq);
+	    if(creat)
+		this.fp = Utils.ioretry(() -> FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+	    else
+		this.fp = Utils.ioretry(() -> FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+	}
+
+	ByteBuffer view(long off, int len) throws IOException {
+	    if((map == null) || (map.capacity() < off + len))
+		map = fp.map(FileChannel.MapMode.READ_ONLY, 0, fp.size());
+	    ByteBuffer ret = map.duplicate();
+	    ret.limit((int)(off + len));
+	    ret.position((int)off);
+	    return(ret.slice());
+	}
+
+	void scan() throws IOException {
+	    long size = fp.size();
+	    if(size <= end)
+		return;
+	    ByteBuffer buf = view(0, (int)size);
+	    while(size - end >= 11) {
+		buf.position((int)end);
+		if(buf.getInt() != MAGIC)
+		    break;
+		int type = buf.get();
+		int nlen = buf.getShort() & 0xffff;
+		if(buf.remaining() < nlen + 4)
+		    break;
+		byte[] nm = new byte[nlen];
+		buf.get(nm);
+		int len = buf.getInt();
+		if((len < 0) || (buf.remaining() < len))
+		    break;
+		long off = buf.position();
+		index(new String(nm, Utils.utf8), new Entry(this, type == T_RM, off, len, off + len - end));
+		end = off + len;
+	    }
+	}
+
+	void close() throws IOException {
+	    map = null;
+	    fp.close();
+	}
+
+	public String toString() {
+	    return(String.format("#<pack %d: %d bytes, %d live, %d dead>", seq, end, live, dead));
+	}
+    }
+
+    private PackCache(URI id) throws IOException {
+	this.base = HashDirCache.findbase();
+	this.id = id;
+	long h = 0;
+	String ids = id.toString();
+	for(int i = 0; i < ids.length(); i++)
+	    h = (h * 31) + ids.charAt(i);
+	this.pfx = String.format("pack-%016x", h);
+	this.lockfile = pj(base, pfx + ".lock");
+	this.migrated = pj(base, pfx + ".migrated");
+	try(DirectoryStream<Path> dir = Files.newDirectoryStream(base, pfx + ".*.pack")) {
+	    for(Path p : dir) {
+		String fn = p.getFileName().toString();
+		try {
+		    int seq = Integer.parseInt(fn.substring(pfx.length() + 1, fn.length() - 5));
+		    packs.put(seq, new Pack(seq, false));
+		} catch(NumberFormatException e) {
+		}
+	    }
+	}
+	for(Pack p : packs.values())
+	    p.scan();
+	if(!Files.exists(migrated)) {
+	    legacy = HashDirCache.get(id);
+	    Thread th = new HackThread(this::migrate, "Cache migrator");
+	    th.setDaemon(true);
+	    th.start();
+	}
+    }
+
+    private static final Map<URI, PackCache> current = new CacheMap<>();
+    public static PackCache get(URI id) throws IOException {
+	synchronized(current) {
+	    PackCache ret = current.get(id);
+	    if(ret == null)
+		current.put(id, ret = new PackCache(id));
+	    return(ret);
+	}
+    }
+
+    public static PackCache get(String id) throws IOException {
+	return(get(Utils.uri("urn:haven-cache:" + id)));
+    }
+
+    private Path packpath(int seq) {
+	return(pj(base, String.format("%s.%d.pack", pfx, seq)));
+    }
+
+    /* Must be called with the cache monitor held. */
+    private void index(String name, Entry e) {
+	Entry prev = index.put(name, e);
+	if(prev != null) {
+	    prev.pack.live -= prev.rlen;
+	    prev.pack.dead += prev.rlen;
+	}
+	e.pack.live += e.rlen;
+    }
+
+    /* Picks up records appended by other processes sharing the same
+     * directory. Must be called with the cache monitor held. */
+    private void refresh() throws IOException {
+	for(int next = packs.isEmpty() ? 0 : packs.lastKey() + 1; Files.exists(packpath(next)); next++)
+	    packs.put(next, new Pack(next, false));
+	for(Pack p : packs.values())
+	    p.scan();
+    }
+
+    private static void writefully(FileChannel fp, ByteBuffer buf, long pos) throws IOException {
+	while(buf.hasRemaining())
+	    pos += fp.write(buf, pos);
+    }
+
+    /* If expect is non-null, the record is only written if the index
+     * still maps the name to that entry (or to nothing, for ABSENT)
+     * once other processes' records have been picked up. */
+    private boolean append(String name, int type, byte[] data, int off, int len, Entry expect) throws IOException {
+	byte[] nm = name.getBytes(Utils.utf8);
+	if(nm.length > 0xffff)
+	    throw(new IOException("cache entry name too long: " + name));
+	ByteBuffer head = ByteBuffer.allocate(11 + nm.length);
+	head.putInt(MAGIC).put((byte)type).putShort((short)nm.length).put(nm).putInt(len);
+	head.flip();
+	long rlen = head.remaining() + len;
+	synchronized(this) {
+	    try(LockedFile lk = LockedFile.lock(lockfile)) {
+		refresh();
+		if(expect != null) {
+		    Entry cur = index.get(name);
+		    if((expect == ABSENT) ? (cur != null) : (cur != expect))
+			return(false);
+		}
+		Pack p = packs.isEmpty() ? null : packs.lastEntry().getValue();
+		if((p == null) || ((p.end > 0) && (p.end + rlen > packsize))) {
+		    int seq = (p == null) ? 0 : p.seq + 1;
+		    packs.put(seq, p = new Pack(seq, true));
+		}
+		/* Anything past the last complete record can only be
+		 * left over from a crash in the middle of an append. */
+		if(p.fp.size() > p.end)
+		    p.fp.truncate(p.end);
+		long rec = p.end;
+		writefully(p.fp, head, rec);
+		writefully(p.fp, ByteBuffer.wrap(data, off, len), rec + head.limit());
+		p.end = rec + rlen;
+		index(name, new Entry(p, type == T_RM, rec + head.limit(), len, rlen));
+	    }
+	}
+	ckcompact();
+	return(true);
+    }
+
+    public OutputStream store(String name) throws IOException {
+	return(new ByteArrayOutputStream() {
+		private boolean closed = false;
+
+		public void close() throws IOException {
+		    if(!closed) {
+			closed = true;
+			append(name, T_DATA, buf, 0, count, null);
+		    }
+		}
+	    });
+    }
+
+    public ByteBuffer fetchbuf(String name) throws IOException {
+	HashDirCache legacy;
+	synchronized(this) {
+	    Entry e = index.get(name);
+	    if(e == null) {
+		refresh();
+		e = index.get(name);
+	    }
+	    if(e != null) {
+		if(e.rm)
+		    throw(new FileNotFoundException(name));
+		return(e.pack.view(e.off, e.len).asReadOnlyBuffer());
+	    }
+	    legacy = this.legacy;
+	}
+	if(legacy != null)
+	    return(ByteBuffer.wrap(migrate(legacy, name, false)).asReadOnlyBuffer());
+	throw(new FileNotFoundException(name));
+    }
+
+    public InputStream fetch(String name) throws IOException {
+	return(new BufferStream(fetchbuf(name)));
+    }
+
+    public void remove(String name) throws IOException {
+	Entry e;
+	synchronized(this) {
+	    e = index.get(name);
+	    if((e == null) || e.rm)
+		throw(new FileNotFoundException(name));
+	}
+	/* If someone stored the name in the meantime, their data is
+	 * newer than this removal and is left alone. */
+	append(name, T_RM, new byte[0], 0, 0, e);
+    }
+
+    private static class BufferStream extends InputStream {
+	private final ByteBuffer buf;
+
+	BufferStream(ByteBuffer buf) {
+	    this.buf = buf;
+	}
+
+	public int read() {
+	    return(buf.hasRemaining() ? (buf.get() & 0xff) : -1);
+	}
+
+	public int read(byte[] dst, int off, int len) {
+	    if(!buf.hasRemaining())
+		return((len == 0) ? 0 : -1);
+	    len = Math.min(len, buf.remaining());
+	    buf.get(dst, off, len);
+	    return(len);
+	}
+
+	public long skip(long n) {
+	    n = Math.max(Math.min(n, buf.remaining()), 0);
+	    buf.position(buf.position() + (int)n);
+	    return(n);
+	}
+
+	public int available() {
+	    return(buf.remaining());
+	}
+    }
+
+    /* Only the migration thread removes the old files, so as not to
+     * pull them out from under its directory listing. */
+    private byte[] migrate(HashDirCache legacy, String name, boolean rm) throws IOException {
+	byte[] data;
+	try(InputStream in = legacy.fetch(name)) {
+	    data = Utils.readall(in);
+	}
+	append(name, T_DATA, data, 0, data.length, ABSENT);
+	if(rm)
+	    legacy.remove(name);
+	return(data);
+    }
+
+    private void migrate() {
+	int n = 0;
+	try {
+	    for(Iterator<String> i = legacy.list(); i.hasNext();) {
+		try {
+		    migrate(legacy, i.next(), true);
+		    n++;
+		} catch(FileNotFoundException e) {
+		}
+	    }
+	    try {
+		Files.createFile(migrated);
+	    } catch(FileAlreadyExistsException e) {
+	    }
+	    synchronized(this) {
+		legacy = null;
+	    }
+	    if(n > 0)
+		Warning.warn("migrated %d entries from %s to %s", n, HashDirCache.get(id), this);
+	} catch(IOException | RuntimeException e) {
+	    new Warning(e, "migrating " + this).issue();
+	}
+    }
+
+    private Pack victim() {
+	Pack cur = packs.lastEntry().getValue();
+	for(Pack p : packs.values()) {
+	    if((p != cur) && (p.live < p.dead))
+		return(p);
+	}
+	return(null);
+    }
+
+    private void ckcompact() {
+	synchronized(this) {
+	    if(compacting || (victim() == null))
+		return;
+	    compacting = true;
+	}
+	Thread th = new HackThread(this::compact, "Cache compactor");
+	th.setDaemon(true);
+	th.start();
+    }
+
+    private void compact(Pack p) throws IOException {
+	List<Map.Entry<String, Entry>> copy = new ArrayList<>();
+	synchronized(this) {
+	    for(Map.Entry<String, Entry> ent : index.entrySet()) {
+		if(ent.getValue().pack == p)
+		    copy.add(new AbstractMap.SimpleEntry<>(ent.getKey(), ent.getValue()));
+	    }
+	}
+	for(Map.Entry<String, Entry> ent : copy) {
+	    String name = ent.getKey();
+	    Entry e = ent.getValue();
+	    byte[] data;
+	    if(e.rm) {
+		/* A removal only needs to be kept for as long as an
+		 * older pack might still hold data for the name. */
+		synchronized(this) {
+		    try(LockedFile lk = LockedFile.lock(lockfile)) {
+			refresh();
+			if(index.get(name) != e)
+			    continue;
+			if(packs.firstKey() == p.seq) {
+			    index.remove(name);
+			    p.live -= e.rlen;
+			    p.dead += e.rlen;
+			    continue;
+			}
+		    }
+		}
+		data = new byte[0];
+	    } else {
+		synchronized(this) {
+		    if(index.get(name) != e)
+			continue;
+		    data = new byte[e.len];
+		    p.view(e.off, e.len).get(data);
+		}
+	    }
+	    append(name, e.rm ? T_RM : T_DATA, data, 0, data.length, e);
+	}
+	synchronized(this) {
+	    try(LockedFile lk = LockedFile.lock(lockfile)) {
+		refresh();
+		if(p.live > 0)
+		    return;
+		packs.remove(p.seq);
+		p.close();
+		try {
+		    Files.deleteIfExists(p.path);
+		} catch(IOException e) {
+		    /* Most likely still mapped by another process on
+		     * Windows. Whoever opens the cache next will find
+		     * all of its records superseded anyway. */
+		}
+	    }
+	}
+    }
+
+    private void compact() {
+	try {
+	    while(true) {
+		Pack p;
+		synchronized(this) {
+		    if((p = victim()) == null)
+			break;
+		}
+		compact(p);
+	    }
+	} catch(IOException e) {
+	    new Warning(e, "compacting " + this).issue();
+	} finally {
+	    synchronized(this) {
+		compacting = false;
+	    }
+	}
+    }
+
+    public String toString() {
+	return("PackCache(" + id + ")");
+    }
+
+    public static ResCache create() {
+	try {
+	    if(cachebase.get() != null)
+		return(get(cachebase.get()));
+	    if(Resource.resurl.get() != null)
+		return(get(Resource.resurl.get()));
+	    return(get("default"));
+	} catch(Exception e) {
+	    return(null);
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	if(args.length < 2) {
+	    System.err.println("usage: PackCache ID-URI COMMAND [ARGS...]");
+	    System.exit(1);
+	}
+	PackCache cache;
+	if(args[0].indexOf(':') >= 0)
+	    cache = get(URI.create(args[0]));
+	else
+	    cache = get(args[0]);
+	switch(args[1]) {
+	case "ls":
+	    synchronized(cache) {
+		for(Map.Entry<String, Entry> ent : cache.index.entrySet()) {
+		    if(!ent.getValue().rm)
+			System.out.println(ent.getKey());
+		}
+	    }
+	    break;
+	case "packs":
+	    synchronized(cache) {
+		for(Pack p : cache.packs.values())
+		    System.out.println(p);
+	    }
+	    break;
+	case "cat":
+	    ByteBuffer buf;
+	    try {
+		buf = cache.fetchbuf(args[2]);
+	    } catch(FileNotFoundException e) {
+		System.err.printf("%s: not found\n", args[2]);
+		System.exit(1);
+		break;
+	    }
+	    WritableByteChannel out = Channels.newChannel(System.out);
+	    while(buf.hasRemaining())
+		out.write(buf);
+	    System.out.flush();
+	    break;
+	case "rm":
+	    for(int i = 2; i < args.length; i++) {
+		try {
+		    cache.remove(args[i]);
+		} catch(FileNotFoundException e) {
+		    System.err.printf("%s: not found\n", args[i]);
+		}
+	    }
+	    break;
+	case "compact":
+	    synchronized(cache) {
+		if(cache.compacting)
+		    break;
+		cache.compacting = true;
+	    }
+	    cache.compact();
+	    break;
+	default:
+	    System.err.printf("%s: no such command\n", args[1]);
+	    break;
+	}
+    }
+}
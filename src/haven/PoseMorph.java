@@ -93,9 +93,9 @@ public class PoseMorph {
     private int lastseq;
     public Morphed state() {
 	if((last == null) || (lastseq != pose.seq)) {
-	    float[][] offs = new float[bperm.length][16];
+	    float[] offs = new float[bperm.length * 16];
 	    for(int i = 0; i < bperm.length; i++)
-		pose.boneoff(bperm[i], offs[i]);
+		pose.boneoff(bperm[i], offs, i * 16);
 	    last = new Morphed(offs);
 	    lastseq = pose.seq;
 	}
@@ -175,13 +175,15 @@ public class PoseMorph {
     }
 
     public static class Morphed extends State {
-	public final float[][] offs;
+	/* Bone matrices packed back to back, as uploaded. */
+	public final float[] offs;
 	private final ShaderMacro shader;
 
-	public Morphed(float[][] offs) {
+	public Morphed(float[] offs) {
 	    this.offs = offs;
-	    int nb = Integer.highestOneBit(offs.length);
-	    nb = Math.max(4, (nb == offs.length) ? nb : nb << 1);
+	    int n = offs.length / 16;
+	    int nb = Integer.highestOneBit(n);
+	    nb = Math.max(4, (nb == n) ? nb : nb << 1);
 	    this.shader = Shader.get(nb);
 	}
 
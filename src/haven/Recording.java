@@ -0,0 +1,529 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.util.zip.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+
+/* Binary session recordings. A recording is a signature followed by
+ * deflated blocks of events, each block headed by the time span it
+ * covers and its sizes, and is ended by an index of where each block
+ * starts and at what time. A recording that was never properly
+ * closed lacks the index, but it can still be rebuilt by walking the
+ * block headers. */
+public class Recording {
+    public static final byte[] SIG = "Haven recording 2".getBytes(Utils.ascii);
+    public static final Config.Variable<Double> speed = Config.Variable.propf("haven.replayspeed", 1.0);
+    public static final Config.Variable<Double> start = Config.Variable.propf("haven.replaystart", 0.0);
+    public static final Config.Variable<Boolean> skip = Config.Variable.propb("haven.replayskip", false);
+    public static final int EV_CLOSE = 0, EV_RMSG = 1, EV_OBJD = 2, EV_MAP = 3;
+    private static final int B_DATA = 1, B_INDEX = 2;
+    private static final int IDXMAGIC = 0x48524958;
+    private static final int BLOCKHEAD = 1 + 8 + 8 + 4 + 4 + 4;
+
+    public static boolean isrec(Path path) throws IOException {
+	try(InputStream in = Files.newInputStream(path)) {
+	    byte[] buf = new byte[SIG.length];
+	    int n = 0;
+	    while(n < buf.length) {
+		int rv = in.read(buf, n, buf.length - n);
+		if(rv < 0)
+		    return(false);
+		n += rv;
+	    }
+	    return(Arrays.equals(buf, SIG));
+	}
+    }
+
+    public static class Recorder implements Transport.Callback {
+	public static int blocksize = 1 << 18;
+	public static double blockspan = 5.0;
+	private final OutputStream out;
+	private final double epoch;
+	private MessageBuf buf = new MessageBuf();
+	private final List<double[]> index = new ArrayList<>();
+	private final Deflater zlib = new Deflater(Deflater.BEST_SPEED);
+	private long off = 0;
+	private double bstart = -1, last;
+	private int nev = 0;
+	private boolean closed = false;
+
+	public Recorder(OutputStream out) {
+	    this.out = out;
+	    this.epoch = Utils.rtime();
+	    write(SIG, SIG.length);
+	}
+
+	public Recorder(Path path) throws IOException {
+	    this(new BufferedOutputStream(Files.newOutputStream(path)));
+	}
+
+	private void write(byte[] data, int len) {
+	    try {
+		out.write(data, 0, len);
+	    } catch(IOException e) {
+		throw(new RuntimeException(e));
+	    }
+	    off += len;
+	}
+
+	private void flushblock() {
+	    if(nev == 0)
+		return;
+	    byte[] raw = buf.fin();
+	    zlib.reset();
+	    zlib.setInput(raw);
+	    zlib.finish();
+	    ByteArrayOutputStream comp = new ByteArrayOutputStream(raw.length / 4);
+	    byte[] cbuf = new byte[65536];
+	    while(!zlib.finished())
+		comp.write(cbuf, 0, zlib.deflate(cbuf));
+	    index.add(new double[] {bstart, off});
+	    MessageBuf head = new MessageBuf();
+	    head.adduint8(B_DATA).addfloat64(bstart).addfloat64(last).addint32(nev).addint32(raw.length).addint32(comp.size());
+	    write(head.fin(), BLOCKHEAD);
+	    write(comp.toByteArray(), comp.size());
+	    buf = new MessageBuf();
+	    nev = 0;
+	    bstart = -1;
+	}
+
+	private MessageBuf event(int type) {
+	    double now = Utils.rtime() - epoch;
+	    if((nev > 0) && ((buf.size() >= blocksize) || (now - bstart >= blockspan)))
+		flushblock();
+	    if(nev == 0)
+		bstart = now;
+	    last = now;
+	    nev++;
+	    buf.adduint8(type).addint32((int)Math.round((now - bstart) * 1e6));
+	    return(buf);
+	}
+
+	public void closed() {
+	    synchronized(this) {
+		if(closed)
+		    return;
+		event(EV_CLOSE);
+		flushblock();
+		MessageBuf idx = new MessageBuf();
+		idx.adduint8(B_INDEX).addint32(index.size());
+		for(double[] ent : index)
+		    idx.addfloat64(ent[0]).addint64((long)ent[1]);
+		idx.addint64(off).addint32(IDXMAGIC);
+		byte[] data = idx.fin();
+		write(data, data.length);
+		try {
+		    out.close();
+		} catch(IOException e) {
+		    throw(new RuntimeException(e));
+		}
+		zlib.end();
+		closed = true;
+	    }
+	}
+
+	public void handle(PMessage msg) {
+	    synchronized(this) {
+		if(closed)
+		    return;
+		byte[] data = msg.bytes();
+		event(EV_RMSG).adduint8(msg.type).addint32(data.length).addbytes(data);
+	    }
+	}
+
+	public void handle(OCache.ObjDelta msg) {
+	    synchronized(this) {
+		if(closed)
+		    return;
+		int xfl = ((msg.initframe != 0) ? 1 : 0) | (msg.rem ? 2 : 0);
+		Message buf = event(EV_OBJD).adduint8(msg.fl).adduint8(xfl).addint64(msg.id).addint32(msg.frame);
+		if(msg.initframe != 0)
+		    buf.addint32(msg.initframe);
+		buf.adduint16(msg.attrs.size());
+		for(OCache.AttrDelta attr : msg.attrs) {
+		    byte[] data = attr.bytes();
+		    buf.adduint8(attr.type).addint32(data.length).addbytes(data);
+		}
+	    }
+	}
+
+	public void mapdata(Message msg) {
+	    synchronized(this) {
+		if(closed)
+		    return;
+		byte[] data = msg.bytes();
+		event(EV_MAP).addint32(data.length).addbytes(data);
+	    }
+	}
+    }
+
+    public static class Event {
+	public final int type;
+	public final double time;
+	private final byte[] data;
+	private final int off, len;
+
+	private Event(int type, double time, byte[] data, int off, int len) {
+	    this.type = type;
+	    this.time = time;
+	    this.data = data;
+	    this.off = off;
+	    this.len = len;
+	}
+
+	private MessageBuf body() {
+	    return(new MessageBuf(data, off, len));
+	}
+
+	/* Creates a fresh message per call, as callbacks consume
+	 * what they are given. */
+	public PMessage rmsg() {
+	    MessageBuf body = body();
+	    int mtype = body.uint8();
+	    return(new PMessage(mtype, body.bytes(body.int32())));
+	}
+
+	public OCache.ObjDelta objdelta() {
+	    MessageBuf body = body();
+	    int fl = body.uint8(), xfl = body.uint8();
+	    OCache.ObjDelta delta = new OCache.ObjDelta(fl, body.int64(), body.int32());
+	    if((xfl & 1) != 0)
+		delta.initframe = body.int32();
+	    delta.rem = (xfl & 2) != 0;
+	    for(int i = 0, n = body.uint16(); i < n; i++) {
+		int atype = body.uint8(), alen = body.int32();
+		delta.attrs.add(new OCache.AttrDelta(delta, atype, data, body.rh, alen));
+		body.rh += alen;
+	    }
+	    return(delta);
+	}
+
+	public Message mapdata() {
+	    MessageBuf body = body();
+	    return(new MessageBuf(body.bytes(body.int32())));
+	}
+
+	public void dispatch(Collection<? extends Transport.Callback> cbs) {
+	    for(Transport.Callback cb : cbs) {
+		switch(type) {
+		case EV_CLOSE:
+		    cb.closed();
+		    break;
+		case EV_RMSG:
+		    cb.handle(rmsg());
+		    break;
+		case EV_OBJD:
+		    cb.handle(objdelta());
+		    break;
+		case EV_MAP:
+		    cb.mapdata(mapdata());
+		    break;
+		}
+	    }
+	}
+
+	public int size() {
+	    return(len);
+	}
+
+	public String toString() {
+	    return(String.format("#<event %d at %.6f, %d bytes>", type, time, len));
+	}
+    }
+
+    public static class Reader implements AutoCloseable {
+	private final FileChannel fp;
+	private final double[] btimes;
+	private final long[] boffs;
+	private int nextblock = 0;
+	private MessageBuf cur = null;
+	private double curstart;
+	private byte[] curdata;
+
+	public Reader(Path path) throws IOException {
+	    this.fp = FileChannel.open(path, StandardOpenOption.READ);
+	    try {
+		ByteBuffer sig = read(0, SIG.length);
+		byte[] sb = new byte[SIG.length];
+		sig.get(sb);
+		if(!Arrays.equals(sb, SIG))
+		    throw(new IOException("not a session recording: " + path));
+		List<double[]> idx = readindex();
+		if(idx == null)
+		    idx = scanindex();
+		btimes = new double[idx.size()];
+		boffs = new long[idx.size()];
+		for(int i = 0; i < btimes.length; i++) {
+		    btimes[i] = idx.get(i)[0];
+		    boffs[i] = (long)idx.get(i)[1];
+		}
+	    } catch(IOException | RuntimeException e) {
+		fp.close();
+		throw(e);
+	    }
+	}
+
+	private ByteBuffer read(long pos, int len) throws IOException {
+	    ByteBuffer ret = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+	    while(ret.hasRemaining()) {
+		if(fp.read(ret, pos + ret.position()) < 0)
+		    throw(new EOFException());
+	    }
+	    ret.flip();
+	    return(ret);
+	}
+
+	private List<double[]> readindex() throws IOException {
+	    long size = fp.size();
+	    if(size < SIG.length + 12)
+		return(null);
+	    ByteBuffer tail = read(size - 12, 12);
+	    long ioff = tail.getLong();
+	    if((tail.getInt() != IDXMAGIC) || (ioff < SIG.length) || (ioff > size - 17))
+		return(null);
+	    ByteBuffer head = read(ioff, 5);
+	    if(head.get() != B_INDEX)
+		return(null);
+	    int n = head.getInt();
+	    if((n < 0) || (ioff + 5 + (n * 16L) + 12 != size))
+		return(null);
+	    ByteBuffer ents = read(ioff + 5, n * 16);
+	    List<double[]> ret = new ArrayList<>(n);
+	    for(int i = 0; i < n; i++)
+		ret.add(new double[] {ents.getDouble(), ents.getLong()});
+	    return(ret);
+	}
+
+	private List<double[]> scanindex() throws IOException {
+	    List<double[]> ret = new ArrayList<>();
+	    long size = fp.size();
+	    for(long pos = SIG.length; pos + BLOCKHEAD <= size;) {
+		ByteBuffer head = read(pos, BLOCKHEAD);
+		if(head.get() != B_DATA)
+		    break;
+		double t0 = head.getDouble();
+		head.getDouble();
+		head.getInt();
+		head.getInt();
+		int clen = head.getInt();
+		if((clen < 0) || (pos + BLOCKHEAD + clen > size))
+		    break;
+		ret.add(new double[] {t0, pos});
+		pos += BLOCKHEAD + clen;
+	    }
+	    return(ret);
+	}
+
+	private boolean loadblock() throws IOException {
+	    if(nextblock >= boffs.length)
+		return(false);
+	    long pos = boffs[nextblock++];
+	    ByteBuffer head = read(pos, BLOCKHEAD);
+	    if(head.get() != B_DATA)
+		throw(new IOException("corrupt recording block at " + pos));
+	    curstart = head.getDouble();
+	    head.getDouble();
+	    head.getInt();
+	    int rlen = head.getInt(), clen = head.getInt();
+	    ByteBuffer comp = read(pos + BLOCKHEAD, clen);
+	    Inflater zlib = new Inflater();
+	    try {
+		zlib.setInput(comp.array(), 0, clen);
+		if((curdata == null) || (curdata.length < rlen))
+		    curdata = new byte[rlen];
+		int n = 0;
+		while(n < rlen) {
+		    int rv = zlib.inflate(curdata, n, rlen - n);
+		    if((rv == 0) && (zlib.finished() || zlib.needsInput()))
+			throw(new IOException("truncated recording block at " + pos));
+		    n += rv;
+		}
+	    } catch(DataFormatException e) {
+		throw(new IOException("corrupt recording block at " + pos, e));
+	    } finally {
+		zlib.end();
+	    }
+	    /* Events hold on to the block data, so don't reuse it. */
+	    cur = new MessageBuf(curdata, 0, rlen);
+	    curdata = null;
+	    return(true);
+	}
+
+	public Event next() throws IOException {
+	    while((cur == null) || cur.eom()) {
+		if(!loadblock())
+		    return(null);
+	    }
+	    int type = cur.uint8();
+	    double time = curstart + (cur.int32() * 1e-6);
+	    int off = cur.rh, len;
+	    switch(type) {
+	    case EV_CLOSE:
+		len = 0;
+		break;
+	    case EV_RMSG:
+		cur.uint8();
+		len = 5 + cur.int32();
+		break;
+	    case EV_OBJD: {
+		cur.uint8();
+		int xfl = cur.uint8();
+		cur.skip(12 + (((xfl & 1) != 0) ? 4 : 0));
+		for(int i = 0, n = cur.uint16(); i < n; i++) {
+		    cur.uint8();
+		    cur.skip(cur.int32());
+		}
+		len = cur.rh - off;
+		break;
+	    }
+	    case EV_MAP:
+		len = 4 + cur.int32();
+		break;
+	    default:
+		throw(new IOException("unknown recording event type " + type));
+	    }
+	    cur.rh = off + len;
+	    return(new Event(type, time, cur.rbuf, off, len));
+	}
+
+	/* Positions the reader at the start of the last block that
+	 * begins at or before the given time, so that the next event
+	 * returned is at most one block span earlier than it. */
+	public void seek(double time) {
+	    int i = Arrays.binarySearch(btimes, time);
+	    if(i < 0)
+		i = Math.max(-i - 2, 0);
+	    while((i > 0) && (btimes[i - 1] == time))
+		i--;
+	    nextblock = i;
+	    cur = null;
+	}
+
+	public double duration() {
+	    return((btimes.length > 0) ? btimes[btimes.length - 1] : 0);
+	}
+
+	public int blocks() {
+	    return(boffs.length);
+	}
+
+	public void close() throws IOException {
+	    fp.close();
+	}
+    }
+
+    /* Replays a recording as a Transport. With a speed of zero or
+     * less, events are delivered as fast as they can be handled.
+     * Events before the start time are delivered without delay, so
+     * that the state at the start time is complete, unless skip is
+     * set, in which case playback jumps straight to the block
+     * containing it. */
+    public static class Replay implements Transport {
+	public final Reader in;
+	public double speed = Recording.speed.get(), start = Recording.start.get();
+	public boolean skip = Recording.skip.get();
+	private final Collection<Callback> cbs = new ArrayList<>();
+	private boolean closed = false;
+
+	public Replay(Path path) throws IOException {
+	    this.in = new Reader(path);
+	}
+
+	public Replay add(Callback cb) {
+	    this.cbs.add(cb);
+	    return(this);
+	}
+
+	public void close() {}
+	public void queuemsg(PMessage pmsg) {}
+	public void send(PMessage msg) {}
+
+	private void play() {
+	    double epoch = Utils.rtime();
+	    try {
+		if(skip)
+		    in.seek(start);
+		Event ev;
+		while((ev = in.next()) != null) {
+		    if((speed > 0) && (ev.time > start)) {
+			double now = Utils.rtime() - epoch;
+			double tm = (ev.time - start) / speed;
+			if(tm > now)
+			    Thread.sleep((long)Math.ceil((tm - now) * 1000));
+		    }
+		    ev.dispatch(cbs);
+		    if(ev.type == EV_CLOSE)
+			closed = true;
+		}
+	    } catch(IOException e) {
+		new Warning(e, "error in recording playback").issue();
+	    } catch(InterruptedException e) {
+	    } finally {
+		if(!closed) {
+		    for(Callback cb : cbs)
+			cb.closed();
+		}
+		try {
+		    in.close();
+		} catch(IOException e) {
+		    throw(new RuntimeException(e));
+		}
+	    }
+	}
+
+	public void start() {
+	    new HackThread(this::play, "Protocol playback thread").start();
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	if(args.length < 1) {
+	    System.err.println("usage: haven.Recording RECORDING");
+	    System.exit(1);
+	}
+	String[] names = {"close", "rmsg", "objd", "map"};
+	int[] count = new int[names.length];
+	long[] size = new long[names.length];
+	double last = 0;
+	try(Reader in = new Reader(Utils.path(args[0]))) {
+	    Event ev;
+	    while((ev = in.next()) != null) {
+		count[ev.type]++;
+		size[ev.type] += ev.size();
+		last = ev.time;
+	    }
+	    System.out.printf("%d blocks, %.3f s\n", in.blocks(), last);
+	}
+	for(int i = 0; i < names.length; i++)
+	    System.out.printf("%-6s %8d %12d\n", names[i], count[i], size[i]);
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/* Replays a binary recording (see Recording) into a Session without
+ * any UI or GL context, as fast as it can be processed, and reports
+ * the resulting throughput. UI messages are consumed and dropped;
+ * everything else goes through the Glob, OCache and MCache exactly
+ * as it would from a live connection. With wire decoding, object
+ * deltas are first re-encoded into MSG_OBJDATA datagrams, which are
+ * then decoded by Connection's decoder as part of the measurement. */
+public class ReplayBench {
+    private final List<Object> items = new ArrayList<>();
+    private final String[] rmsgnames = names(RMessage.class, "RMSG_");
+    private final String[] odnames = names(OCache.class, "OD_");
+    private final com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    public ReplayBench(List<Recording.Event> events, boolean wire) {
+	MessageBuf dgram = null;
+	for(Recording.Event ev : events) {
+	    if(wire && (ev.type == Recording.EV_OBJD)) {
+		if(dgram == null)
+		    dgram = new MessageBuf();
+		encode(dgram, ev.objdelta());
+		if(dgram.size() >= 1000) {
+		    items.add(dgram.fin());
+		    dgram = null;
+		}
+	    } else {
+		if(dgram != null) {
+		    items.add(dgram.fin());
+		    dgram = null;
+		}
+		items.add(ev);
+	    }
+	}
+	if(dgram != null)
+	    items.add(dgram.fin());
+    }
+
+    public ReplayBench(List<Recording.Event> events) {
+	this(events, false);
+    }
+
+    /* Encodes a delta the way the server does, but always using
+     * the long attribute form. */
+    private static void encode(Message buf, OCache.ObjDelta delta) {
+	int fl = delta.fl & ~8;
+	boolean xinit = (delta.initframe != 0) && !(((fl & 1) != 0) && (delta.initframe == delta.frame));
+	if(xinit)
+	    fl |= 8;
+	buf.adduint8(fl).adduint32(delta.id).addint32(delta.frame);
+	if(xinit)
+	    buf.addint32(delta.initframe);
+	if(delta.rem)
+	    buf.adduint8(0x80 | OCache.OD_REM).adduint8(0);
+	for(OCache.AttrDelta attr : delta.attrs) {
+	    byte[] data = attr.bytes();
+	    buf.adduint8(0x80 | attr.type);
+	    if(data.length < 0x80)
+		buf.adduint8(data.length);
+	    else
+		buf.adduint8(0x80).adduint16(data.length);
+	    buf.addbytes(data);
+	}
+	buf.adduint8(OCache.OD_END);
+    }
+
+    private static String[] names(Class<?> cl, String pfx) {
+	String[] ret = new String[256];
+	for(Field f : cl.getFields()) {
+	    if(f.getName().startsWith(pfx) && (f.getType() == Integer.TYPE) && Modifier.isStatic(f.getModifiers())) {
+		try {
+		    int v = f.getInt(null);
+		    if((v >= 0) && (v < ret.length))
+			ret[v] = f.getName().substring(pfx.length()).toLowerCase();
+		} catch(IllegalAccessException e) {
+		    throw(new RuntimeException(e));
+		}
+	    }
+	}
+	for(int i = 0; i < ret.length; i++) {
+	    if(ret[i] == null)
+		ret[i] = Integer.toString(i);
+	}
+	return(ret);
+    }
+
+    public static List<Recording.Event> load(Recording.Reader in) throws IOException {
+	List<Recording.Event> ret = new ArrayList<>();
+	Recording.Event ev;
+	while((ev = in.next()) != null)
+	    ret.add(ev);
+	return(ret);
+    }
+
+    private static class Sink implements Transport {
+	final Collection<Callback> cbs = new ArrayList<>();
+
+	public void close() {}
+	public void queuemsg(PMessage pmsg) {}
+	public void send(PMessage msg) {}
+	public Sink add(Callback cb) {
+	    cbs.add(cb);
+	    return(this);
+	}
+    }
+
+    public static class Timing {
+	public long n, errors, time, max, alloc;
+
+	public void add(long dt, long alloc, int n) {
+	    this.n += n;
+	    this.time += dt;
+	    this.alloc += alloc;
+	    this.max = Math.max(this.max, dt);
+	}
+    }
+
+    /* Collects collector pauses as they are reported, and the heap
+     * usage freed by each, which together with the difference in
+     * heap usage over the run gives the allocation volume across all
+     * threads. */
+    public static class GCStats implements NotificationListener {
+	public long n, pause, maxpause, freed;
+
+	public void handleNotification(Notification n, Object hb) {
+	    if(!n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+		return;
+	    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)n.getUserData());
+	    long before = 0, after = 0;
+	    for(MemoryUsage u : info.getGcInfo().getMemoryUsageBeforeGc().values())
+		before += u.getUsed();
+	    for(MemoryUsage u : info.getGcInfo().getMemoryUsageAfterGc().values())
+		after += u.getUsed();
+	    long dur = info.getGcInfo().getDuration();
+	    synchronized(this) {
+		this.n++;
+		this.pause += dur;
+		this.maxpause = Math.max(this.maxpause, dur);
+		this.freed += Math.max(before - after, 0);
+	    }
+	}
+
+	public void attach() {
+	    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+		if(gc instanceof NotificationEmitter)
+		    ((NotificationEmitter)gc).addNotificationListener(this, null, null);
+	    }
+	}
+
+	public void detach() {
+	    for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+		if(gc instanceof NotificationEmitter) {
+		    try {
+			((NotificationEmitter)gc).removeNotificationListener(this);
+		    } catch(ListenerNotFoundException e) {
+		    }
+		}
+	    }
+	}
+    }
+
+    public static class Result {
+	public final Map<String, Timing> types = new TreeMap<>();
+	public final Map<String, Timing> deltas = new TreeMap<>();
+	public int events, uimsgs;
+	public long dispatch, total, alloc;
+	public boolean drained;
+	public String loader;
+	public GCStats gc;
+
+	public void report(PrintStream out) {
+	    out.printf("events:    %d (%d UI messages dropped)\n", events, uimsgs);
+	    out.printf("dispatch:  %.3f s, %.0f msgs/s\n", dispatch * 1e-9, events / (dispatch * 1e-9));
+	    out.printf("total:     %.3f s, %.0f msgs/s%s\n", total * 1e-9, events / (total * 1e-9), drained ? "" : " (loader not drained: " + loader + ")");
+	    out.printf("alloc:     %.1f MB, %.1f MB/s\n", alloc / 1048576.0, (alloc / 1048576.0) / (total * 1e-9));
+	    out.printf("gc:        %d collections, %d ms total, %d ms max\n", gc.n, gc.pause, gc.maxpause);
+	    out.printf("%-24s %8s %6s %10s %10s %10s %10s\n", "message", "count", "errors", "total ms", "avg us", "max us", "alloc B");
+	    for(Map.Entry<String, Timing> ent : types.entrySet()) {
+		Timing t = ent.getValue();
+		out.printf("%-24s %8d %6d %10.2f %10.2f %10.1f %10.1f\n", ent.getKey(), t.n, t.errors, t.time * 1e-6, (t.time * 1e-3) / Math.max(t.n, 1), t.max * 1e-3,
+			   (double)t.alloc / Math.max(t.n, 1));
+	    }
+	    if(!deltas.isEmpty()) {
+		out.printf("%-24s %8s %6s %10s %10s\n", "attribute (applied)", "count", "", "total ms", "avg us");
+		for(Map.Entry<String, Timing> ent : deltas.entrySet()) {
+		    Timing t = ent.getValue();
+		    out.printf("%-24s %8d %6s %10.2f %10.2f\n", ent.getKey(), t.n, "", t.time * 1e-6, (t.time * 1e-3) / Math.max(t.n, 1));
+		}
+	    }
+	}
+    }
+
+    private String key(Recording.Event ev) {
+	switch(ev.type) {
+	case Recording.EV_RMSG:
+	    return("rmsg/" + rmsgnames[ev.rmsg().type]);
+	case Recording.EV_OBJD:
+	    return("objd");
+	case Recording.EV_MAP:
+	    return("map");
+	default:
+	    return("close");
+	}
+    }
+
+    private static long heapused() {
+	long ret = 0;
+	for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+	    if(pool.getType() == MemoryType.HEAP)
+		ret += pool.getUsage().getUsed();
+	}
+	return(ret);
+    }
+
+    public Result run(double drain) throws InterruptedException {
+	Result ret = new Result();
+	String[] keys = new String[items.size()];
+	for(int i = 0; i < keys.length; i++)
+	    keys[i] = (items.get(i) instanceof Recording.Event) ? key((Recording.Event)items.get(i)) : "objd";
+	Connection.ObjDecoder dec = new Connection.ObjDecoder();
+	long tid = Thread.currentThread().getId();
+	Sink conn = new Sink();
+	Session sess = new Session(conn, new Session.User("Replay"));
+	Thread uidrain = new HackThread(() -> {
+		try {
+		    while(sess.getuimsg() != null)
+			ret.uimsgs++;
+		} catch(InterruptedException e) {
+		}
+	    }, "Replay UI drain");
+	uidrain.setDaemon(true);
+	uidrain.start();
+	OCache.DeltaTimes dtimes = new OCache.DeltaTimes();
+	GCStats gc = new GCStats();
+	gc.attach();
+	OCache.timing = dtimes;
+	try {
+	    long heap0 = heapused();
+	    long st = System.nanoTime();
+	    for(int i = 0; i < keys.length; i++) {
+		Object item = items.get(i);
+		if((item instanceof Recording.Event) && (((Recording.Event)item).type == Recording.EV_CLOSE))
+		    continue;
+		Timing t = ret.types.computeIfAbsent(keys[i], k -> new Timing());
+		long est = System.nanoTime(), ast = tmx.getThreadAllocatedBytes(tid);
+		int n = 1;
+		try {
+		    if(item instanceof Recording.Event) {
+			((Recording.Event)item).dispatch(conn.cbs);
+		    } else {
+			List<OCache.ObjDelta> deltas = dec.decode(new MessageBuf((byte[])item), Utils.rtime());
+			for(Iterator<Transport.Callback> ci = conn.cbs.iterator(); ci.hasNext();) {
+			    Transport.Callback cb = ci.next();
+			    if(ci.hasNext()) {
+				List<OCache.ObjDelta> copy = new ArrayList<>(deltas.size());
+				for(OCache.ObjDelta delta : deltas)
+				    copy.add(delta.clone());
+				cb.handle(copy);
+			    } else {
+				cb.handle(deltas);
+			    }
+			}
+			n = deltas.size();
+		    }
+		} catch(RuntimeException e) {
+		    t.errors++;
+		}
+		t.add(System.nanoTime() - est, tmx.getThreadAllocatedBytes(tid) - ast, n);
+		ret.events += n;
+	    }
+	    ret.dispatch = System.nanoTime() - st;
+	    /* Require two consecutive idle observations, since a task
+	     * may be in flight between the queue and a worker. */
+	    double dl = Utils.rtime() + drain;
+	    int idle = 0;
+	    while((idle < 2) && (Utils.rtime() < dl)) {
+		idle = sess.glob.loader.idle() ? (idle + 1) : 0;
+		Thread.sleep(1);
+	    }
+	    ret.total = System.nanoTime() - st;
+	    ret.drained = idle >= 2;
+	    ret.loader = sess.glob.loader.stats();
+	    ret.alloc = Math.max(heapused() - heap0, 0);
+	} finally {
+	    OCache.timing = null;
+	    gc.detach();
+	}
+	synchronized(gc) {
+	    ret.gc = gc;
+	    ret.alloc += gc.freed;
+	}
+	for(int i = 0; i < 256; i++) {
+	    long n = dtimes.count.get(i);
+	    if(n > 0) {
+		Timing t = new Timing();
+		t.n = n;
+		t.time = dtimes.time.get(i);
+		ret.deltas.put(odnames[i], t);
+	    }
+	}
+	conn.cbs.forEach(Transport.Callback::closed);
+	uidrain.join();
+	sess.close();
+	return(ret);
+    }
+
+    public static void usage(PrintStream out) {
+	out.println("usage: haven.ReplayBench [-hW] [-n RUNS] [-w WARMUP] [-d DRAIN-TIMEOUT] RECORDING");
+    }
+
+    public static void main(String[] args) throws Exception {
+	PosixArgs opt = PosixArgs.getopt(args, "hWn:w:d:");
+	if(opt == null) {
+	    usage(System.err);
+	    System.exit(1);
+	}
+	int runs = 3, warmup = 1;
+	boolean wire = false;
+	double drain = 30;
+	for(char c : opt.parsed()) {
+	    switch(c) {
+	    case 'h':
+		usage(System.out);
+		System.exit(0);
+		break;
+	    case 'n':
+		runs = Integer.parseInt(opt.arg);
+		break;
+	    case 'w':
+		warmup = Integer.parseInt(opt.arg);
+		break;
+	    case 'd':
+		drain = Double.parseDouble(opt.arg);
+		break;
+	    case 'W':
+		wire = true;
+		break;
+	    }
+	}
+	if(opt.rest.length < 1) {
+	    usage(System.err);
+	    System.exit(1);
+	}
+	List<Recording.Event> events;
+	try(Recording.Reader in = new Recording.Reader(Utils.path(opt.rest[0]))) {
+	    events = load(in);
+	}
+	ReplayBench bench = new ReplayBench(events, wire);
+	for(int i = 0; i < warmup; i++) {
+	    Result res = bench.run(drain);
+	    System.out.printf("warmup %d: %.0f msgs/s\n", i + 1, res.events / (res.total * 1e-9));
+	}
+	for(int i = 0; i < runs; i++) {
+	    System.out.printf("run %d:\n", i + 1);
+	    bench.run(drain).report(System.out);
+	}
+	System.exit(0);
+    }
+}
@@ -37,6 +37,8 @@ public interface ResCache {
     
     public static class StupidJavaCodeContainer {
 	private static ResCache makeglobal() {
+	    if(PackCache.enabled.get())
+		return(PackCache.create());
 	    return(HashDirCache.create());
 	}
     }
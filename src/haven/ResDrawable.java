@@ -37,6 +37,8 @@ public class ResDrawable extends Drawable implements Sprite.Owner, EquipTarget {
     public final Sprite spr;
     MessageBuf sdt;
     private String resid;
+    private final boolean animlod;
+    private double animdt = 0;
 
     public ResDrawable(Gob gob, Indir<Resource> res, Message sdt, boolean old) {
 	super(gob);
@@ -44,6 +46,7 @@ public class ResDrawable extends Drawable implements Sprite.Owner, EquipTarget {
 	this.sdt = new MessageBuf(sdt);
 	this.rres = res.get();
 	spr = Sprite.create(this, rres, this.sdt.clone());
+	animlod = (spr instanceof SkelSprite) || (spr instanceof AnimSprite);
 	if(old || true)
 	    spr.age();
 	resid = makeResId();
@@ -58,13 +61,26 @@ public class ResDrawable extends Drawable implements Sprite.Owner, EquipTarget {
     }
 
     public void ctick(double dt) {
-	spr.tick(dt);
+	if(animlod) {
+	    AnimJobs anim = gob.glob.oc.anim;
+	    animdt += dt;
+	    if(anim.due(gob, anim.interval(gob))) {
+		spr.tick(animdt);
+		animdt = 0;
+	    }
+	} else {
+	    spr.tick(dt);
+	}
     }
 
     public void gtick(Render g) {
 	spr.gtick(g);
     }
 
+    public boolean idle() {
+	return(spr.idle());
+    }
+
     public void added(RenderTree.Slot slot) {
 	slot.add(spr);
 	super.added(slot);
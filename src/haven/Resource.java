@@ -34,6 +34,7 @@ import java.lang.annotation.*;
 import java.util.*;
 import java.util.function.*;
 import java.util.regex.*;
+import java.util.concurrent.*;
 import java.net.*;
 import java.io.*;
 import java.nio.file.*;
@@ -44,6 +45,8 @@ import java.awt.image.BufferedImage;
 public class Resource implements Serializable {
     public static final Config.Variable<URI> resurl = Config.Variable.propu("haven.resurl", "");
     public static final Config.Variable<Path> resdir = Config.Variable.propp("haven.resdir", System.getenv("HAFEN_RESDIR"));
+    public static final Config.Variable<Integer> httploaders = Config.Variable.propi("haven.resloaders", 16);
+    public static final Config.Variable<Integer> ndecoders = Config.Variable.propi("haven.resdecoders", Math.max(Runtime.getRuntime().availableProcessors() - 1, 1));
     private static ResCache prscache;
     public static ThreadGroup loadergroup = null;
     private static Map<String, LayerFactory<?>> ltypes = new TreeMap<String, LayerFactory<?>>();
@@ -538,7 +541,16 @@ public class Resource implements Serializable {
 
     public static class Pool {
 	public int nloaders = 2;
+	/* If larger than nloaders, the pool grows beyond nloaders
+	 * when the queue is deep enough that the measured load latency
+	 * would otherwise take longer than drainlimit seconds to work
+	 * through it, which mostly matters for sources that wait on
+	 * the network rather than on the CPU. */
+	public int maxloaders = 0;
+	public double drainlimit = 0.5;
 	private final Collection<Loader> loaders = new LinkedList<Loader>();
+	private double lavg = 0, lmax = 0;
+	private int nld = 0;
 	private final List<ResSource> sources = new LinkedList<ResSource>();
 	private final Map<String, Resource> cache = new CacheMap<String, Resource>();
 	private final PrioQueue<Queued> queue = new PrioQueue<Queued>();
@@ -568,6 +580,7 @@ public class Resource implements Serializable {
 	    Resource res;
 	    LoadException error;
 	    boolean found = false;
+	    int srcidx = 0;
 
 	    Queued(String name, int ver, int prio) {
 		super(name, ver);
@@ -617,6 +630,22 @@ public class Resource implements Serializable {
 		}
 	    }
 
+	    private void failed(ResSource src, Throwable t) {
+		if(!(t instanceof FileNotFoundException))
+		    found = true;
+		LoadException error;
+		if(t instanceof LoadException)
+		    error = (LoadException)t;
+		else
+		    error = new LoadException(String.format("Load error in resource %s(v%d), from %s", name, ver, src), t, null);
+		error.src = src;
+		if(this.error != null) {
+		    error.prev = this.error;
+		    error.addSuppressed(this.error);
+		}
+		this.error = error;
+	    }
+
 	    private void prior(Queued prior) {
 		if((res = prior.res) == null) {
 		    error = prior.error;
@@ -636,39 +665,77 @@ public class Resource implements Serializable {
 	}
 
 	private void handle(Queued res) {
-	    for(ResSource src : sources) {
+	    double st = Utils.rtime();
+	    try {
+		handle0(res);
+	    } finally {
+		double lt = Utils.rtime() - st;
+		synchronized(loaders) {
+		    lavg = (nld++ == 0) ? lt : (lavg + ((lt - lavg) * 0.1));
+		    lmax = Math.max(lmax, lt);
+		}
+	    }
+	}
+
+	/* Only does the I/O for a resource on the loader thread, and
+	 * leaves decoding its layers to the decoder pool, if there is
+	 * one. Should decoding fail, the resource is put back on the
+	 * queue to try the next source. */
+	private void handle0(Queued res) {
+	    ForkJoinPool decoder = decoder();
+	    while(res.srcidx < sources.size()) {
+		ResSource src = sources.get(res.srcidx++);
+		byte[] data;
 		try(InputStream in = src.get(res.name)) {
-		    Message msg = new StreamMessage(in);
-		    if(msg.eom()) {
+		    data = Utils.readall(in);
+		    if(data.length == 0) {
 			/* XXX? This should not be necessary, but for some reason
 			 * it seems that custom client resources find their way to
 			 * create empty cache files by the same name. I don't know
 			 * how. */
 			throw(new FileNotFoundException("empty file"));
 		    }
-		    res.found = true;
-		    Resource ret = new Resource(this, res.name, res.ver);
-		    ret.source = src;
-		    ret.load(msg);
+		} catch(Throwable t) {
+		    res.failed(src, t);
+		    continue;
+		}
+		res.found = true;
+		Resource ret = new Resource(this, res.name, res.ver);
+		ret.source = src;
+		if(decoder != null) {
+		    decoder.execute(() -> decode(res, ret, data));
+		    return;
+		}
+		try {
+		    ret.load(new MessageBuf(data), false);
 		    res.res = ret;
 		    res.error = null;
 		    break;
 		} catch(Throwable t) {
-		    if(!(t instanceof FileNotFoundException))
-			res.found = true;
-		    LoadException error;
-		    if(t instanceof LoadException)
-			error = (LoadException)t;
-		    else
-			error = new LoadException(String.format("Load error in resource %s(v%d), from %s", res.name, res.ver, src), t, null);
-		    error.src = src;
-		    if(res.error != null) {
-			error.prev = res.error;
-			error.addSuppressed(res.error);
+		    res.failed(src, t);
+		}
+	    }
+	    res.done();
+	}
+
+	private void decode(Queued res, Resource ret, byte[] data) {
+	    try {
+		ret.load(new MessageBuf(data), true);
+	    } catch(Throwable t) {
+		res.failed(ret.source, t);
+		if(res.srcidx < sources.size()) {
+		    synchronized(queue) {
+			queue.add(res);
+			queue.notify();
 		    }
-		    res.error = error;
+		    ckld();
+		} else {
+		    res.done();
 		}
+		return;
 	    }
+	    res.res = ret;
+	    res.error = null;
 	    res.done();
 	}
 
@@ -745,13 +812,21 @@ public class Resource implements Serializable {
 	    return(dynres(id.bits));
 	}
 
+	/* Must be called with the loaders monitor held. */
+	private int wantloaders(int qsz) {
+	    if((maxloaders <= nloaders) || (nld == 0))
+		return(Math.min(nloaders, qsz));
+	    int want = (int)Math.ceil(qsz * lavg / drainlimit);
+	    return(Math.min(qsz, Utils.clip(want, nloaders, maxloaders)));
+	}
+
 	private void ckld() {
 	    int qsz;
 	    synchronized(queue) {
 		qsz = queue.size();
 	    }
 	    synchronized(loaders) {
-		while(loaders.size() < Math.min(nloaders, qsz)) {
+		while(loaders.size() < wantloaders(qsz)) {
 		    final Loader n = new Loader();
 		    Thread th = new HackThread(loadergroup, n, "Haven resource loader");
 		    th.setDaemon(true);
@@ -771,6 +846,20 @@ public class Resource implements Serializable {
 	public class Loader implements Runnable {
 	    private boolean added = false;
 
+	    private boolean surplus() {
+		int qsz;
+		synchronized(queue) {
+		    qsz = queue.size();
+		}
+		synchronized(loaders) {
+		    if((loaders.size() > nloaders) && (loaders.size() > wantloaders(qsz))) {
+			loaders.remove(this);
+			return(true);
+		    }
+		}
+		return(false);
+	    }
+
 	    public void run() {
 		synchronized(loaders) {
 		    loaders.add(this);
@@ -792,6 +881,10 @@ public class Resource implements Serializable {
 			}
 			handle(cur);
 			cur = null;
+			if(surplus())
+			    break;
+			if(maxloaders > nloaders)
+			    ckld();
 		    }
 		} catch(InterruptedException e) {
 		    intd = true;
@@ -813,6 +906,12 @@ public class Resource implements Serializable {
 	    return(ret);
 	}
 
+	public String stats() {
+	    synchronized(loaders) {
+		return(String.format("%d ld, %.1f ms avg, %.1f ms max", loaders.size(), lavg * 1000, lmax * 1000));
+	    }
+	}
+
 	public int numloaded() {
 	    int ret = (parent == null)?0:parent.numloaded();
 	    synchronized(cache) {
@@ -927,7 +1026,9 @@ public class Resource implements Serializable {
 	    }
 	    src = new Caching(src, prscache);
 	}
-	remote().add(src);
+	Pool remote = remote();
+	remote.add(src);
+	remote.maxloaders = Math.max(remote.maxloaders, httploaders.get());
     }
 
     public static class LoadException extends RuntimeException {
@@ -1903,8 +2004,11 @@ public class Resource implements Serializable {
 	public void init() {}
 
 	public haven.Audio.CS stream() {
+	    haven.Audio.PCMData pcm = haven.Audio.pcmcache.get(this);
+	    if(pcm != null)
+		return(pcm.stream());
 	    try {
-		return(new haven.Audio.VorbisClip(new ByteArrayInputStream(coded)));
+		return(new haven.Audio.VorbisClip(new ByteArrayInputStream(coded)).cache(this));
 	    } catch(IOException e) {
 		throw(new RuntimeException(e));
 	    }
@@ -2053,35 +2157,128 @@ public class Resource implements Serializable {
 	return(o.name.equals(this.name) && (o.ver == this.ver));
     }
 
+    private static ForkJoinPool decoder = null;
+    private static ForkJoinPool decoder() {
+	synchronized(Resource.class) {
+	    if((decoder == null) && (ndecoders.get() > 0)) {
+		decoder = new ForkJoinPool(ndecoders.get(), pool -> {
+			ForkJoinWorkerThread th = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			th.setName("Haven resource decoder");
+			return(th);
+		    }, null, true);
+	    }
+	    return(decoder);
+	}
+    }
+
+    public static class DecodeTime {
+	public final String type;
+	public int n;
+	public double total, max;
+
+	private DecodeTime(String type) {
+	    this.type = type;
+	}
+
+	private void add(double t) {
+	    n++;
+	    total += t;
+	    max = Math.max(max, t);
+	}
+
+	public String toString() {
+	    return(String.format("%s %d/%.1f/%.1f", type, n, total * 1000, max * 1000));
+	}
+    }
+
+    private static final Map<String, DecodeTime> dectimes = new HashMap<>();
+    private static void dectime(String type, double t) {
+	synchronized(dectimes) {
+	    DecodeTime cur = dectimes.get(type);
+	    if(cur == null)
+		dectimes.put(type, cur = new DecodeTime(type));
+	    cur.add(t);
+	}
+    }
+
+    /* Accumulated time spent decoding and initializing each type of
+     * layer, sorted by total time spent. */
+    public static List<DecodeTime> dectimes() {
+	List<DecodeTime> ret = new ArrayList<>();
+	synchronized(dectimes) {
+	    for(DecodeTime t : dectimes.values()) {
+		DecodeTime c = new DecodeTime(t.type);
+		c.n = t.n; c.total = t.total; c.max = t.max;
+		ret.add(c);
+	    }
+	}
+	ret.sort((a, b) -> Double.compare(b.total, a.total));
+	return(ret);
+    }
+
     private static final byte[] RESOURCE_SIG = "Haven Resource 1".getBytes(Utils.ascii);
-    private void load(Message in) {
+    /* When par is true, this must run in the decoder pool, and the
+     * layers are constructed as parallel subtasks. Layer
+     * constructors never get to see each other anyway, as the layer
+     * list is only published once they are all done, so only init()
+     * needs to run in order. */
+    private void load(MessageBuf in, boolean par) {
 	if(!Arrays.equals(RESOURCE_SIG, in.bytes(RESOURCE_SIG.length)))
 	    throw(new LoadException("Invalid res signature", this));
 	int ver = in.uint16();
-	List<Layer> layers = new LinkedList<Layer>();
 	if(this.ver == -1)
 	    this.ver = ver;
 	else if(ver != this.ver)
 	    throw(new LoadException("Wrong res version (" + ver + " != " + this.ver + ")", this));
+	List<String> types = new ArrayList<>();
+	List<Message> bufs = new ArrayList<>();
 	while(!in.eom()) {
-	    LayerFactory<?> lc = ltypes.get(in.string());
+	    String type = in.string();
 	    int len = in.int32();
-	    if(lc == null) {
-		in.skip(len);
-		continue;
+	    int off = in.rh;
+	    in.skip(len);
+	    if(ltypes.get(type) != null) {
+		types.add(type);
+		bufs.add(new MessageBuf(in.rbuf, off, len));
+	    }
+	}
+	Layer[] cons = new Layer[types.size()];
+	if(par && (cons.length > 1)) {
+	    List<ForkJoinTask<?>> tasks = new ArrayList<>(cons.length);
+	    for(int i = 0; i < cons.length; i++) {
+		int li = i;
+		tasks.add(ForkJoinTask.adapt(() -> cons[li] = conslayer(types.get(li), bufs.get(li))));
 	    }
-	    Message buf = new LimitMessage(in, len);
-	    Layer l = lc.cons(this, buf);
+	    ForkJoinTask.invokeAll(tasks);
+	} else {
+	    for(int i = 0; i < cons.length; i++)
+		cons[i] = conslayer(types.get(i), bufs.get(i));
+	}
+	List<Layer> layers = new LinkedList<Layer>();
+	for(Layer l : cons) {
 	    if(l != null)
 		layers.add(l);
-	    buf.skip();
 	}
 	this.layers = layers;
-	for(Layer l : layers)
-	    l.init();
+	for(int i = 0; i < cons.length; i++) {
+	    if(cons[i] != null) {
+		double st = Utils.rtime();
+		cons[i].init();
+		dectime(types.get(i) + "/init", Utils.rtime() - st);
+	    }
+	}
 	used = false;
     }
 
+    private Layer conslayer(String type, Message buf) {
+	double st = Utils.rtime();
+	try {
+	    return(ltypes.get(type).cons(this, buf));
+	} finally {
+	    dectime(type, Utils.rtime() - st);
+	}
+    }
+
     private transient Named indir = null;
     public Named indir() {
 	if(indir != null)
@@ -2409,6 +2606,103 @@ public class Resource implements Serializable {
 	}
     }
 
+    private static void usage_benchfetch(PrintStream out) {
+	out.println("usage: haven.Resource bench-fetch [-h] [-l LATENCY-MS] [-n MIN-LOADERS] [-m MAX-LOADERS] LIST-FILE RES-DIR");
+    }
+
+    /* Replays a resource list (such as etc/res-preload) with a cold
+     * cache against a local HTTP server serving RES-DIR with
+     * simulated latency, and reports the time until all of it has
+     * been loaded. */
+    public static void cmd_benchfetch(String[] args) throws Exception {
+	PosixArgs opt = PosixArgs.getopt(args, "hl:n:m:");
+	if(opt == null) {
+	    usage_benchfetch(System.err);
+	    System.exit(1);
+	}
+	int latency = 50, nmin = 2, nmax = 0;
+	for(char c : opt.parsed()) {
+	    switch(c) {
+	    case 'h':
+		usage_benchfetch(System.out);
+		System.exit(0);
+		break;
+	    case 'l':
+		latency = Integer.parseInt(opt.arg);
+		break;
+	    case 'n':
+		nmin = Integer.parseInt(opt.arg);
+		break;
+	    case 'm':
+		nmax = Integer.parseInt(opt.arg);
+		break;
+	    }
+	}
+	if(opt.rest.length < 2) {
+	    usage_benchfetch(System.err);
+	    System.exit(1);
+	}
+	Map<String, Integer> list = new LinkedHashMap<>();
+	try(BufferedReader r = Files.newBufferedReader(Utils.path(opt.rest[0]))) {
+	    String ln;
+	    while((ln = r.readLine()) != null) {
+		int pos = ln.indexOf(':');
+		if(pos < 0)
+		    continue;
+		list.put(ln.substring(0, pos), Integer.parseInt(ln.substring(pos + 1)));
+	    }
+	}
+	Path base = Utils.path(opt.rest[1]).toAbsolutePath().normalize();
+	int dlat = latency;
+	com.sun.net.httpserver.HttpServer srv = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+	srv.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+	srv.createContext("/", ex -> {
+		try {
+		    Thread.sleep(dlat);
+		    Path file = base.resolve(ex.getRequestURI().getPath().substring(1)).normalize();
+		    if(!file.startsWith(base) || !Files.isRegularFile(file)) {
+			ex.sendResponseHeaders(404, -1);
+			return;
+		    }
+		    byte[] data = Files.readAllBytes(file);
+		    ex.sendResponseHeaders(200, data.length);
+		    try(OutputStream out = ex.getResponseBody()) {
+			out.write(data);
+		    }
+		} catch(InterruptedException e) {
+		    ex.sendResponseHeaders(503, -1);
+		} finally {
+		    ex.close();
+		}
+	    });
+	srv.start();
+	try {
+	    Pool pool = new Pool(new HttpSource(Utils.uri("http://127.0.0.1:" + srv.getAddress().getPort() + "/")));
+	    pool.nloaders = nmin;
+	    pool.maxloaders = nmax;
+	    double st = Utils.rtime();
+	    Collection<Named> reqs = new ArrayList<>();
+	    for(Map.Entry<String, Integer> ent : list.entrySet())
+		reqs.add(pool.load(ent.getKey(), ent.getValue()));
+	    int failed = 0;
+	    for(Named req : reqs) {
+		try {
+		    Loading.waitfor(req);
+		} catch(BadResourceException e) {
+		    failed++;
+		}
+	    }
+	    double tm = Utils.rtime() - st;
+	    System.out.printf("%d resources (%d failed) loaded in %.3f s, %d+%d loaders, %dms latency: %s%n",
+			      reqs.size(), failed, tm, nmin, Math.max(nmax - nmin, 0), latency, pool.stats());
+	    for(DecodeTime dt : dectimes())
+		System.out.println("  " + dt);
+	} finally {
+	    srv.stop(0);
+	    ((java.util.concurrent.ExecutorService)srv.getExecutor()).shutdownNow();
+	}
+    }
+
     public static void main(String[] args) throws Exception {
 	String cmd = args[0].intern();
 	if(cmd == "update-list") {
@@ -2417,6 +2711,8 @@ public class Resource implements Serializable {
 	    cmd_getcode(Utils.splice(args, 1));
 	} else if(cmd == "find-updates") {
 	    cmd_findupdates(Utils.splice(args, 1));
+	} else if(cmd == "bench-fetch") {
+	    cmd_benchfetch(Utils.splice(args, 1));
 	}
     }
 }
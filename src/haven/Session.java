@@ -38,6 +38,7 @@ import java.lang.ref.*;
 
 public class Session implements Resource.Resolver {
     public static final Config.Variable<java.nio.file.Path> record = Config.Variable.propp("haven.record", "");
+    public static final Config.Variable<Boolean> recordtext = Config.Variable.propb("haven.recordtext", false);
     public static final int PVER = 30;
 
     public static final int MSG_SESS = 0;
@@ -345,6 +346,10 @@ public class Session implements Resource.Resolver {
 		glob.oc.receive(delta);
 	    }
 
+	    public void handle(List<OCache.ObjDelta> deltas) {
+		glob.oc.receive(deltas);
+	    }
+
 	    public void mapdata(Message msg) {
 		glob.map.mapdata(msg);
 	    }
@@ -358,7 +363,10 @@ public class Session implements Resource.Resolver {
 	conn.add(conncb);
 	if(record.get() != null) {
 	    try {
-		conn.add(new Transport.Callback.Recorder(java.nio.file.Files.newBufferedWriter(record.get())));
+		if(recordtext.get())
+		    conn.add(new Transport.Callback.Recorder(java.nio.file.Files.newBufferedWriter(record.get())));
+		else
+		    conn.add(new Recording.Recorder(record.get()));
 	    } catch(IOException e) {
 		throw(new RuntimeException(e));
 	    }
@@ -41,6 +41,9 @@ public class SkelSprite extends Sprite implements Sprite.CUpd, EquipTarget, Spri
     public static final float ipollen = 0.3f;
     public final Skeleton skel;
     public final Pose pose;
+    private final AnimJobs.Target target;
+    private AnimJobs jobs;
+    private boolean hasjobs = false;
     public PoseMod[] mods = new PoseMod[0];
     public MeshAnim.Animation[] manims = new MeshAnim.Animation[0];
     public int curfl;
@@ -70,9 +73,11 @@ public class SkelSprite extends Sprite implements Sprite.CUpd, EquipTarget, Spri
 	if(sr != null) {
 	    skel = sr.s;
 	    pose = skel.new Pose(skel.bindpose);
+	    target = new AnimJobs.Target(pose, skel.bindpose);
 	} else {
 	    skel = null;
 	    pose = null;
+	    target = null;
 	}
 	update(fl);
     }
@@ -187,15 +192,25 @@ public class SkelSprite extends Sprite implements Sprite.CUpd, EquipTarget, Spri
 	this.gtickparts = gbuf;
     }
     
-    private void rebuild() {
-	pose.reset();
-	for(PoseMod m : mods)
-	    m.apply(pose);
+    private void rebuild(AnimJobs jobs) {
+	Pose old = null;
+	float f = 0;
 	if(ipold > 0) {
-	    float f = ipold * ipold * (3 - (2 * ipold));
-	    pose.blend(oldpose, f);
+	    old = oldpose;
+	    f = ipold * ipold * (3 - (2 * ipold));
 	}
-	pose.gbuild();
+	if(jobs == null)
+	    target.rebuild(mods, old, f);
+	else
+	    jobs.submit(target, mods, old, f);
+    }
+
+    private AnimJobs jobs() {
+	if(!hasjobs) {
+	    jobs = AnimJobs.get(owner);
+	    hasjobs = true;
+	}
+	return(jobs);
     }
 
     private static final Map<MeshAnim.Res, MeshAnim.Animation> nomaids = new HashMap<>();
@@ -241,7 +256,7 @@ public class SkelSprite extends Sprite implements Sprite.CUpd, EquipTarget, Spri
 	    this.ipold = 1.0f;
 	}
 	this.modids = newids;
-	rebuild();
+	rebuild(null);
     }
 
     public void update(int fl) {
@@ -295,7 +310,7 @@ public class SkelSprite extends Sprite implements Sprite.CUpd, EquipTarget, Spri
 		    oldpose = null;
 		}
 	    }
-	    rebuild();
+	    rebuild(jobs());
 	}
 	for(MeshAnim.Animation anim : manims)
 	    anim.tick(dt);
@@ -33,6 +33,7 @@ import haven.render.*;
 public class Skeleton {
     public final Map<String, Bone> bones = new HashMap<String, Bone>();
     public final Bone[] blist; /* Topologically sorted */
+    public final int[] parents; /* Parent index per bone, or -1 */
     public final Pose bindpose;
     
     public Skeleton(Collection<Bone> bones) {
@@ -66,6 +67,9 @@ public class Skeleton {
 	    if(!f)
 		throw(new RuntimeException("Cyclical bone hierarchy"));
 	}
+	parents = new int[blist.length];
+	for(int i = 0; i < blist.length; i++)
+	    parents[i] = (blist[i].parent == null) ? -1 : blist[i].parent.idx;
 	bindpose = mkbindpose();
     }
     
@@ -91,29 +95,37 @@ public class Skeleton {
 	return(q);
     }
     
-    private static float[] qqmul(float[] d, float[] a, float[] b) {
-	float aw = a[0], ax = a[1], ay = a[2], az = a[3];
-	float bw = b[0], bx = b[1], by = b[2], bz = b[3];
-	d[0] = (aw * bw) - (ax * bx) - (ay * by) - (az * bz);
-	d[1] = (aw * bx) + (ax * bw) + (ay * bz) - (az * by);
-	d[2] = (aw * by) - (ax * bz) + (ay * bw) + (az * bx);
-	d[3] = (aw * bz) + (ax * by) - (ay * bx) + (az * bw);
+    private static float[] qqmul(float[] d, int doff, float[] a, int aoff, float[] b, int boff) {
+	float aw = a[aoff], ax = a[aoff + 1], ay = a[aoff + 2], az = a[aoff + 3];
+	float bw = b[boff], bx = b[boff + 1], by = b[boff + 2], bz = b[boff + 3];
+	d[doff    ] = (aw * bw) - (ax * bx) - (ay * by) - (az * bz);
+	d[doff + 1] = (aw * bx) + (ax * bw) + (ay * bz) - (az * by);
+	d[doff + 2] = (aw * by) - (ax * bz) + (ay * bw) + (az * bx);
+	d[doff + 3] = (aw * bz) + (ax * by) - (ay * bx) + (az * bw);
 	return(d);
     }
+
+    private static float[] qqmul(float[] d, float[] a, float[] b) {
+	return(qqmul(d, 0, a, 0, b, 0));
+    }
     
-    private static float[] vqrot(float[] d, float[] v, float[] q) {
-	float vx = v[0], vy = v[1], vz = v[2];
-	float qw = q[0], qx = q[1], qy = q[2], qz = q[3];
+    private static float[] vqrot(float[] d, int doff, float[] v, int voff, float[] q, int qoff) {
+	float vx = v[voff], vy = v[voff + 1], vz = v[voff + 2];
+	float qw = q[qoff], qx = q[qoff + 1], qy = q[qoff + 2], qz = q[qoff + 3];
 	/* I dearly wonder how the JIT's common-subexpression
 	 * eliminator does on these. */
-	d[0] = (qw * qw * vx) + (2 * qw * qy * vz) - (2 * qw * qz * vy) + (qx * qx * vx) +
+	d[doff    ] = (qw * qw * vx) + (2 * qw * qy * vz) - (2 * qw * qz * vy) + (qx * qx * vx) +
 	    (2 * qx * qy * vy) + (2 * qx * qz * vz) - (qz * qz * vx) - (qy * qy * vx);
-	d[1] = (2 * qx * qy * vx) + (qy * qy * vy) + (2 * qy * qz * vz) + (2 * qw * qz * vx) -
+	d[doff + 1] = (2 * qx * qy * vx) + (qy * qy * vy) + (2 * qy * qz * vz) + (2 * qw * qz * vx) -
 	    (qz * qz * vy) + (qw * qw * vy) - (2 * qw * qx * vz) - (qx * qx * vy);
-	d[2] = (2 * qx * qz * vx) + (2 * qy * qz * vy) + (qz * qz * vz) - (2 * qw * qy * vx) -
+	d[doff + 2] = (2 * qx * qz * vx) + (2 * qy * qz * vy) + (qz * qz * vz) - (2 * qw * qy * vx) -
 	    (qy * qy * vz) + (2 * qw * qx * vy) - (qx * qx * vz) + (qw * qw * vz);
 	return(d);
     }
+
+    private static float[] vqrot(float[] d, float[] v, float[] q) {
+	return(vqrot(d, 0, v, 0, q, 0));
+    }
     
     private static float[] vset(float[] d, float[] s) {
 	d[0] = s[0];
@@ -146,20 +158,26 @@ public class Skeleton {
 	return(d);
     }
     
-    private static float[] vvadd(float[] d, float[] a, float[] b) {
-	float ax = a[0], ay = a[1], az = a[2];
-	float bx = b[0], by = b[1], bz = b[2];
-	d[0] = ax + bx;
-	d[1] = ay + by;
-	d[2] = az + bz;
+    private static float[] vvadd(float[] d, int doff, float[] a, int aoff, float[] b, int boff) {
+	float ax = a[aoff], ay = a[aoff + 1], az = a[aoff + 2];
+	float bx = b[boff], by = b[boff + 1], bz = b[boff + 2];
+	d[doff    ] = ax + bx;
+	d[doff + 1] = ay + by;
+	d[doff + 2] = az + bz;
 	return(d);
     }
+
+    private static float[] vvadd(float[] d, float[] a, float[] b) {
+	return(vvadd(d, 0, a, 0, b, 0));
+    }
     
-    private static float[] qqslerp(float[] d, float[] a, float[] b, float t) {
-	float aw = a[0], ax = a[1], ay = a[2], az = a[3];
-	float bw = b[0], bx = b[1], by = b[2], bz = b[3];
-	if((aw == bw) && (ax == bx) && (ay == by) && (az == bz))
-	    return(qset(d, a));
+    private static float[] qqslerp(float[] d, int doff, float[] a, int aoff, float[] b, int boff, float t) {
+	float aw = a[aoff], ax = a[aoff + 1], ay = a[aoff + 2], az = a[aoff + 3];
+	float bw = b[boff], bx = b[boff + 1], by = b[boff + 2], bz = b[boff + 3];
+	if((aw == bw) && (ax == bx) && (ay == by) && (az == bz)) {
+	    d[doff] = aw; d[doff + 1] = ax; d[doff + 2] = ay; d[doff + 3] = az;
+	    return(d);
+	}
 	float cos = (aw * bw) + (ax * bx) + (ay * by) + (az * bz);
 	if(cos < 0) {
 	    bw = -bw; bx = -bx; by = -by; bz = -bz;
@@ -176,36 +194,67 @@ public class Skeleton {
 	    d0 = (float)Math.sin((1.0f - t) * da) * nf;
 	    d1 = (float)Math.sin(t * da) * nf;
 	}
-	d[0] = (d0 * aw) + (d1 * bw);
-	d[1] = (d0 * ax) + (d1 * bx);
-	d[2] = (d0 * ay) + (d1 * by);
-	d[3] = (d0 * az) + (d1 * bz);
+	d[doff    ] = (d0 * aw) + (d1 * bw);
+	d[doff + 1] = (d0 * ax) + (d1 * bx);
+	d[doff + 2] = (d0 * ay) + (d1 * by);
+	d[doff + 3] = (d0 * az) + (d1 * bz);
 	return(d);
     }
+
+    private static float[] qqslerp(float[] d, float[] a, float[] b, float t) {
+	return(qqslerp(d, 0, a, 0, b, 0, t));
+    }
+
+    /* Computes the global transform of each bone from the local ones
+     * of it and its ancestors. Relies on blist being topologically
+     * sorted, so that parents are always done first. */
+    private static void gbuild(int[] parents, float[] lpos, float[] lrot, float[] gpos, float[] grot) {
+	for(int i = 0, i3 = 0, i4 = 0; i < parents.length; i++, i3 += 3, i4 += 4) {
+	    int pi = parents[i];
+	    if(pi < 0) {
+		gpos[i3] = lpos[i3]; gpos[i3 + 1] = lpos[i3 + 1]; gpos[i3 + 2] = lpos[i3 + 2];
+		grot[i4] = lrot[i4]; grot[i4 + 1] = lrot[i4 + 1]; grot[i4 + 2] = lrot[i4 + 2]; grot[i4 + 3] = lrot[i4 + 3];
+	    } else {
+		qqmul(grot, i4, grot, pi * 4, lrot, i4);
+		vqrot(gpos, i3, lpos, i3, grot, pi * 4);
+		vvadd(gpos, i3, gpos, i3, gpos, pi * 3);
+	    }
+	}
+    }
+
+    private static void blend(float[] lpos, float[] lrot, float[] opos, float[] orot, float d) {
+	for(int i4 = 0; i4 < lrot.length; i4 += 4)
+	    qqslerp(lrot, i4, lrot, i4, orot, i4, d);
+	for(int i = 0; i < lpos.length; i++)
+	    lpos[i] = lpos[i] + ((opos[i] - lpos[i]) * d);
+    }
     
     public Pose mkbindpose() {
 	Pose p = new Pose();
+	float[] rot = new float[4];
 	for(int i = 0; i < blist.length; i++) {
 	    Bone b = blist[i];
-	    p.lpos[i][0] = b.ipos.x; p.lpos[i][1] = b.ipos.y; p.lpos[i][2] = b.ipos.z;
-	    rotasq(p.lrot[i], b.irax.to3a(), b.irang);
+	    p.lpos[(i * 3)] = b.ipos.x; p.lpos[(i * 3) + 1] = b.ipos.y; p.lpos[(i * 3) + 2] = b.ipos.z;
+	    System.arraycopy(rotasq(rot, b.irax.to3a(), b.irang), 0, p.lrot, i * 4, 4);
 	}
 	p.gbuild();
 	return(p);
     }
     
     public class Pose implements EquipTarget {
-	public float[][] lpos, gpos;
-	public float[][] lrot, grot;
+	/* Bone i lives at [i * 3] in the position arrays and at [i * 4]
+	 * in the rotation arrays. */
+	public final float[] lpos, gpos;
+	public final float[] lrot, grot;
 	private Pose from = null;
 	public int seq = 0;
 	
 	private Pose() {
 	    int nb = blist.length;
-	    lpos = new float[nb][3];
-	    gpos = new float[nb][3];
-	    lrot = new float[nb][4];
-	    grot = new float[nb][4];
+	    lpos = new float[nb * 3];
+	    gpos = new float[nb * 3];
+	    lrot = new float[nb * 4];
+	    grot = new float[nb * 4];
 	}
 	
 	public Pose(Pose from) {
@@ -220,41 +269,38 @@ public class Skeleton {
 	}
 	
 	public void reset() {
-	    for(int i = 0; i < blist.length; i++) {
-		vset(lpos[i], from.lpos[i]);
-		qset(lrot[i], from.lrot[i]);
-	    }
+	    System.arraycopy(from.lpos, 0, lpos, 0, lpos.length);
+	    System.arraycopy(from.lrot, 0, lrot, 0, lrot.length);
 	}
 	
 	public void gbuild() {
-	    int nb = blist.length;
-	    for(int i = 0; i < nb; i++) {
-		Bone b = blist[i];
-		if(b.parent == null) {
-		    gpos[i][0] = lpos[i][0];
-		    gpos[i][1] = lpos[i][1];
-		    gpos[i][2] = lpos[i][2];
-		    grot[i][0] = lrot[i][0];
-		    grot[i][1] = lrot[i][1];
-		    grot[i][2] = lrot[i][2];
-		    grot[i][3] = lrot[i][3];
-		} else {
-		    int pi = b.parent.idx;
-		    qqmul(grot[i], grot[pi], lrot[i]);
-		    vqrot(gpos[i], lpos[i], grot[pi]);
-		    vvadd(gpos[i], gpos[i], gpos[pi]);
-		}
-	    }
+	    Skeleton.gbuild(parents, lpos, lrot, gpos, grot);
 	    seq++;
 	}
 	
 	public void blend(Pose o, float d) {
-	    for(int i = 0; i < blist.length; i++) {
-		qqslerp(lrot[i], lrot[i], o.lrot[i], d);
-		lpos[i][0] = lpos[i][0] + ((o.lpos[i][0] - lpos[i][0]) * d);
-		lpos[i][1] = lpos[i][1] + ((o.lpos[i][1] - lpos[i][1]) * d);
-		lpos[i][2] = lpos[i][2] + ((o.lpos[i][2] - lpos[i][2]) * d);
-	    }
+	    Skeleton.blend(lpos, lrot, o.lpos, o.lrot, d);
+	}
+
+	/* Copies another pose of the same skeleton into this one. */
+	public void copy(Pose o) {
+	    System.arraycopy(o.lpos, 0, lpos, 0, lpos.length);
+	    System.arraycopy(o.lrot, 0, lrot, 0, lrot.length);
+	    System.arraycopy(o.gpos, 0, gpos, 0, gpos.length);
+	    System.arraycopy(o.grot, 0, grot, 0, grot.length);
+	    seq++;
+	}
+
+	/* Runs the usual per-frame update: reset to the base pose,
+	 * apply mods, blend towards a previous pose if any, and build
+	 * the global transforms. */
+	public void update(PoseMod[] mods, Pose old, float d) {
+	    reset();
+	    for(PoseMod m : mods)
+		m.apply(this);
+	    if(old != null)
+		blend(old, d);
+	    gbuild();
 	}
 	
 	/* XXX: It seems the return type of these should be something more generic. */
@@ -265,10 +311,11 @@ public class Skeleton {
 		
 		public Pipe.Op get() {
 		    if(cseq != seq) {
-			Matrix4f xf = Transform.makexlate(new Matrix4f(), new Coord3f(gpos[bone][0], gpos[bone][1], gpos[bone][2]));
-			if(grot[bone][0] < 0.999999) {
-			    float ang = (float)(Math.acos(grot[bone][0]) * 2.0);
-			    xf = xf.mul1(Transform.makerot(new Matrix4f(), new Coord3f(grot[bone][1], grot[bone][2], grot[bone][3]).norm(), ang));
+			int b3 = bone * 3, b4 = bone * 4;
+			Matrix4f xf = Transform.makexlate(new Matrix4f(), new Coord3f(gpos[b3], gpos[b3 + 1], gpos[b3 + 2]));
+			if(grot[b4] < 0.999999) {
+			    float ang = (float)(Math.acos(grot[b4]) * 2.0);
+			    xf = xf.mul1(Transform.makerot(new Matrix4f(), new Coord3f(grot[b4 + 1], grot[b4 + 2], grot[b4 + 3]).norm(), ang));
 			}
 			cur = new Location(xf);
 			cseq = seq;
@@ -293,8 +340,7 @@ public class Skeleton {
 		
 		public Pipe.Op get() {
 		    if(cseq != seq) {
-			rot = qqmul(rot, grot[bone], qinv(rot, bindpose.grot[bone]));
-			pos = vvadd(pos, gpos[bone], vqrot(pos, vinv(pos, bindpose.gpos[bone]), rot));
+			bindrel(bone, pos, rot);
 			Matrix4f xf = Transform.makexlate(new Matrix4f(), new Coord3f(pos[0], pos[1], pos[2]));
 			if(rot[0] < 0.999999) {
 			    float ang = (float)(Math.acos(rot[0]) * 2.0);
@@ -322,11 +368,12 @@ public class Skeleton {
 	    
 	    public Location get() {
 		if(cseq != seq) {
-		    Coord3f cur = new Coord3f(gpos[tgt][0] - gpos[orig][0], gpos[tgt][1] - gpos[orig][1], gpos[tgt][2] - gpos[orig][2]).norm();
+		    int t3 = tgt * 3, o3 = orig * 3;
+		    Coord3f cur = new Coord3f(gpos[t3] - gpos[o3], gpos[t3 + 1] - gpos[o3 + 1], gpos[t3 + 2] - gpos[o3 + 2]).norm();
 		    Coord3f axis = cur.cmul(ref).norm();
 		    float ang = (float)Math.acos(cur.dmul(ref));
 		    // Debug.dump(cur, ref, axis, ang);
-		    this.cur = new Location(Transform.makexlate(new Matrix4f(), new Coord3f(gpos[orig][0], gpos[orig][1], gpos[orig][2]))
+		    this.cur = new Location(Transform.makexlate(new Matrix4f(), new Coord3f(gpos[o3], gpos[o3 + 1], gpos[o3 + 2]))
 			.mul1(Transform.makerot(new Matrix4f(), axis, -ang)));
 		    cseq = seq;
 		}
@@ -334,29 +381,45 @@ public class Skeleton {
 	    }
 	}
 	
+	/* Transform of a bone relative to its bind pose. */
+	private void bindrel(int bone, float[] xlate, float[] rot) {
+	    int b3 = bone * 3, b4 = bone * 4;
+	    float[] bpos = bindpose.gpos, brot = bindpose.grot;
+	    rot[0] = brot[b4]; rot[1] = -brot[b4 + 1]; rot[2] = -brot[b4 + 2]; rot[3] = -brot[b4 + 3];
+	    qqmul(rot, 0, grot, b4, rot, 0);
+	    xlate[0] = -bpos[b3]; xlate[1] = -bpos[b3 + 1]; xlate[2] = -bpos[b3 + 2];
+	    vqrot(xlate, xlate, rot);
+	    vvadd(xlate, 0, gpos, b3, xlate, 0);
+	}
+
 	public void boneoff(int bone, float[] offtrans) {
+	    boneoff(bone, offtrans, 0);
+	}
+
+	/* Writes the bind-relative transform of a bone as a
+	 * column-major 4x4 matrix at offtrans[off]. */
+	public void boneoff(int bone, float[] offtrans, int off) {
 	    /* It would be nice if these "new float"s get
 	     * stack-allocated. */
 	    float[] rot = new float[4], xlate = new float[3];
-	    rot = qqmul(rot, grot[bone], qinv(rot, bindpose.grot[bone]));
-	    xlate = vvadd(xlate, gpos[bone], vqrot(xlate, vinv(xlate, bindpose.gpos[bone]), rot));
-	    offtrans[3] = 0; offtrans[7] = 0; offtrans[11] = 0; offtrans[15] = 1;
-	    offtrans[12] = xlate[0]; offtrans[13] = xlate[1]; offtrans[14] = xlate[2];
+	    bindrel(bone, xlate, rot);
+	    offtrans[off + 3] = 0; offtrans[off + 7] = 0; offtrans[off + 11] = 0; offtrans[off + 15] = 1;
+	    offtrans[off + 12] = xlate[0]; offtrans[off + 13] = xlate[1]; offtrans[off + 14] = xlate[2];
 	    /* I must admit I don't /quite/ understand why the
 	     * rotation needs to be inverted... */
 	    float w = -rot[0], x = rot[1], y = rot[2], z = rot[3];
 	    float xw = x * w * 2, xx = x * x * 2, xy = x * y * 2, xz = x * z * 2;
 	    float yw = y * w * 2, yy = y * y * 2, yz = y * z * 2;
 	    float zw = z * w * 2, zz = z * z * 2;
-	    offtrans[ 0] = 1 - (yy + zz);
-	    offtrans[ 5] = 1 - (xx + zz);
-	    offtrans[10] = 1 - (xx + yy);
-	    offtrans[ 1] = xy - zw;
-	    offtrans[ 2] = xz + yw;
-	    offtrans[ 4] = xy + zw;
-	    offtrans[ 6] = yz - xw;
-	    offtrans[ 8] = xz - yw;
-	    offtrans[ 9] = yz + xw;
+	    offtrans[off +  0] = 1 - (yy + zz);
+	    offtrans[off +  5] = 1 - (xx + zz);
+	    offtrans[off + 10] = 1 - (xx + yy);
+	    offtrans[off +  1] = xy - zw;
+	    offtrans[off +  2] = xz + yw;
+	    offtrans[off +  4] = xy + zw;
+	    offtrans[off +  6] = yz - xw;
+	    offtrans[off +  8] = xz - yw;
+	    offtrans[off +  9] = yz + xw;
 	}
 	
 	public class Debug implements RenderTree.Node, Rendered, TickList.Ticking, TickList.TickNode {
@@ -396,9 +459,9 @@ public class Skeleton {
 		    java.nio.ByteBuffer buf = ret.push();
 		    for(int i = 0; i < bperm.length; i++) {
 			int bi = bperm[i], pi = blist[bi].parent.idx;
-			buf.putFloat(gpos[pi][0]).putFloat(gpos[pi][1]).putFloat(gpos[pi][2]);
+			buf.putFloat(gpos[pi * 3]).putFloat(gpos[(pi * 3) + 1]).putFloat(gpos[(pi * 3) + 2]);
 			buf.put((byte)255).put((byte)0).put((byte)0).put((byte)255);
-			buf.putFloat(gpos[bi][0]).putFloat(gpos[bi][1]).putFloat(gpos[bi][2]);
+			buf.putFloat(gpos[bi * 3]).putFloat(gpos[(bi * 3) + 1]).putFloat(gpos[(bi * 3) + 2]);
 			buf.put((byte)0).put((byte)255).put((byte)0).put((byte)255);
 		    }
 		    return(ret);
@@ -412,6 +475,62 @@ public class Skeleton {
 	    }
 	}
     }
+
+    /* Updates a set of poses of this skeleton together, one stage at
+     * a time over all of them, rather than each owner running every
+     * stage for its own pose in between unrelated work. */
+    public class PoseBatch {
+	private Pose[] poses = new Pose[16], old = new Pose[16];
+	private PoseMod[][] mods = new PoseMod[16][];
+	private float[] d = new float[16];
+	private int n = 0;
+
+	public void add(Pose pose, PoseMod[] mods, Pose old, float d) {
+	    if(pose.skel() != Skeleton.this)
+		throw(new IllegalArgumentException("pose of other skeleton added to batch"));
+	    if(n == poses.length) {
+		int nl = n * 2;
+		poses = Arrays.copyOf(poses, nl);
+		this.old = Arrays.copyOf(this.old, nl);
+		this.mods = Arrays.copyOf(this.mods, nl);
+		this.d = Arrays.copyOf(this.d, nl);
+	    }
+	    poses[n] = pose;
+	    this.mods[n] = mods;
+	    this.old[n] = old;
+	    this.d[n] = d;
+	    n++;
+	}
+
+	public int size() {return(n);}
+
+	public void run() {
+	    for(int i = 0; i < n; i++)
+		poses[i].reset();
+	    for(int i = 0; i < n; i++) {
+		for(PoseMod m : mods[i])
+		    m.apply(poses[i]);
+	    }
+	    for(int i = 0; i < n; i++) {
+		if(old[i] != null)
+		    Skeleton.blend(poses[i].lpos, poses[i].lrot, old[i].lpos, old[i].lrot, d[i]);
+	    }
+	    for(int i = 0; i < n; i++) {
+		Pose p = poses[i];
+		Skeleton.gbuild(parents, p.lpos, p.lrot, p.gpos, p.grot);
+		p.seq++;
+	    }
+	    clear();
+	}
+
+	public void clear() {
+	    for(int i = 0; i < n; i++) {
+		poses[i] = old[i] = null;
+		mods[i] = null;
+	    }
+	    n = 0;
+	}
+    }
     
     public interface ModOwner extends OwnerContext {
 	public double getv();
@@ -454,8 +573,8 @@ public class Skeleton {
 	
 	public void apply(Pose p) {
 	    for(int i = 0; i < blist.length; i++) {
-		vvadd(p.lpos[i], p.lpos[i], lpos[i]);
-		qqmul(p.lrot[i], p.lrot[i], lrot[i]);
+		vvadd(p.lpos, i * 3, p.lpos, i * 3, lpos[i], 0);
+		qqmul(p.lrot, i * 4, p.lrot, i * 4, lrot[i], 0);
 	    }
 	}
 	
@@ -1340,4 +1459,119 @@ public class Skeleton {
 	}
 
     }
+
+    /* The previous pose layout, with one small array per bone, kept
+     * only as a reference for main() below. */
+    private static class NestedPose {
+	final Skeleton skel;
+	final float[][] lpos, gpos, lrot, grot;
+
+	NestedPose(Skeleton skel) {
+	    int nb = skel.blist.length;
+	    this.skel = skel;
+	    lpos = new float[nb][3]; gpos = new float[nb][3];
+	    lrot = new float[nb][4]; grot = new float[nb][4];
+	}
+
+	void update(Pose base, PoseMod mod, NestedPose old, float d) {
+	    Bone[] blist = skel.blist;
+	    for(int i = 0; i < blist.length; i++) {
+		System.arraycopy(base.lpos, i * 3, lpos[i], 0, 3);
+		System.arraycopy(base.lrot, i * 4, lrot[i], 0, 4);
+	    }
+	    for(int i = 0; i < blist.length; i++) {
+		vvadd(lpos[i], lpos[i], mod.lpos[i]);
+		qqmul(lrot[i], lrot[i], mod.lrot[i]);
+	    }
+	    for(int i = 0; i < blist.length; i++) {
+		qqslerp(lrot[i], lrot[i], old.lrot[i], d);
+		lpos[i][0] = lpos[i][0] + ((old.lpos[i][0] - lpos[i][0]) * d);
+		lpos[i][1] = lpos[i][1] + ((old.lpos[i][1] - lpos[i][1]) * d);
+		lpos[i][2] = lpos[i][2] + ((old.lpos[i][2] - lpos[i][2]) * d);
+	    }
+	    for(int i = 0; i < blist.length; i++) {
+		Bone b = blist[i];
+		if(b.parent == null) {
+		    vset(gpos[i], lpos[i]);
+		    qset(grot[i], lrot[i]);
+		} else {
+		    int pi = b.parent.idx;
+		    qqmul(grot[i], grot[pi], lrot[i]);
+		    vqrot(gpos[i], lpos[i], grot[pi]);
+		    vvadd(gpos[i], gpos[i], gpos[pi]);
+		}
+	    }
+	}
+    }
+
+    /* Blends and rebuilds the poses of a number of characters
+     * sharing one skeleton, once with the nested reference layout and
+     * once with Pose through a PoseBatch, checks that both agree
+     * exactly, and reports the time per frame of each. */
+    public static void main(String[] args) {
+	int nchar = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+	int nbones = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+	int frames = (args.length > 2) ? Integer.parseInt(args[2]) : 500;
+	Random rnd = new Random(4711);
+	List<Bone> bones = new ArrayList<>();
+	for(int i = 0; i < nbones; i++) {
+	    Bone b = new Bone("b" + i, new Coord3f(rnd.nextFloat(), rnd.nextFloat(), rnd.nextFloat()),
+			      new Coord3f(rnd.nextFloat(), rnd.nextFloat(), rnd.nextFloat()).norm(), rnd.nextFloat() * 3);
+	    if(i > 0)
+		b.parent = bones.get(rnd.nextInt(i));
+	    bones.add(b);
+	}
+	Skeleton skel = new Skeleton(bones);
+	PoseMod[][] mods = new PoseMod[nchar][];
+	Pose[] poses = new Pose[nchar], olds = new Pose[nchar];
+	NestedPose[] nposes = new NestedPose[nchar], nolds = new NestedPose[nchar];
+	for(int c = 0; c < nchar; c++) {
+	    PoseMod mod = skel.nilmod();
+	    for(int i = 0; i < nbones; i++) {
+		mod.rot(i, rnd.nextFloat(), 0, 0, 1);
+		mod.lpos[i][0] = rnd.nextFloat() * 0.1f;
+	    }
+	    mods[c] = new PoseMod[] {mod};
+	    poses[c] = skel.new Pose(skel.bindpose);
+	    olds[c] = skel.new Pose(skel.bindpose);
+	    olds[c].update(mods[c], null, 0);
+	    nposes[c] = new NestedPose(skel);
+	    nolds[c] = new NestedPose(skel);
+	    for(int i = 0; i < nbones; i++) {
+		System.arraycopy(olds[c].lpos, i * 3, nolds[c].lpos[i], 0, 3);
+		System.arraycopy(olds[c].lrot, i * 4, nolds[c].lrot[i], 0, 4);
+	    }
+	}
+	PoseBatch batch = skel.new PoseBatch();
+	double tnest = 0, tflat = 0;
+	for(int f = -frames; f < frames; f++) {
+	    float d = (f & 15) / 16.0f;
+	    double st = Utils.rtime();
+	    for(int c = 0; c < nchar; c++)
+		nposes[c].update(skel.bindpose, mods[c][0], nolds[c], d);
+	    double mt = Utils.rtime();
+	    for(int c = 0; c < nchar; c++)
+		batch.add(poses[c], mods[c], olds[c], d);
+	    batch.run();
+	    double et = Utils.rtime();
+	    if(f >= 0) {
+		tnest += mt - st;
+		tflat += et - mt;
+	    }
+	}
+	for(int c = 0; c < nchar; c++) {
+	    for(int i = 0; i < nbones; i++) {
+		for(int o = 0; o < 3; o++) {
+		    if(Float.floatToIntBits(nposes[c].gpos[i][o]) != Float.floatToIntBits(poses[c].gpos[(i * 3) + o]))
+			throw(new AssertionError("position mismatch at character " + c + ", bone " + i));
+		}
+		for(int o = 0; o < 4; o++) {
+		    if(Float.floatToIntBits(nposes[c].grot[i][o]) != Float.floatToIntBits(poses[c].grot[(i * 4) + o]))
+			throw(new AssertionError("rotation mismatch at character " + c + ", bone " + i));
+		}
+	    }
+	}
+	System.out.printf("%d characters, %d bones: nested %.3f ms/frame, flat %.3f ms/frame%n",
+			  nchar, nbones, tnest * 1000 / frames, tflat * 1000 / frames);
+    }
 }
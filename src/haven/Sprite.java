@@ -241,6 +241,23 @@ public abstract class Sprite implements RenderTree.Node, PView.Render2D {
     
     public void gtick(Render g) {
     }
+
+    private static final ClassValue<Boolean> ticking = new ClassValue<Boolean>() {
+	protected Boolean computeValue(Class<?> cl) {
+	    try {
+		return((cl.getMethod("tick", Double.TYPE).getDeclaringClass() != Sprite.class) ||
+		       (cl.getMethod("gtick", Render.class).getDeclaringClass() != Sprite.class));
+	    } catch(NoSuchMethodException e) {
+		throw(new AssertionError(e));
+	    }
+	}
+    };
+
+    /* Whether ticking this sprite would do nothing, which is assumed
+     * unless tick or gtick is overridden. */
+    public boolean idle() {
+	return(!ticking.get(getClass()));
+    }
     
     public void age() {
     }
@@ -0,0 +1,385 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/* A work queue for a pool of worker threads, meant to replace a
+ * PrioQueue guarded by a single monitor. Tasks are sorted into a
+ * few lanes by priority and taken from the highest non-empty lane,
+ * except that a task that has waited longer than the aging limit
+ * is taken first regardless of its lane, so that low-priority work
+ * cannot starve. Tasks queued from a worker thread go to deques of
+ * that worker's own, which the other workers steal from when they
+ * run out of work, so that queueing and dequeueing needn't
+ * serialize on one lock. */
+public class TaskQueue<E extends Prioritized> {
+    public static final int NLANES = 4;
+    public final double agelimit;
+    private final Deque<Entry<E>>[] global;
+    private final Collection<Worker> workers = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Worker> current = new ThreadLocal<>();
+    private final AtomicInteger size = new AtomicInteger(0), nidle = new AtomicInteger(0);
+    private final Object idle = new Object();
+    private final AtomicLong wn = new AtomicLong(0), wsum = new AtomicLong(0), nstolen = new AtomicLong(0), naged = new AtomicLong(0);
+    private volatile long wmax = 0;
+    private double lastreset = Utils.rtime(), lastavg = 0, lastmax = 0;
+
+    public static class Entry<E> {
+	public final E task;
+	final int lane;
+	final long queued;
+	private final AtomicBoolean taken = new AtomicBoolean(false);
+
+	private Entry(E task, int lane, long queued) {
+	    this.task = task;
+	    this.lane = lane;
+	    this.queued = queued;
+	}
+
+	boolean take() {
+	    return(taken.compareAndSet(false, true));
+	}
+    }
+
+    private class Worker {
+	final Deque<Entry<E>>[] local = mklanes();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> Deque<Entry<E>>[] mklanes() {
+	Deque<Entry<E>>[] ret = new Deque[NLANES];
+	for(int i = 0; i < NLANES; i++)
+	    ret[i] = new ConcurrentLinkedDeque<>();
+	return(ret);
+    }
+
+    public TaskQueue(double agelimit) {
+	this.agelimit = agelimit;
+	this.global = mklanes();
+    }
+
+    public static int lane(int prio) {
+	if(prio >= 5)
+	    return(0);
+	if(prio >= 1)
+	    return(1);
+	if(prio >= 0)
+	    return(2);
+	return(3);
+    }
+
+    private void push(Entry<E> e) {
+	Worker w = current.get();
+	if(w != null)
+	    w.local[e.lane].addLast(e);
+	else
+	    global[e.lane].addLast(e);
+	size.incrementAndGet();
+	if(nidle.get() > 0) {
+	    synchronized(idle) {
+		idle.notify();
+	    }
+	}
+    }
+
+    public Entry<E> add(E task) {
+	Entry<E> e = new Entry<>(task, lane(task.priority()), System.nanoTime());
+	push(e);
+	return(e);
+    }
+
+    /* To be called when the priority of a queued task has been
+     * raised. Returns the entry that now represents the task. */
+    public Entry<E> reprio(Entry<E> e) {
+	int lane = lane(e.task.priority());
+	if((lane >= e.lane) || !e.take())
+	    return(e);
+	size.decrementAndGet();
+	Entry<E> n = new Entry<>(e.task, lane, e.queued);
+	push(n);
+	return(n);
+    }
+
+    /* Makes the calling thread a worker of this queue. */
+    public void register() {
+	if(current.get() != null)
+	    throw(new IllegalStateException("already registered"));
+	Worker w = new Worker();
+	current.set(w);
+	workers.add(w);
+    }
+
+    public void unregister() {
+	Worker w = current.get();
+	if(w == null)
+	    throw(new IllegalStateException("not registered"));
+	workers.remove(w);
+	current.remove();
+	for(int l = 0; l < NLANES; l++) {
+	    for(Entry<E> e; (e = w.local[l].pollFirst()) != null;)
+		global[l].addLast(e);
+	}
+    }
+
+    private boolean aged(Entry<E> e, long now) {
+	return((e != null) && ((now - e.queued) * 1e-9 > agelimit));
+    }
+
+    private Entry<E> claim(Entry<E> e) {
+	if((e == null) || !e.take())
+	    return(null);
+	size.decrementAndGet();
+	return(e);
+    }
+
+    private Entry<E> takeaged(Deque<Entry<E>> q, long now) {
+	Entry<E> e = q.peekFirst();
+	if(aged(e, now) && q.removeFirstOccurrence(e) && ((e = claim(e)) != null)) {
+	    naged.incrementAndGet();
+	    return(e);
+	}
+	return(null);
+    }
+
+    private Entry<E> take(Worker w) {
+	long now = System.nanoTime();
+	for(int l = NLANES - 1; l > 0; l--) {
+	    Entry<E> e;
+	    if(((e = takeaged(w.local[l], now)) != null) || ((e = takeaged(global[l], now)) != null))
+		return(e);
+	}
+	for(int l = 0; l < NLANES; l++) {
+	    for(Entry<E> e; (e = w.local[l].pollFirst()) != null;) {
+		if((e = claim(e)) != null)
+		    return(e);
+	    }
+	    for(Entry<E> e; (e = global[l].pollFirst()) != null;) {
+		if((e = claim(e)) != null)
+		    return(e);
+	    }
+	    for(Worker o : workers) {
+		if(o == w)
+		    continue;
+		for(Entry<E> e; (e = o.local[l].pollLast()) != null;) {
+		    if((e = claim(e)) != null) {
+			nstolen.incrementAndGet();
+			return(e);
+		    }
+		}
+	    }
+	}
+	return(null);
+    }
+
+    /* Takes the next task to run, waiting at most timeout seconds
+     * for one to arrive. Must be called from a registered worker. */
+    public E poll(double timeout) throws InterruptedException {
+	Worker w = current.get();
+	if(w == null)
+	    throw(new IllegalStateException("not registered"));
+	long deadline = System.nanoTime() + (long)(timeout * 1e9);
+	while(true) {
+	    Entry<E> e = take(w);
+	    if(e != null) {
+		long wt = System.nanoTime() - e.queued;
+		wn.incrementAndGet();
+		wsum.addAndGet(wt);
+		if(wt > wmax)
+		    wmax = wt;
+		return(e.task);
+	    }
+	    long left = deadline - System.nanoTime();
+	    if(left <= 0)
+		return(null);
+	    synchronized(idle) {
+		nidle.incrementAndGet();
+		try {
+		    if(size.get() <= 0)
+			idle.wait(Math.max(left / 1000000, 1));
+		} finally {
+		    nidle.decrementAndGet();
+		}
+	    }
+	}
+    }
+
+    public int size() {
+	return(Math.max(size.get(), 0));
+    }
+
+    public int idle() {
+	return(nidle.get());
+    }
+
+    public int[] depths() {
+	int[] ret = new int[NLANES];
+	for(int l = 0; l < NLANES; l++) {
+	    ret[l] = global[l].size();
+	    for(Worker w : workers)
+		ret[l] += w.local[l].size();
+	}
+	return(ret);
+    }
+
+    public long stolen() {return(nstolen.get());}
+    public long aged() {return(naged.get());}
+
+    /* Average and maximum queue wait time over the last second or
+     * so, in seconds. */
+    public double[] waittime() {
+	synchronized(this) {
+	    double now = Utils.rtime();
+	    if(now - lastreset > 1.0) {
+		long n = wn.getAndSet(0), sum = wsum.getAndSet(0);
+		lastavg = (n > 0) ? (sum * 1e-9 / n) : 0;
+		lastmax = wmax * 1e-9;
+		wmax = 0;
+		lastreset = now;
+	    }
+	    return(new double[] {lastavg, lastmax});
+	}
+    }
+
+    public String stats() {
+	double[] wt = waittime();
+	return(String.format("%s, wait %.1f/%.1f ms, %d aged", Arrays.toString(depths()), wt[0] * 1000, wt[1] * 1000, aged()));
+    }
+
+    /* Benchmark against what Defer did before: one PrioQueue under
+     * one monitor. The workload imitates Defer futures that hit
+     * Loading a few times before completing, each time queueing
+     * themselves anew from the worker thread that ran them. */
+    private static class BenchTask implements Prioritized {
+	final int prio;
+	final long created = System.nanoTime();
+	int resched;
+	long done;
+
+	BenchTask(int prio, int resched) {
+	    this.prio = prio;
+	    this.resched = resched;
+	}
+
+	public int priority() {return(prio);}
+    }
+
+    private static volatile long sink = 0;
+    private static boolean runtask(BenchTask t, int work) {
+	long acc = t.created;
+	for(int i = 0; i < work; i++)
+	    acc = (acc * 6364136223846793005L) + 1442695040888963407L;
+	sink += acc;
+	return(t.resched-- > 0);
+    }
+
+    private static double[] bench(boolean old, int nthreads, int ntasks, int work) throws InterruptedException {
+	PrioQueue<BenchTask> pq = new PrioQueue<>();
+	TaskQueue<BenchTask> tq = new TaskQueue<>(0.05);
+	AtomicInteger left = new AtomicInteger(ntasks);
+	List<BenchTask> all = new ArrayList<>();
+	Random rnd = new Random(4711);
+	for(int i = 0; i < ntasks; i++)
+	    all.add(new BenchTask(new int[] {-1, -1, 0, 1, 5}[rnd.nextInt(5)], rnd.nextInt(4)));
+	Thread[] th = new Thread[nthreads];
+	for(int i = 0; i < nthreads; i++) {
+	    th[i] = new Thread(() -> {
+		    if(!old)
+			tq.register();
+		    try {
+			while(left.get() > 0) {
+			    BenchTask t;
+			    if(old) {
+				synchronized(pq) {
+				    while(((t = pq.poll()) == null) && (left.get() > 0))
+					pq.wait(10);
+				}
+			    } else {
+				t = tq.poll(0.01);
+			    }
+			    if(t == null)
+				continue;
+			    if(runtask(t, work)) {
+				if(old) {
+				    synchronized(pq) {
+					pq.add(t);
+					pq.notify();
+				    }
+				} else {
+				    tq.add(t);
+				}
+			    } else {
+				t.done = System.nanoTime();
+				left.decrementAndGet();
+			    }
+			}
+		    } catch(InterruptedException e) {
+		    }
+		});
+	}
+	long st = System.nanoTime();
+	for(Thread t : th)
+	    t.start();
+	for(BenchTask t : all) {
+	    if(old) {
+		synchronized(pq) {
+		    pq.add(t);
+		    pq.notify();
+		}
+	    } else {
+		tq.add(t);
+	    }
+	}
+	for(Thread t : th)
+	    t.join();
+	double tm = (System.nanoTime() - st) * 1e-9;
+	double hmax = 0, lmax = 0;
+	for(BenchTask t : all) {
+	    double lat = (t.done - t.created) * 1e-9;
+	    if(t.prio >= 5)
+		hmax = Math.max(hmax, lat);
+	    else if(t.prio < 0)
+		lmax = Math.max(lmax, lat);
+	}
+	return(new double[] {ntasks / tm, hmax, lmax});
+    }
+
+    public static void main(String[] args) throws Exception {
+	int nthreads = (args.length > 0) ? Integer.parseInt(args[0]) : Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+	int ntasks = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+	int work = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+	for(int i = 0; i < 5; i++) {
+	    for(boolean old : new boolean[] {true, false}) {
+		double[] r = bench(old, nthreads, ntasks, work);
+		System.out.printf("%-10s %d threads: %8.0f tasks/s, max latency prio 5: %6.1f ms, prio -1: %6.1f ms%n",
+				  old ? "PrioQueue" : "TaskQueue", nthreads, r[0], r[1] * 1000, r[2] * 1000);
+	    }
+	}
+    }
+}
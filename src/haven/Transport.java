@@ -36,10 +36,17 @@ public interface Transport {
     public void send(PMessage msg);
     public Transport add(Callback cb);
 
+    /* Messages passed to callbacks may read directly from transport
+     * buffers, and so must be consumed (or copied) before the
+     * callback returns. */
     public static interface Callback {
 	public default void closed() {};
 	public default void handle(PMessage msg) {};
 	public default void handle(OCache.ObjDelta delta) {};
+	public default void handle(List<OCache.ObjDelta> deltas) {
+	    for(OCache.ObjDelta delta : deltas)
+		handle(delta);
+	}
 	public default void mapdata(Message msg) {};
 
 	public static class Recorder implements Callback {
@@ -0,0 +1,78 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven;
+
+import haven.render.*;
+
+/*
+ * The clip-space transform of a map view's camera, for judging where
+ * and how large things appear on screen without drawing them. Shared
+ * by the animation and mesh level-of-detail code so that they agree
+ * on what is visible.
+ */
+public class ViewClip {
+    /* Points this far outside the viewport, relative to its size,
+     * still count as visible, since objects have some extent. */
+    public static final float MARGIN = 1.25f;
+    public final MapView map;
+    public final Matrix4f xf;
+    private final float pxscale;
+
+    public ViewClip(MapView map) {
+	this.map = map;
+	Pipe st = map.basic.state();
+	Matrix4f prj = Homo3D.prjxf(st);
+	this.xf = prj.mul(Homo3D.camxf(st));
+	this.pxscale = prj.get(0, 0) * map.sz.x * 0.5f;
+    }
+
+    public static ViewClip of(Glob glob) {
+	if(glob == null)
+	    return(null);
+	GameUI gui = (glob.sess.ui == null) ? null : glob.sess.ui.gui;
+	MapView map = (gui == null) ? null : gui.map;
+	if(map == null)
+	    return(null);
+	return(new ViewClip(map));
+    }
+
+    public HomoCoord4f project(Coord3f c) {
+	return(xf.mul4(HomoCoord4f.of(c.x, -c.y, c.z)));
+    }
+
+    public static boolean visible(HomoCoord4f cc) {
+	float m = cc.w * MARGIN;
+	return((cc.w > 0) && (Math.abs(cc.x) <= m) && (Math.abs(cc.y) <= m));
+    }
+
+    /* The on-screen width, in pixels, of the given world-space
+     * length at a projected point. */
+    public float pixels(HomoCoord4f cc, float len) {
+	return(len * pxscale / cc.w);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.nio.file.*;
+
+/* A ResCache that returns from store() as soon as the data has been
+ * handed to it, and writes it to the backing cache in batches from a
+ * background thread. Until a datum has been written, fetch() returns
+ * it from memory, so readers always see the latest data without
+ * ever waiting for the disk.
+ *
+ * Each batch is first written as a single write-ahead log record,
+ * then to the individual files, and the log is cleared
+ * afterwards. A batch interrupted by a crash is thus either entirely
+ * lost, if its log record is incomplete, or completed on the next
+ * start. Batches are limited in size, which bounds the work needed
+ * for recovery. Several clients may share the same backing cache,
+ * so every use of the log, from writing a batch to clearing it, and
+ * recovery likewise, is done holding a lock file. A log found
+ * non-empty under the lock was thus left by a client that died. */
+public class WriteBehindCache implements ResCache {
+    public static final Config.Variable<Integer> delay = Config.Variable.propi("haven.wbdelay", 500);
+    public static final int MAXBATCH = 4 << 20, MAXPENDING = 64 << 20;
+    private static final byte[] WALSIG = "Haven write-ahead log 1".getBytes(Utils.ascii);
+    public final ResCache back;
+    public final String wal;
+    private final Path lockfile;
+    private final Map<String, byte[]> pending = new LinkedHashMap<>();
+    private long pendingsz = 0, written = 0, batches = 0;
+    private Thread writer = null;
+    private final Object wlock = new Object();
+
+    private WriteBehindCache(ResCache back, String wal) {
+	this.back = back;
+	this.wal = wal;
+	long h = 0;
+	String ids = back + "/" + wal;
+	for(int i = 0; i < ids.length(); i++)
+	    h = (h * 31) + ids.charAt(i);
+	this.lockfile = Utils.pj(HashDirCache.findbase(), String.format("wal-%016x.lock", h));
+	try {
+	    recover();
+	} catch(IOException e) {
+	    new Warning(e, "could not recover write-ahead log " + wal).issue();
+	}
+	Runtime.getRuntime().addShutdownHook(new HackThread(this::flush, "Write-behind flush"));
+    }
+
+    private static final Map<ResCache, Map<String, WriteBehindCache>> current = new IdentityHashMap<>();
+    /* There must be only one instance per log, or they would not see
+     * each other's pending data. */
+    public static WriteBehindCache get(ResCache back, String wal) {
+	synchronized(current) {
+	    return(current.computeIfAbsent(back, k -> new HashMap<>())
+		   .computeIfAbsent(wal, k -> new WriteBehindCache(back, wal)));
+	}
+    }
+
+    public OutputStream store(String name) {
+	return(new ByteArrayOutputStream() {
+		private boolean closed = false;
+
+		public void close() {
+		    if(!closed) {
+			closed = true;
+			put(name, toByteArray());
+		    }
+		}
+	    });
+    }
+
+    public InputStream fetch(String name) throws IOException {
+	byte[] data;
+	synchronized(this) {
+	    data = pending.get(name);
+	}
+	if(data != null)
+	    return(new ByteArrayInputStream(data));
+	return(back.fetch(name));
+    }
+
+    private void put(String name, byte[] data) {
+	synchronized(this) {
+	    while(pendingsz > MAXPENDING) {
+		try {
+		    wait();
+		} catch(InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    break;
+		}
+	    }
+	    /* Remove first, so that the datum moves to the end of
+	     * the write order. */
+	    byte[] prev = pending.remove(name);
+	    if(prev != null)
+		pendingsz -= prev.length;
+	    pending.put(name, data);
+	    pendingsz += data.length;
+	    if(writer == null) {
+		writer = new HackThread(this::run, "Write-behind writer");
+		writer.setDaemon(true);
+		writer.start();
+	    }
+	    notifyAll();
+	}
+    }
+
+    private void run() {
+	try {
+	    long last = System.currentTimeMillis();
+	    while(true) {
+		synchronized(this) {
+		    if(pending.isEmpty()) {
+			if(System.currentTimeMillis() - last > 10000) {
+			    writer = null;
+			    return;
+			}
+			wait(5000);
+			continue;
+		    }
+		}
+		/* Let writes that come in bursts collect into one
+		 * batch. */
+		Thread.sleep(delay.get());
+		try {
+		    writebatch();
+		} catch(IOException e) {
+		    new Warning(e, "could not write to " + back).issue();
+		    Thread.sleep(5000);
+		}
+		last = System.currentTimeMillis();
+	    }
+	} catch(InterruptedException e) {
+	} finally {
+	    synchronized(this) {
+		if(writer == Thread.currentThread())
+		    writer = null;
+	    }
+	}
+    }
+
+    private boolean writebatch() throws IOException {
+	synchronized(wlock) {
+	    return(writebatch0());
+	}
+    }
+
+    private boolean writebatch0() throws IOException {
+	List<Map.Entry<String, byte[]>> batch = new ArrayList<>();
+	synchronized(this) {
+	    int sz = 0;
+	    for(Map.Entry<String, byte[]> ent : pending.entrySet()) {
+		if(!batch.isEmpty() && (sz + ent.getValue().length > MAXBATCH))
+		    break;
+		batch.add(new AbstractMap.SimpleImmutableEntry<>(ent));
+		sz += ent.getValue().length;
+	    }
+	}
+	if(batch.isEmpty())
+	    return(false);
+	try(LockedFile lk = LockedFile.lock(lockfile)) {
+	    writelog(batch);
+	    apply(batch);
+	    try(OutputStream fp = back.store(wal)) {
+	    }
+	}
+	synchronized(this) {
+	    for(Map.Entry<String, byte[]> ent : batch) {
+		/* Data that has been replaced while being written
+		 * remains pending. */
+		if(pending.get(ent.getKey()) == ent.getValue()) {
+		    pending.remove(ent.getKey());
+		    pendingsz -= ent.getValue().length;
+		}
+	    }
+	    written += batch.size();
+	    batches++;
+	    notifyAll();
+	}
+	return(true);
+    }
+
+    private void writelog(List<Map.Entry<String, byte[]>> batch) throws IOException {
+	MessageBuf buf = new MessageBuf();
+	buf.addint32(batch.size());
+	for(Map.Entry<String, byte[]> ent : batch) {
+	    buf.addstring(ent.getKey());
+	    buf.addint32(ent.getValue().length);
+	    buf.addbytes(ent.getValue());
+	}
+	byte[] body = buf.fin();
+	CRC32 crc = new CRC32();
+	crc.update(body);
+	try(StreamMessage out = new StreamMessage(back.store(wal))) {
+	    out.addbytes(WALSIG);
+	    out.addint32(body.length);
+	    out.addint32((int)crc.getValue());
+	    out.addbytes(body);
+	} catch(StreamMessage.IOError e) {
+	    throw((IOException)e.getCause());
+	}
+    }
+
+    private void apply(List<Map.Entry<String, byte[]>> batch) throws IOException {
+	for(Map.Entry<String, byte[]> ent : batch) {
+	    try(OutputStream fp = back.store(ent.getKey())) {
+		fp.write(ent.getValue());
+	    }
+	}
+    }
+
+    private void recover() throws IOException {
+	try(LockedFile lk = LockedFile.lock(lockfile)) {
+	    recover0();
+	}
+    }
+
+    private void recover0() throws IOException {
+	byte[] body;
+	try(StreamMessage in = new StreamMessage(back.fetch(wal))) {
+	    if(in.eom())
+		return;
+	    if(!Arrays.equals(in.bytes(WALSIG.length), WALSIG))
+		throw(new IOException("invalid write-ahead log signature"));
+	    int len = in.int32();
+	    int crc = in.int32();
+	    body = in.bytes(len);
+	    CRC32 ck = new CRC32();
+	    ck.update(body);
+	    if((int)ck.getValue() != crc)
+		body = null;
+	} catch(FileNotFoundException e) {
+	    return;
+	} catch(Message.EOF e) {
+	    body = null;
+	}
+	if(body != null) {
+	    MessageBuf buf = new MessageBuf(body);
+	    List<Map.Entry<String, byte[]>> batch = new ArrayList<>();
+	    for(int i = 0, n = buf.int32(); i < n; i++) {
+		String name = buf.string();
+		batch.add(new AbstractMap.SimpleImmutableEntry<>(name, buf.bytes(buf.int32())));
+	    }
+	    apply(batch);
+	    Debug.log.printf("%s: recovered %d entries from write-ahead log\n", wal, batch.size());
+	} else {
+	    /* The batch never got to be written anywhere but the
+	     * log itself, so nothing is inconsistent. */
+	    Debug.log.printf("%s: discarding incomplete write-ahead log\n", wal);
+	}
+	try(OutputStream fp = back.store(wal)) {
+	}
+    }
+
+    /* Writes everything pending before returning. */
+    public void flush() {
+	try {
+	    while(true) {
+		synchronized(this) {
+		    if(pending.isEmpty())
+			return;
+		}
+		if(!writebatch())
+		    return;
+	    }
+	} catch(IOException e) {
+	    new Warning(e, "could not flush to " + back).issue();
+	}
+    }
+
+    public String stats() {
+	synchronized(this) {
+	    return(String.format("%,d pending (%,d bytes), %,d written in %,d batches", pending.size(), pendingsz, written, batches));
+	}
+    }
+
+    public String toString() {
+	return("WriteBehind(" + back + ", " + wal + ")");
+    }
+}
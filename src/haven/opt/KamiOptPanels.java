@@ -114,6 +114,30 @@ public interface KamiOptPanels {
 		panel.add(new CFGBox("Parallel scene tick", CFG.PARALLEL_TICK, "Runs scene-tick processing across multiple threads. Off = single-threaded (less variance, slower average). Useful when stutters feel worse than baseline FPS."), x, y);
 
 		y += STEP;
+		panel.add(new CFGBox("Background animation", CFG.ANIM_JOBS, "Evaluates character and animal poses on worker threads alongside the rest of the frame. Poses are shown one tick later."), x, y);
+
+		y += STEP;
+		panel.add(new CFGBox("Animation level of detail", CFG.ANIM_LOD, "Updates animations of distant or off-screen objects less often."), x, y);
+
+		y += STEP;
+		{
+			Label mdpy = new Label.Untranslated("");
+			String[] mnames = {"Off", "Subtle", "Balanced", "Aggressive"};
+			panel.add(new Label("Distant mesh simplification"), x, y);
+			y += UI.scale(15);
+			panel.addhlp(new Coord(x, y), UI.scale(5),
+				new HSlider(UI.scale(160), 0, mnames.length - 1, CFG.MESH_LOD.get()) {
+					protected void added() {dpy();}
+					void dpy() {mdpy.settext(mnames[this.val]);}
+					public void changed() {
+						CFG.MESH_LOD.set(this.val);
+						dpy();
+					}
+				},
+				mdpy);
+			y += STEP;
+		}
+
 		{
 			Label ddpy = new Label.Untranslated("");
 			String[] dnames = {"Unlimited", "16", "32", "64", "128", "256"};
@@ -27,6 +27,7 @@
 package haven.render;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import haven.*;
 import haven.render.sl.ShaderMacro;
 
@@ -81,6 +82,56 @@ public interface Rendered {
 	    };
     }
 
+    /* The level of detail wanted for what is drawn under it, zero
+     * being full detail. Draw lists redraw the Detailed objects
+     * under it when it changes, so that they can draw something
+     * else. */
+    public static final State.Slot<Detail> detail = new State.Slot<>(State.Slot.Type.GEOM, Detail.class);
+    public static class Detail extends State {
+	public static final int MAX = 2;
+	private static final Detail[] levels = {new Detail(0), new Detail(1), new Detail(2)};
+	public final int level;
+
+	private Detail(int level) {
+	    this.level = level;
+	}
+
+	public static Detail of(int level) {
+	    return(levels[Math.max(Math.min(level, MAX), 0)]);
+	}
+
+	public static int level(Pipe p) {
+	    Detail d = p.get(detail);
+	    return((d == null) ? 0 : d.level);
+	}
+
+	public ShaderMacro shader() {return(null);}
+	public void apply(Pipe p) {p.put(detail, this);}
+
+	public String toString() {return(String.format("#<detail %d>", level));}
+
+	/* Primitives currently in draw lists under reduced detail. */
+	public static final AtomicLong reduced = new AtomicLong();
+	/* Primitives those would have drawn at full detail. */
+	public static final AtomicLong full = new AtomicLong();
+	/* Draws currently made at reduced detail. */
+	public static final AtomicLong draws = new AtomicLong();
+
+	public static void account(int nfull, int ndrawn, int sign) {
+	    full.addAndGet(sign * nfull);
+	    reduced.addAndGet(sign * ndrawn);
+	    draws.addAndGet(sign);
+	}
+    }
+
+    /* Implemented by objects that draw differently depending on the
+     * detail state. */
+    public static interface Detailed extends Rendered {
+	/* The number of primitives drawn at the given level, or -1 if
+	 * the object does not vary with it. */
+	public int prims(int level);
+    }
+
     public final static Order deflt = new Order.Default(0);
     public final static Order first = new Order.Default(Integer.MIN_VALUE);
     public final static Order last = new Order.Default(Integer.MAX_VALUE);
@@ -1059,6 +1059,15 @@ public abstract class BGL {
 
 	    public DCmd(Dump d, Object o) {
 		this.clnm = o.getClass().getName();
+		if(o instanceof BufferBGL.Op) {
+		    BufferBGL.Op op = (BufferBGL.Op)o;
+		    mnm = op.name;
+		    argn = op.argn;
+		    args = new Object[op.args.length];
+		    for(int i = 0; i < args.length; i++)
+			args[i] = d.mapval(op.args[i]);
+		    return;
+		}
 		if(o.getClass().getEnclosingMethod() != null) {
 		    mnm = o.getClass().getEnclosingMethod().getName();
 		} else {
@@ -1105,7 +1114,7 @@ public abstract class BGL {
 	    for(Command ocmd : buf.dump()) {
 		DCmd cmd = new DCmd(this, ocmd);
 		list.add(cmd);
-		if(ocmd == mark)
+		if(ocmd.equals(mark))
 		    marked = cmd;
 	    }
 	    this.mark = marked;
@@ -32,29 +32,208 @@ import java.util.regex.*;
 import java.io.*;
 import java.nio.file.*;
 
+/*
+ * Commands are recorded into a flat int array rather than as one
+ * Command object per call. Each recorded call is an opcode followed
+ * by its arguments: ints and booleans as-is, floats by their raw
+ * bits, longs as two ints, and object arguments (IDs, arrays,
+ * requests) as indices into a parallel reference array. Calls that
+ * have no encoding of their own fall back to the Command objects
+ * created by BGL, stored under OP_CMD.
+ */
 public class BufferBGL extends BGL {
     public static final boolean DEBUG = false;
-    public static final BufferBGL empty = new BufferBGL(0) {
-	    protected void add(Command cmd) {
-		throw(new RuntimeException());
-	    }
-	};
+    public static final BufferBGL empty = new BufferBGL(0).freeze();
     private static Profile curprof = null;
-    private Command[] list;
-    private int n = 0;
+    private int[] code;
+    private Object[] refs;
+    private int cn = 0, rn = 0, n = 0;
+    private boolean frozen = false;
+
+    private static final int OP_CMD = 0, OP_CALL = 1, OP_SUBMIT = 2,
+	OP_ACTIVETEX = 3, OP_BINDBUF = 4, OP_BINDFB = 5, OP_BINDTEX = 6, OP_BINDVAO = 7, OP_USEPROG = 8,
+	OP_ENABLE = 9, OP_DISABLE = 10, OP_ENABLEI = 11, OP_DISABLEI = 12,
+	OP_DEPTHMASK = 13, OP_DEPTHFUNC = 14, OP_CULLFACE = 15,
+	OP_BLENDFUNC = 16, OP_BLENDFUNCSEP = 17, OP_BLENDEQ = 18, OP_BLENDEQSEP = 19, OP_BLENDCOLOR = 20,
+	OP_COLORMASK = 21, OP_COLORMASKI = 22, OP_POLYOFS = 23, OP_LINEWIDTH = 24, OP_POINTSIZE = 25,
+	OP_SCISSOR = 26, OP_VIEWPORT = 27,
+	OP_DRAWARRAYS = 28, OP_DRAWARRAYSI = 29, OP_DRAWELEMENTS = 30, OP_DRAWELEMENTSI = 31, OP_DRAWRANGE = 32,
+	OP_ENVAA = 33, OP_DISVAA = 34, OP_VAP = 35, OP_VAIP = 36, OP_VADIV = 37,
+	OP_UNI1F = 38, OP_UNI2F = 39, OP_UNI3F = 40, OP_UNI4F = 41,
+	OP_UNI1I = 42, OP_UNI2I = 43, OP_UNI3I = 44, OP_UNI4I = 45,
+	OP_UNI3FV = 46, OP_UNI4FV = 47, OP_UNIM3 = 48, OP_UNIM4 = 49;
+    private static final int NOPS = 50;
+    private static final String[] opnames = new String[NOPS];
+    private static final String[] opsigs = new String[NOPS];
+    private static final String[][] opargs = new String[NOPS][];
+    private static final int[] oplens = new int[NOPS];
+
+    private static void def(int op, String name, String sig, String... args) {
+	if(sig.length() != args.length)
+	    throw(new AssertionError(name));
+	opnames[op] = name;
+	opsigs[op] = sig;
+	opargs[op] = args;
+	int len = 0;
+	for(int i = 0; i < sig.length(); i++)
+	    len += (sig.charAt(i) == 'l') ? 2 : 1;
+	oplens[op] = len;
+    }
+
+    static {
+	def(OP_CMD, "cmd", "r", "cmd");
+	def(OP_CALL, "bglCallList", "r", "list");
+	def(OP_SUBMIT, "bglSubmit", "r", "req");
+	def(OP_ACTIVETEX, "glActiveTexture", "i", "texture");
+	def(OP_BINDBUF, "glBindBuffer", "ir", "target", "buffer");
+	def(OP_BINDFB, "glBindFramebuffer", "ir", "target", "buffer");
+	def(OP_BINDTEX, "glBindTexture", "ir", "target", "texture");
+	def(OP_BINDVAO, "glBindVertexArray", "r", "array");
+	def(OP_USEPROG, "glUseProgram", "r", "program");
+	def(OP_ENABLE, "glEnable", "i", "cap");
+	def(OP_DISABLE, "glDisable", "i", "cap");
+	def(OP_ENABLEI, "glEnablei", "ii", "cap", "index");
+	def(OP_DISABLEI, "glDisablei", "ii", "cap", "index");
+	def(OP_DEPTHMASK, "glDepthMask", "b", "mask");
+	def(OP_DEPTHFUNC, "glDepthFunc", "i", "func");
+	def(OP_CULLFACE, "glCullFace", "i", "mode");
+	def(OP_BLENDFUNC, "glBlendFunc", "ii", "sfac", "dfac");
+	def(OP_BLENDFUNCSEP, "glBlendFuncSeparate", "iiii", "csfac", "cdfac", "asfac", "adfac");
+	def(OP_BLENDEQ, "glBlendEquation", "i", "mode");
+	def(OP_BLENDEQSEP, "glBlendEquationSeparate", "ii", "cmode", "amode");
+	def(OP_BLENDCOLOR, "glBlendColor", "ffff", "red", "green", "blue", "alpha");
+	def(OP_COLORMASK, "glColorMask", "bbbb", "r", "g", "b", "a");
+	def(OP_COLORMASKI, "glColorMaski", "ibbbb", "buf", "r", "g", "b", "a");
+	def(OP_POLYOFS, "glPolygonOffset", "ff", "factor", "units");
+	def(OP_LINEWIDTH, "glLineWidth", "f", "w");
+	def(OP_POINTSIZE, "glPointSize", "f", "size");
+	def(OP_SCISSOR, "glScissor", "iiii", "x", "y", "w", "h");
+	def(OP_VIEWPORT, "glViewport", "iiii", "x", "y", "w", "h");
+	def(OP_DRAWARRAYS, "glDrawArrays", "iii", "mode", "first", "count");
+	def(OP_DRAWARRAYSI, "glDrawArraysInstanced", "iiii", "mode", "first", "count", "primcount");
+	def(OP_DRAWELEMENTS, "glDrawElements", "iiil", "mode", "count", "type", "indices");
+	def(OP_DRAWELEMENTSI, "glDrawElementsInstanced", "iiili", "mode", "count", "type", "indices", "primcount");
+	def(OP_DRAWRANGE, "glDrawRangeElements", "iiiiil", "mode", "start", "end", "count", "type", "indices");
+	def(OP_ENVAA, "glEnableVertexAttribArray", "ri", "location", "offset");
+	def(OP_DISVAA, "glDisableVertexAttribArray", "ri", "location", "offset");
+	def(OP_VAP, "glVertexAttribPointer", "riiibil", "location", "offset", "size", "type", "normalized", "stride", "pointer");
+	def(OP_VAIP, "glVertexAttribIPointer", "riiiil", "location", "offset", "size", "type", "stride", "pointer");
+	def(OP_VADIV, "glVertexAttribDivisor", "rii", "location", "offset", "divisor");
+	def(OP_UNI1F, "glUniform1f", "rf", "location", "v0");
+	def(OP_UNI2F, "glUniform2f", "rff", "location", "v0", "v1");
+	def(OP_UNI3F, "glUniform3f", "rfff", "location", "v0", "v1", "v2");
+	def(OP_UNI4F, "glUniform4f", "rffff", "location", "v0", "v1", "v2", "v3");
+	def(OP_UNI1I, "glUniform1i", "ri", "location", "v0");
+	def(OP_UNI2I, "glUniform2i", "rii", "location", "v0", "v1");
+	def(OP_UNI3I, "glUniform3i", "riii", "location", "v0", "v1", "v2");
+	def(OP_UNI4I, "glUniform4i", "riiii", "location", "v0", "v1", "v2", "v3");
+	def(OP_UNI3FV, "glUniform3fv", "rir", "location", "count", "val");
+	def(OP_UNI4FV, "glUniform4fv", "rir", "location", "count", "val");
+	def(OP_UNIM3, "glUniformMatrix3fv", "ribr", "location", "count", "transpose", "value");
+	def(OP_UNIM4, "glUniformMatrix4fv", "ribr", "location", "count", "transpose", "value");
+    }
 
     public BufferBGL(int c) {
-	list = new Command[Math.max(c, 1)];
+	c = Math.max(c, 1);
+	code = new int[c * 4];
+	refs = new Object[c];
     }
     public BufferBGL() {this(128);}
 
+    private BufferBGL freeze() {
+	frozen = true;
+	return(this);
+    }
+
+    private static int id(ID id) {
+	return((id == null) ? 0 : id.glid());
+    }
+
+    private static float f(int v) {
+	return(Float.intBitsToFloat(v));
+    }
+
+    private static long l(int[] code, int p) {
+	return(((long)code[p] << 32) | (code[p + 1] & 0xffffffffL));
+    }
+
+    private int exec(GL gl, int pc) {
+	int[] c = this.code;
+	Object[] r = this.refs;
+	int op = c[pc], p = pc + 1;
+	switch(op) {
+	case OP_CMD: ((Command)r[c[p]]).run(gl); break;
+	case OP_CALL: ((BufferBGL)r[c[p]]).run(gl); break;
+	case OP_SUBMIT: ((Request)r[c[p]]).run(gl); break;
+	case OP_ACTIVETEX: gl.glActiveTexture(c[p]); break;
+	case OP_BINDBUF: gl.glBindBuffer(c[p], id((ID)r[c[p + 1]])); break;
+	case OP_BINDFB: gl.glBindFramebuffer(c[p], id((ID)r[c[p + 1]])); break;
+	case OP_BINDTEX: gl.glBindTexture(c[p], id((ID)r[c[p + 1]])); break;
+	case OP_BINDVAO: gl.glBindVertexArray(id((ID)r[c[p]])); break;
+	case OP_USEPROG: gl.glUseProgram(id((ID)r[c[p]])); break;
+	case OP_ENABLE: gl.glEnable(c[p]); break;
+	case OP_DISABLE: gl.glDisable(c[p]); break;
+	case OP_ENABLEI: gl.glEnablei(c[p], c[p + 1]); break;
+	case OP_DISABLEI: gl.glDisablei(c[p], c[p + 1]); break;
+	case OP_DEPTHMASK: gl.glDepthMask(c[p] != 0); break;
+	case OP_DEPTHFUNC: gl.glDepthFunc(c[p]); break;
+	case OP_CULLFACE: gl.glCullFace(c[p]); break;
+	case OP_BLENDFUNC: gl.glBlendFunc(c[p], c[p + 1]); break;
+	case OP_BLENDFUNCSEP: gl.glBlendFuncSeparate(c[p], c[p + 1], c[p + 2], c[p + 3]); break;
+	case OP_BLENDEQ: gl.glBlendEquation(c[p]); break;
+	case OP_BLENDEQSEP: gl.glBlendEquationSeparate(c[p], c[p + 1]); break;
+	case OP_BLENDCOLOR: gl.glBlendColor(f(c[p]), f(c[p + 1]), f(c[p + 2]), f(c[p + 3])); break;
+	case OP_COLORMASK: gl.glColorMask(c[p] != 0, c[p + 1] != 0, c[p + 2] != 0, c[p + 3] != 0); break;
+	case OP_COLORMASKI: gl.glColorMaski(c[p], c[p + 1] != 0, c[p + 2] != 0, c[p + 3] != 0, c[p + 4] != 0); break;
+	case OP_POLYOFS: gl.glPolygonOffset(f(c[p]), f(c[p + 1])); break;
+	case OP_LINEWIDTH: gl.glLineWidth(f(c[p])); break;
+	case OP_POINTSIZE: gl.glPointSize(f(c[p])); break;
+	case OP_SCISSOR: gl.glScissor(c[p], c[p + 1], c[p + 2], c[p + 3]); break;
+	case OP_VIEWPORT: gl.glViewport(c[p], c[p + 1], c[p + 2], c[p + 3]); break;
+	case OP_DRAWARRAYS: gl.glDrawArrays(c[p], c[p + 1], c[p + 2]); break;
+	case OP_DRAWARRAYSI: gl.glDrawArraysInstanced(c[p], c[p + 1], c[p + 2], c[p + 3]); break;
+	case OP_DRAWELEMENTS: gl.glDrawElements(c[p], c[p + 1], c[p + 2], l(c, p + 3)); break;
+	case OP_DRAWELEMENTSI: gl.glDrawElementsInstanced(c[p], c[p + 1], c[p + 2], l(c, p + 3), c[p + 5]); break;
+	case OP_DRAWRANGE: gl.glDrawRangeElements(c[p], c[p + 1], c[p + 2], c[p + 3], c[p + 4], l(c, p + 5)); break;
+	case OP_ENVAA: gl.glEnableVertexAttribArray(((ID)r[c[p]]).glid() + c[p + 1]); break;
+	case OP_DISVAA: gl.glDisableVertexAttribArray(((ID)r[c[p]]).glid() + c[p + 1]); break;
+	case OP_VAP: gl.glVertexAttribPointer(((ID)r[c[p]]).glid() + c[p + 1], c[p + 2], c[p + 3], c[p + 4] != 0, c[p + 5], l(c, p + 6)); break;
+	case OP_VAIP: gl.glVertexAttribIPointer(((ID)r[c[p]]).glid() + c[p + 1], c[p + 2], c[p + 3], c[p + 4], l(c, p + 5)); break;
+	case OP_VADIV: gl.glVertexAttribDivisor(((ID)r[c[p]]).glid() + c[p + 1], c[p + 2]); break;
+	default: {
+	    /* Uniforms, which are skipped for locations not present
+	     * in the program. */
+	    int id = ((ID)r[c[p]]).glid();
+	    if(id != -1) {
+		switch(op) {
+		case OP_UNI1F: gl.glUniform1f(id, f(c[p + 1])); break;
+		case OP_UNI2F: gl.glUniform2f(id, f(c[p + 1]), f(c[p + 2])); break;
+		case OP_UNI3F: gl.glUniform3f(id, f(c[p + 1]), f(c[p + 2]), f(c[p + 3])); break;
+		case OP_UNI4F: gl.glUniform4f(id, f(c[p + 1]), f(c[p + 2]), f(c[p + 3]), f(c[p + 4])); break;
+		case OP_UNI1I: gl.glUniform1i(id, c[p + 1]); break;
+		case OP_UNI2I: gl.glUniform2i(id, c[p + 1], c[p + 2]); break;
+		case OP_UNI3I: gl.glUniform3i(id, c[p + 1], c[p + 2], c[p + 3]); break;
+		case OP_UNI4I: gl.glUniform4i(id, c[p + 1], c[p + 2], c[p + 3], c[p + 4]); break;
+		case OP_UNI3FV: gl.glUniform3fv(id, c[p + 1], (float[])r[c[p + 2]]); break;
+		case OP_UNI4FV: gl.glUniform4fv(id, c[p + 1], (float[])r[c[p + 2]]); break;
+		case OP_UNIM3: gl.glUniformMatrix3fv(id, c[p + 1], c[p + 2] != 0, (float[])r[c[p + 3]]); break;
+		case OP_UNIM4: gl.glUniformMatrix4fv(id, c[p + 1], c[p + 2] != 0, (float[])r[c[p + 3]]); break;
+		default: throw(new IllegalStateException("Invalid BGL opcode " + op + " at " + pc));
+		}
+	    }
+	}
+	}
+	return(p + oplens[op]);
+    }
+
     public void run(GL gl) {
-	for(int i = 0; i < n; i++) {
+	for(int pc = 0; pc < cn;) {
 	    if(curprof != null)
-		curprof.register(list[i]);
+		curprof.register(this, pc);
+	    int next;
 	    try {
 		try {
-		    list[i].run(gl);
+		    next = exec(gl, pc);
 		    if(DEBUG)
 			GLException.checkfor(gl, null);
 		} catch(RuntimeException exc) {
@@ -62,42 +241,292 @@ public class BufferBGL extends BGL {
 		    throw(exc);
 		}
 	    } catch(Exception exc) {
-		BGLException e = new BGLException(this, list[i], exc);
+		BGLException e = new BGLException(this, decode(pc), exc);
 		if(DEBUG)
 		    e.dump.dump();
 		throw(e);
 	    }
+	    pc = next;
 	}
     }
 
     public void abort() {
-	for(int i = 0; i < n; i++)
-	    list[i].abort();
+	for(int pc = 0; pc < cn; pc += 1 + oplens[code[pc]]) {
+	    switch(code[pc]) {
+	    case OP_CMD: ((Command)refs[code[pc + 1]]).abort(); break;
+	    case OP_SUBMIT: ((Request)refs[code[pc + 1]]).abort(); break;
+	    }
+	}
+    }
+
+    private int op(int op) {
+	if(frozen)
+	    throw(new RuntimeException());
+	int len = 1 + oplens[op];
+	if(cn + len > code.length)
+	    code = Arrays.copyOf(code, Math.max(code.length * 2, cn + len));
+	int p = cn;
+	code[p] = op;
+	cn += len;
+	n++;
+	return(p + 1);
+    }
+
+    private int ref(Object ob) {
+	if(rn >= refs.length)
+	    refs = Arrays.copyOf(refs, refs.length * 2);
+	refs[rn] = ob;
+	return(rn++);
+    }
+
+    private static int b(boolean v) {return(v ? 1 : 0);}
+    private static int f(float v) {return(Float.floatToRawIntBits(v));}
+
+    private void l(int p, long v) {
+	code[p] = (int)(v >>> 32);
+	code[p + 1] = (int)v;
     }
 
     protected void add(Command cmd) {
-	if(n >= list.length)
-	    list = Arrays.copyOf(list, list.length * 2);
-	list[n++] = cmd;
+	int p = op(OP_CMD);
+	code[p] = ref(cmd);
     }
 
     public BufferBGL trim() {
-	list = Arrays.copyOf(list, n);
+	code = Arrays.copyOf(code, Math.max(cn, 1));
+	refs = Arrays.copyOf(refs, Math.max(rn, 1));
 	return(this);
     }
 
+    /* Empty the buffer so that it can be re-recorded, retaining its
+     * allocated storage. */
+    public void clear() {
+	if(frozen)
+	    throw(new RuntimeException());
+	Arrays.fill(refs, 0, rn, null);
+	cn = rn = n = 0;
+    }
+
+    public int size() {
+	return(n);
+    }
+
+    public void bglSubmit(Request req) {int p = op(OP_SUBMIT); code[p] = ref(req);}
+    public void bglCallList(BufferBGL list) {int p = op(OP_CALL); code[p] = ref(list);}
+    public void glActiveTexture(int texture) {int p = op(OP_ACTIVETEX); code[p] = texture;}
+    public void glBindBuffer(int target, ID buffer) {int p = op(OP_BINDBUF); code[p] = target; code[p + 1] = ref(buffer);}
+    public void glBindFramebuffer(int target, ID buffer) {int p = op(OP_BINDFB); code[p] = target; code[p + 1] = ref(buffer);}
+    public void glBindTexture(int target, ID texture) {int p = op(OP_BINDTEX); code[p] = target; code[p + 1] = ref(texture);}
+    public void glBindVertexArray(ID array) {int p = op(OP_BINDVAO); code[p] = ref(array);}
+    public void glUseProgram(ID program) {int p = op(OP_USEPROG); code[p] = ref(program);}
+    public void glEnable(int cap) {int p = op(OP_ENABLE); code[p] = cap;}
+    public void glDisable(int cap) {int p = op(OP_DISABLE); code[p] = cap;}
+    public void glEnablei(int cap, int index) {int p = op(OP_ENABLEI); code[p] = cap; code[p + 1] = index;}
+    public void glDisablei(int cap, int index) {int p = op(OP_DISABLEI); code[p] = cap; code[p + 1] = index;}
+    public void glDepthMask(boolean mask) {int p = op(OP_DEPTHMASK); code[p] = b(mask);}
+    public void glDepthFunc(int func) {int p = op(OP_DEPTHFUNC); code[p] = func;}
+    public void glCullFace(int mode) {int p = op(OP_CULLFACE); code[p] = mode;}
+    public void glBlendFunc(int sfac, int dfac) {int p = op(OP_BLENDFUNC); code[p] = sfac; code[p + 1] = dfac;}
+    public void glBlendEquation(int mode) {int p = op(OP_BLENDEQ); code[p] = mode;}
+    public void glBlendEquationSeparate(int cmode, int amode) {int p = op(OP_BLENDEQSEP); code[p] = cmode; code[p + 1] = amode;}
+    public void glLineWidth(float w) {int p = op(OP_LINEWIDTH); code[p] = f(w);}
+    public void glPointSize(float size) {int p = op(OP_POINTSIZE); code[p] = f(size);}
+    public void glPolygonOffset(float factor, float units) {int p = op(OP_POLYOFS); code[p] = f(factor); code[p + 1] = f(units);}
+    public void glDrawArrays(int mode, int first, int count) {int p = op(OP_DRAWARRAYS); code[p] = mode; code[p + 1] = first; code[p + 2] = count;}
+    public void glEnableVertexAttribArray(ID location) {glEnableVertexAttribArray(location, 0);}
+    public void glEnableVertexAttribArray(ID location, int offset) {int p = op(OP_ENVAA); code[p] = ref(location); code[p + 1] = offset;}
+    public void glDisableVertexAttribArray(ID location) {glDisableVertexAttribArray(location, 0);}
+    public void glDisableVertexAttribArray(ID location, int offset) {int p = op(OP_DISVAA); code[p] = ref(location); code[p + 1] = offset;}
+    public void glVertexAttribDivisor(ID location, int divisor) {glVertexAttribDivisor(location, 0, divisor);}
+    public void glVertexAttribDivisor(ID location, int offset, int divisor) {int p = op(OP_VADIV); code[p] = ref(location); code[p + 1] = offset; code[p + 2] = divisor;}
+    public void glUniform1f(ID location, float v0) {int p = op(OP_UNI1F); code[p] = ref(location); code[p + 1] = f(v0);}
+    public void glUniform1i(ID location, int v0) {int p = op(OP_UNI1I); code[p] = ref(location); code[p + 1] = v0;}
+    public void glUniform3fv(ID location, int count, float[] val) {int p = op(OP_UNI3FV); code[p] = ref(location); code[p + 1] = count; code[p + 2] = ref(val);}
+    public void glUniform4fv(ID location, int count, float[] val) {int p = op(OP_UNI4FV); code[p] = ref(location); code[p + 1] = count; code[p + 2] = ref(val);}
+
+    public void glBlendFuncSeparate(int csfac, int cdfac, int asfac, int adfac) {
+	int p = op(OP_BLENDFUNCSEP);
+	code[p] = csfac; code[p + 1] = cdfac; code[p + 2] = asfac; code[p + 3] = adfac;
+    }
+
+    public void glBlendColor(float red, float green, float blue, float alpha) {
+	int p = op(OP_BLENDCOLOR);
+	code[p] = f(red); code[p + 1] = f(green); code[p + 2] = f(blue); code[p + 3] = f(alpha);
+    }
+
+    public void glColorMask(boolean r, boolean g, boolean b, boolean a) {
+	int p = op(OP_COLORMASK);
+	code[p] = b(r); code[p + 1] = b(g); code[p + 2] = b(b); code[p + 3] = b(a);
+    }
+
+    public void glColorMaski(int buf, boolean r, boolean g, boolean b, boolean a) {
+	int p = op(OP_COLORMASKI);
+	code[p] = buf; code[p + 1] = b(r); code[p + 2] = b(g); code[p + 3] = b(b); code[p + 4] = b(a);
+    }
+
+    public void glScissor(int x, int y, int w, int h) {
+	int p = op(OP_SCISSOR);
+	code[p] = x; code[p + 1] = y; code[p + 2] = w; code[p + 3] = h;
+    }
+
+    public void glViewport(int x, int y, int w, int h) {
+	int p = op(OP_VIEWPORT);
+	code[p] = x; code[p + 1] = y; code[p + 2] = w; code[p + 3] = h;
+    }
+
+    public void glDrawArraysInstanced(int mode, int first, int count, int primcount) {
+	int p = op(OP_DRAWARRAYSI);
+	code[p] = mode; code[p + 1] = first; code[p + 2] = count; code[p + 3] = primcount;
+    }
+
+    public void glDrawElements(int mode, int count, int type, long indices) {
+	int p = op(OP_DRAWELEMENTS);
+	code[p] = mode; code[p + 1] = count; code[p + 2] = type; l(p + 3, indices);
+    }
+
+    public void glDrawElementsInstanced(int mode, int count, int type, long indices, int primcount) {
+	int p = op(OP_DRAWELEMENTSI);
+	code[p] = mode; code[p + 1] = count; code[p + 2] = type; l(p + 3, indices); code[p + 5] = primcount;
+    }
+
+    public void glDrawRangeElements(int mode, int start, int end, int count, int type, long indices) {
+	int p = op(OP_DRAWRANGE);
+	code[p] = mode; code[p + 1] = start; code[p + 2] = end; code[p + 3] = count; code[p + 4] = type; l(p + 5, indices);
+    }
+
+    public void glVertexAttribPointer(ID location, int size, int type, boolean normalized, int stride, long pointer) {
+	glVertexAttribPointer(location, 0, size, type, normalized, stride, pointer);
+    }
+
+    public void glVertexAttribPointer(ID location, int offset, int size, int type, boolean normalized, int stride, long pointer) {
+	int p = op(OP_VAP);
+	code[p] = ref(location); code[p + 1] = offset; code[p + 2] = size; code[p + 3] = type;
+	code[p + 4] = b(normalized); code[p + 5] = stride; l(p + 6, pointer);
+    }
+
+    public void glVertexAttribIPointer(ID location, int size, int type, int stride, long pointer) {
+	glVertexAttribIPointer(location, 0, size, type, stride, pointer);
+    }
+
+    public void glVertexAttribIPointer(ID location, int offset, int size, int type, int stride, long pointer) {
+	int p = op(OP_VAIP);
+	code[p] = ref(location); code[p + 1] = offset; code[p + 2] = size; code[p + 3] = type;
+	code[p + 4] = stride; l(p + 5, pointer);
+    }
+
+    public void glUniform2f(ID location, float v0, float v1) {
+	int p = op(OP_UNI2F);
+	code[p] = ref(location); code[p + 1] = f(v0); code[p + 2] = f(v1);
+    }
+
+    public void glUniform3f(ID location, float v0, float v1, float v2) {
+	int p = op(OP_UNI3F);
+	code[p] = ref(location); code[p + 1] = f(v0); code[p + 2] = f(v1); code[p + 3] = f(v2);
+    }
+
+    public void glUniform4f(ID location, float v0, float v1, float v2, float v3) {
+	int p = op(OP_UNI4F);
+	code[p] = ref(location); code[p + 1] = f(v0); code[p + 2] = f(v1); code[p + 3] = f(v2); code[p + 4] = f(v3);
+    }
+
+    public void glUniform2i(ID location, int v0, int v1) {
+	int p = op(OP_UNI2I);
+	code[p] = ref(location); code[p + 1] = v0; code[p + 2] = v1;
+    }
+
+    public void glUniform3i(ID location, int v0, int v1, int v2) {
+	int p = op(OP_UNI3I);
+	code[p] = ref(location); code[p + 1] = v0; code[p + 2] = v1; code[p + 3] = v2;
+    }
+
+    public void glUniform4i(ID location, int v0, int v1, int v2, int v3) {
+	int p = op(OP_UNI4I);
+	code[p] = ref(location); code[p + 1] = v0; code[p + 2] = v1; code[p + 3] = v2; code[p + 4] = v3;
+    }
+
+    public void glUniformMatrix3fv(ID location, int count, boolean transpose, float[] value) {
+	int p = op(OP_UNIM3);
+	code[p] = ref(location); code[p + 1] = count; code[p + 2] = b(transpose); code[p + 3] = ref(value);
+    }
+
+    public void glUniformMatrix4fv(ID location, int count, boolean transpose, float[] value) {
+	int p = op(OP_UNIM4);
+	code[p] = ref(location); code[p + 1] = count; code[p + 2] = b(transpose); code[p + 3] = ref(value);
+    }
+
+    /* Decoded form of a single recorded call, for dumps and
+     * profiles. Plain Command fallbacks are returned as-is. */
+    static class Op extends Command {
+	final BufferBGL buf;
+	final int pc;
+	final String name;
+	final String[] argn;
+	final Object[] args;
+
+	Op(BufferBGL buf, int pc) {
+	    this.buf = buf;
+	    this.pc = pc;
+	    int op = buf.code[pc];
+	    String sig = opsigs[op];
+	    this.name = opnames[op];
+	    this.argn = opargs[op];
+	    this.args = new Object[sig.length()];
+	    for(int i = 0, p = pc + 1; i < sig.length(); i++) {
+		switch(sig.charAt(i)) {
+		case 'i': args[i] = buf.code[p++]; break;
+		case 'b': args[i] = (buf.code[p++] != 0); break;
+		case 'f': args[i] = f(buf.code[p++]); break;
+		case 'l': args[i] = l(buf.code, p); p += 2; break;
+		case 'r': args[i] = buf.refs[buf.code[p++]]; break;
+		}
+	    }
+	}
+
+	public void run(GL gl) {
+	    buf.exec(gl, pc);
+	}
+
+	public boolean equals(Object o) {
+	    return((o instanceof Op) && (((Op)o).buf == buf) && (((Op)o).pc == pc));
+	}
+
+	public int hashCode() {
+	    return(System.identityHashCode(buf) * 31 + pc);
+	}
+
+	public String toString() {
+	    StringBuilder sb = new StringBuilder();
+	    sb.append(name).append("(");
+	    for(int i = 0; i < args.length; i++) {
+		if(i > 0)
+		    sb.append(", ");
+		sb.append(argn[i]).append("=").append(args[i]);
+	    }
+	    sb.append(")");
+	    return(sb.toString());
+	}
+    }
+
+    Command decode(int pc) {
+	if(code[pc] == OP_CMD)
+	    return((Command)refs[code[pc + 1]]);
+	return(new Op(this, pc));
+    }
+
     protected Iterable<Command> dump() {
 	return(new Iterable<Command>() {
 		public Iterator<Command> iterator() {
 		    return(new Iterator<Command>() {
-			    int i = 0;
+			    int pc = 0;
 			    public boolean hasNext() {
-				return(i < n);
+				return(pc < cn);
 			    }
 			    public Command next() {
-				if(i < n)
-				    return(list[i++]);
-				throw(new NoSuchElementException());
+				if(pc >= cn)
+				    throw(new NoSuchElementException());
+				Command ret = decode(pc);
+				pc += 1 + oplens[code[pc]];
+				return(ret);
 			    }
 			    public void remove() {
 				throw(new UnsupportedOperationException());
@@ -110,15 +539,18 @@ public class BufferBGL extends BGL {
     public static class Profile {
 	private double stime;
 	private int n;
-	private Command[] cmds = new Command[128];
+	private BufferBGL[] bufs = new BufferBGL[128];
+	private int[] pcs = new int[128];
 	private double[] times = new double[128];
 
-	private void register(Command cmd) {
-	    if(n >= cmds.length) {
-		cmds = Arrays.copyOf(cmds, cmds.length * 2);
-		times = Arrays.copyOf(times, cmds.length * 2);
+	private void register(BufferBGL buf, int pc) {
+	    if(n >= bufs.length) {
+		bufs = Arrays.copyOf(bufs, bufs.length * 2);
+		pcs = Arrays.copyOf(pcs, bufs.length);
+		times = Arrays.copyOf(times, bufs.length);
 	    }
-	    cmds[n] = cmd;
+	    bufs[n] = buf;
+	    pcs[n] = pc;
 	    times[n] = Utils.rtime();
 	    n++;
 	}
@@ -137,7 +569,7 @@ public class BufferBGL extends BGL {
 
 	public void dump(PrintStream out) {
 	    for(int i = 0; i < n; i++)
-		out.printf("%f\t%f\t%s\n", (times[i] - stime) * 1000, ((i < n - 1) ? times[i + 1] - times[i] : 0) * 1000, cmds[i]);
+		out.printf("%f\t%f\t%s\n", (times[i] - stime) * 1000, ((i < n - 1) ? times[i + 1] - times[i] : 0) * 1000, bufs[i].decode(pcs[i]));
 	}
 
 	public Request dump(Path out) {
@@ -150,4 +582,87 @@ public class BufferBGL extends BGL {
 		});
 	}
     }
+
+    /* The one-Command-object-per-call representation, kept for
+     * comparison in main(). */
+    private static class ObjBGL extends BGL {
+	private Command[] list = new Command[16];
+	private int n = 0;
+
+	protected void add(Command cmd) {
+	    if(n >= list.length)
+		list = Arrays.copyOf(list, list.length * 2);
+	    list[n++] = cmd;
+	}
+
+	protected Iterable<Command> dump() {
+	    return(Arrays.asList(list).subList(0, n));
+	}
+
+	public void run(GL gl) {
+	    for(int i = 0; i < n; i++)
+		list[i].run(gl);
+	}
+    }
+
+    /* Record/replay microbenchmark of a synthetic frame, comparing
+     * against ObjBGL. Replay goes to a no-op GL. */
+    public static void main(String[] args) {
+	com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+	long tid = Thread.currentThread().getId();
+	int nslots = (args.length > 0) ? Integer.parseInt(args[0]) : 2000, reps = 200, warm = 50;
+	GL nullgl = (GL)java.lang.reflect.Proxy.newProxyInstance(GL.class.getClassLoader(), new Class<?>[] {GL.class}, (pr, m, a) -> null);
+	ID[] ids = new ID[16];
+	for(int i = 0; i < ids.length; i++) {
+	    int id = i + 1;
+	    ids[i] = () -> id;
+	}
+	float[] mat = new float[16], col = {1, 1, 1, 1};
+	double[] rect = new double[2], runt = new double[2];
+	long[] ralloc = new long[2];
+	/* Interleave the two representations so that JIT and GC
+	 * effects are shared evenly. */
+	for(int r = 0; r < warm + reps; r++) {
+	    if(r == warm) {
+		rect = new double[2];
+		runt = new double[2];
+		ralloc = new long[2];
+	    }
+	    for(int pass = 0; pass < 2; pass++) {
+		boolean compact = (pass == 0);
+		long a0 = tmx.getThreadAllocatedBytes(tid), t0 = System.nanoTime();
+		BGL frame = compact ? new BufferBGL(16) : new ObjBGL();
+		for(int i = 0; i < nslots; i++) {
+		    BGL slot = compact ? new BufferBGL(16) : new ObjBGL();
+		    slot.glUseProgram(ids[i % 4]);
+		    slot.glActiveTexture(GL.GL_TEXTURE0);
+		    slot.glBindTexture(GL.GL_TEXTURE_2D, ids[i % 16]);
+		    slot.glUniform1i(ids[5], 0);
+		    slot.glUniformMatrix4fv(ids[6], 1, false, mat);
+		    slot.glUniform4fv(ids[7], 1, col);
+		    slot.glBindVertexArray(ids[i % 8]);
+		    slot.glVertexAttribPointer(ids[8], 3, GL.GL_FLOAT, false, 12, 0);
+		    slot.glVertexAttribPointer(ids[9], 3, GL.GL_FLOAT, false, 12, 4096);
+		    slot.glDrawElements(GL.GL_TRIANGLES, 300, GL.GL_UNSIGNED_SHORT, 0);
+		    if(compact)
+			frame.bglCallList((BufferBGL)slot);
+		    else
+			frame.bglSubmit(((ObjBGL)slot)::run);
+		}
+		long a1 = tmx.getThreadAllocatedBytes(tid), t1 = System.nanoTime();
+		if(compact)
+		    ((BufferBGL)frame).run(nullgl);
+		else
+		    ((ObjBGL)frame).run(nullgl);
+		long t2 = System.nanoTime();
+		rect[pass] += (t1 - t0) * 1e-3;
+		runt[pass] += (t2 - t1) * 1e-3;
+		ralloc[pass] += a1 - a0;
+	    }
+	}
+	for(int pass = 0; pass < 2; pass++) {
+	    System.out.printf("%-8s %5d slots: record %8.1f us, %8.1f KiB alloc; replay %8.1f us\n",
+			      (pass == 0) ? "compact" : "objects", nslots, rect[pass] / reps, ralloc[pass] / 1024.0 / reps, runt[pass] / reps);
+	}
+    }
 }
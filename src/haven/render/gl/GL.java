@@ -72,6 +72,7 @@ public interface GL {
     public static final int GL_MINOR_VERSION = com.jogamp.opengl.GL3.GL_MINOR_VERSION;
     public static final int GL_NONE = com.jogamp.opengl.GL.GL_NONE;
     public static final int GL_NUM_EXTENSIONS = com.jogamp.opengl.GL3.GL_NUM_EXTENSIONS;
+    public static final int GL_NUM_PROGRAM_BINARY_FORMATS = com.jogamp.opengl.GL3.GL_NUM_PROGRAM_BINARY_FORMATS;
     public static final int GL_ONE = com.jogamp.opengl.GL.GL_ONE;
     public static final int GL_ONE_MINUS_CONSTANT_ALPHA = com.jogamp.opengl.GL3.GL_ONE_MINUS_CONSTANT_ALPHA;
     public static final int GL_ONE_MINUS_CONSTANT_COLOR = com.jogamp.opengl.GL3.GL_ONE_MINUS_CONSTANT_COLOR;
@@ -82,6 +83,8 @@ public interface GL {
     public static final int GL_OUT_OF_MEMORY = com.jogamp.opengl.GL.GL_OUT_OF_MEMORY;
     public static final int GL_PACK_ALIGNMENT = com.jogamp.opengl.GL3.GL_PACK_ALIGNMENT;
     public static final int GL_PIXEL_PACK_BUFFER = com.jogamp.opengl.GL3.GL_PIXEL_PACK_BUFFER;
+    public static final int GL_PROGRAM_BINARY_LENGTH = com.jogamp.opengl.GL3.GL_PROGRAM_BINARY_LENGTH;
+    public static final int GL_PROGRAM_BINARY_RETRIEVABLE_HINT = com.jogamp.opengl.GL3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT;
     public static final int GL_PROGRAM_POINT_SIZE = com.jogamp.opengl.GL3.GL_PROGRAM_POINT_SIZE;
     public static final int GL_QUERY_RESULT = com.jogamp.opengl.GL3.GL_QUERY_RESULT;
     public static final int GL_QUERY_RESULT_AVAILABLE = com.jogamp.opengl.GL3.GL_QUERY_RESULT_AVAILABLE;
@@ -297,6 +300,7 @@ public interface GL {
     public void glGetIntegerv(int pname, int[] data);
     public String glGetString(int name);
     public String glGetStringi(int name, int index);
+    public void glGetProgramBinary(int program, int bufsize, int[] length, int[] format, ByteBuffer binary);
     public void glGetProgramInfoLog(int shader, int maxlength, int[] length, byte[] infolog);
     public void glGetProgramiv(int shader, int pname, int[] buf);
     public void glGetQueryObjectiv(int id, int pname, int[] params);
@@ -314,6 +318,8 @@ public interface GL {
     public void glPointSize(float size);
     public void glPolygonMode(int face, int mode);
     public void glPolygonOffset(float factor, float units);
+    public void glProgramBinary(int program, int format, ByteBuffer binary, int length);
+    public void glProgramParameteri(int program, int pname, int value);
     public void glQueryCounter(int id, int target);
     public void glReadBuffer(int buf);
     public void glReadPixels(int x, int y, int width, int height, int format, int type, ByteBuffer data);
@@ -28,7 +28,6 @@ package haven.render.gl;
 
 import java.util.*;
 import java.util.function.*;
-import java.util.concurrent.atomic.*;
 import java.nio.ByteBuffer;
 import haven.*;
 import haven.render.*;
@@ -45,192 +44,138 @@ public class GLDrawList implements DrawList {
     private final Map<Slot<? extends Rendered>, DrawSlot> slotmap = new IdentityHashMap<>();
     private final Map<Pipe, Object> psettings = new IdentityHashMap<>();
     private final Map<Pipe, Object> orderidx = new IdentityHashMap<>();
+    private final Map<Pipe, Object> detailidx = new IdentityHashMap<>();
     private final GLDoubleBuffer settingbuf = new GLDoubleBuffer();
-    private DrawSlot root = null;
+    private final TreeMap<BucketKey, Bucket> buckets = new TreeMap<>(order);
+    private final List<Bucket> dirty = new ArrayList<>();
+    private Bucket[] border = null;
+    private int fskipped, fapplied, frebuilt;
     private boolean disposed = false;
 
-    private static int btheight(DrawSlot s) {
-	return((s == null) ? 0 : s.th);
-    }
-    private static int btsubsize(DrawSlot s) {
-	return((s == null) ? 0 : s.tsubsize);
-    }
-    private static void setp(DrawSlot s, DrawSlot p) {
-	if(s != null)
-	    s.tp = p;
-    }
+    /* Slots are kept in buckets of equal draw order, program,
+     * framebuffer and VAO, sorted by that key. Within a bucket, slots
+     * are drawn in insertion order, each with a compiled transition
+     * from its predecessor. Adding or removing a slot only marks its
+     * bucket dirty, and dirty buckets are compacted and have their
+     * changed transitions recompiled at the next draw. */
+    private static class BucketKey {
+	final Rendered.Order gorder;
+	final GLProgram prog;
+	final Object fbo, vao;
 
-    DrawSlot first() {
-	if(root == null)
-	    return(null);
-	for(DrawSlot s = root; true; s = s.tl) {
-	    if(s.tl == null)
-		return(s);
+	BucketKey(DrawSlot s) {
+	    this.gorder = s.gorder;
+	    this.prog = s.prog;
+	    this.fbo = s.settings[idx_fbo];
+	    this.vao = ((VaoSetting)s.settings[idx_vao]).st;
 	}
     }
 
-    private static final Comparator<DrawSlot> order = new Comparator<DrawSlot>() {
-	    public int compare(DrawSlot a, DrawSlot b) {
+    private static final Comparator<BucketKey> order = new Comparator<BucketKey>() {
+	    public int compare(BucketKey a, BucketKey b) {
 		int c;
 		if((c = Rendered.Order.cmp.compare(a.gorder, b.gorder)) != 0)
 		    return(c);
 		if((c = Utils.sidcmp(a.prog, b.prog)) != 0)
 		    return(c);
-		if((c = Utils.sidcmp(a.settings[idx_fbo], b.settings[idx_fbo])) != 0)
-		    return(c);
-		if((c = Utils.sidcmp(((VaoSetting)a.settings[idx_vao]).st, ((VaoSetting)b.settings[idx_vao]).st)) != 0)
+		if((c = Utils.sidcmp(a.fbo, b.fbo)) != 0)
 		    return(c);
-		return((a.sortid < b.sortid) ? -1 : 1);
+		return(Utils.sidcmp(a.vao, b.vao));
 	    }
 	};
-    private static AtomicLong uniqid = new AtomicLong();
-    private class DrawSlot {
-	/* List structure */
-	final long sortid;
-	DrawSlot tp, tl, tr;
-	int th = 0;
-	int tsubsize = 0;	/* Not critical, only used for debugging purposes. */
-
-	DrawSlot prev() {
-	    if(tl != null) {
-		for(DrawSlot s = tl; true; s = s.tr) {
-		    if(s.tr == null)
-			return(s);
-		}
-	    } else {
-		for(DrawSlot s = tp, ps = this; s != null; ps = s, s = s.tp) {
-		    if(s.tl != ps)
-			return(s);
-		}
-		return(null);
-	    }
+
+    private class Bucket {
+	final BucketKey key;
+	DrawSlot[] slots = new DrawSlot[4];
+	int n = 0;
+	boolean dirty = false;
+	BufferBGL body = BufferBGL.empty;
+	int skipped, applied;
+
+	Bucket(BucketKey key) {
+	    this.key = key;
 	}
-	DrawSlot next() {
-	    if(tr != null) {
-		for(DrawSlot s = tr; true; s = s.tl) {
-		    if(s.tl == null)
-			return(s);
-		}
-	    } else {
-		for(DrawSlot s = tp, ps = this; s != null; ps = s, s = s.tp) {
-		    if(s.tr != ps)
-			return(s);
-		}
-		return(null);
+
+	void touch() {
+	    if(!dirty) {
+		dirty = true;
+		GLDrawList.this.dirty.add(this);
 	    }
 	}
 
-	private int setheight() {
-	    tsubsize = btsubsize(tl) + btsubsize(tr) + 1;
-	    return(th = (Math.max(btheight(tl), btheight(tr)) + 1));
+	void add(DrawSlot s) {
+	    if(n >= slots.length)
+		slots = Arrays.copyOf(slots, slots.length * 2);
+	    s.bucket = this;
+	    s.bidx = n;
+	    slots[n++] = s;
+	    touch();
 	}
 
-	private void bbtrl() {
-	    if(btheight(tr.tl) > btheight(tr.tr))
-		tr.bbtrr();
-	    DrawSlot p = tp, r = tr, rl = r.tl;
-	    setp(tr = rl, this);
-	    setheight();
-	    setp(r.tl = this, r);
-	    r.setheight();
-	    if(p == null)
-		setp(root = r, null);
-	    else if(p.tl == this)
-		setp(p.tl = r, p);
-	    else
-		setp(p.tr = r, p);
-	}
-	private void bbtrr() {
-	    if(btheight(tl.tr) > btheight(tl.tl))
-		tl.bbtrl();
-	    DrawSlot p = tp, l = tl, lr = l.tr;
-	    setp(tl = lr, this);
-	    setheight();
-	    setp(l.tr = this, l);
-	    l.setheight();
-	    if(p == null)
-		setp(root = l, null);
-	    else if(p.tl == this)
-		setp(p.tl = l, p);
-	    else
-		setp(p.tr = l, p);
+	void remove(DrawSlot s) {
+	    slots[s.bidx] = null;
+	    s.bucket = null;
+	    s.bidx = -1;
+	    touch();
 	}
-	private void insert(DrawSlot child) {
-	    int c = order.compare(child, this);
-	    if(c < 0) {
-		if(tl == null)
-		    (tl = child).tp = this;
-		else
-		    tl.insert(child);
-	    } else if(c > 0) {
-		if(tr == null)
-		    (tr = child).tp = this;
-		else
-		    tr.insert(child);
-	    } else {
-		throw(new RuntimeException());
+
+	/* The first slot's transition depends on the preceding
+	 * bucket, and is compiled in draw(). */
+	void rebuild() {
+	    int o = 0;
+	    for(int i = 0; i < n; i++) {
+		DrawSlot s = slots[i];
+		if(s != null) {
+		    s.bidx = o;
+		    slots[o++] = s;
+		}
 	    }
-	    if(btheight(tl) > btheight(tr) + 1)
-		bbtrr();
-	    else if(btheight(tr) > btheight(tl) + 1)
-		bbtrl();
-	    setheight();
-	}
-	private void tinsert() {
-	    if((tp != null) || (root == this))
-		throw(new IllegalStateException());
-	    th = 1;
-	    tsubsize = 1;
-	    if(root == null) {
-		root = this;
-	    } else {
-		root.insert(this);
+	    Arrays.fill(slots, o, n, null);
+	    n = o;
+	    BufferBGL body = new BufferBGL(Math.max(n - 1, 1));
+	    skipped = applied = 0;
+	    for(int i = 1; i < n; i++) {
+		DrawSlot s = slots[i];
+		s.compile(slots[i - 1]);
+		body.bglCallList(s.compiled);
+		skipped += s.skipped;
+		applied += s.applied;
 	    }
+	    this.body = body.trim();
+	    dirty = false;
 	}
-	private void tremove() {
-	    if((tp == null) && (root != this))
-		throw(new IllegalStateException());
-	    DrawSlot rep;
-	    if((tl != null) && (tr != null)) {
-		for(rep = tr; rep.tl != null; rep = rep.tl);
+    }
 
-		DrawSlot p = rep.tp;
-		if(p.tl == rep)
-		    setp(p.tl = rep.tr, p);
-		else
-		    setp(p.tr = rep.tr, p);
-		p.setheight();
-
-		setp(rep.tl = tl, rep);
-		setp(rep.tr = tr, rep);
-		rep.setheight();
-	    } else if(tl != null) {
-		rep = tl;
-	    } else if(tr != null) {
-		rep = tr;
-	    } else {
-		rep = null;
-	    }
-	    if(tp != null) {
-		if(tp.tl == this)
-		    tp.tl = rep;
-		else
-		    tp.tr = rep;
-	    } else {
-		root = rep;
-	    }
-	    if(rep != null)
-		rep.tp = tp;
-	    for(DrawSlot p = tp, pp; p != null; p = pp) {
-		p.setheight();
-		pp = p.tp;
-		if(btheight(p.tl) > btheight(p.tr) + 1)
-		    p.bbtrr();
-		else if(btheight(p.tr) > btheight(p.tl) + 1)
-		    p.bbtrl();
+    private Bucket bucketfor(DrawSlot s) {
+	BucketKey key = new BucketKey(s);
+	Bucket ret = buckets.get(key);
+	if(ret == null) {
+	    buckets.put(key, ret = new Bucket(key));
+	    border = null;
+	}
+	return(ret);
+    }
+
+    private void prepare() {
+	frebuilt = dirty.size();
+	for(Bucket b : dirty) {
+	    b.rebuild();
+	    if(b.n == 0) {
+		buckets.remove(b.key);
+		border = null;
 	    }
-	    tr = tl = tp = null;
 	}
+	dirty.clear();
+	if(border == null)
+	    border = buckets.values().toArray(new Bucket[0]);
+    }
+
+    private class DrawSlot {
+	/* List structure */
+	Bucket bucket;
+	int bidx = -1;
+	DrawSlot cprev;
+	int skipped, applied;
 
 	/* Render information */
 	final Slot<? extends Rendered> bk;
@@ -239,17 +184,12 @@ public class GLDrawList implements DrawList {
 	BufferBGL compiled, main;
 	Rendered.Order gorder;
 	final Pipe ordersrc;
+	Pipe detailsrc;
+	int dfull = -1, ddrawn;
 	private volatile boolean disposed = false;
 
 	private GLProgram progfor(Slot<? extends Rendered> sl) {
-	    State[] st = sl.state().states();
-	    ShaderMacro[] shaders = new ShaderMacro[st.length];
-	    int shash = 0;
-	    for(int i = 0; i < st.length; i++) {
-		shaders[i] = (st[i] == null) ? null : st[i].shader();
-		shash ^= System.identityHashCode(shaders[i]);
-	    }
-	    return(env.getprog(shash, shaders));
+	    return(env.progfor(sl.state()));
 	}
 
 	private void getsettings() {
@@ -263,13 +203,18 @@ public class GLDrawList implements DrawList {
 	}
 
 	private void glupdate(DrawSlot prev) {
+	    skipped = applied = 0;
 	    if(prev == null) {
 		compiled = main;
 	    } else if(prev.prog == this.prog) {
 		BufferBGL gl = new BufferBGL();
 		for(int i = 0; i < this.settings.length; i++) {
-		    if(this.settings[i] != prev.settings[i])
+		    if(this.settings[i] != prev.settings[i]) {
 			gl.bglSubmit(this.settings[i].gl);
+			applied++;
+		    } else {
+			skipped++;
+		    }
 		}
 		gl.bglCallList(main);
 		compiled = gl.trim();
@@ -278,21 +223,29 @@ public class GLDrawList implements DrawList {
 		GLProgram.apply(gl, prev.prog, this.prog);
 		for(int i = 0; i < this.settings.length; i++)
 		    gl.bglSubmit(this.settings[i].gl);
+		applied = this.settings.length;
 		gl.bglCallList(main);
 		compiled = gl.trim();
 	    }
 	}
 
+	void compile(DrawSlot prev) {
+	    if((compiled == null) || (prev != cprev)) {
+		glupdate(prev);
+		cprev = prev;
+	    }
+	}
+
 	@SuppressWarnings("unchecked")
-	private void orderreg() {
-	    Object cur = orderidx.get(ordersrc);
+	private void idxreg(Map<Pipe, Object> idx, Pipe src) {
+	    Object cur = idx.get(src);
 	    if(cur == null) {
-		orderidx.put(ordersrc, this);
+		idx.put(src, this);
 	    } else if(cur instanceof DrawSlot) {
 		List<DrawSlot> nl = new ArrayList<>(2);
 		nl.add((DrawSlot)cur);
 		nl.add(this);
-		orderidx.put(ordersrc, nl);
+		idx.put(src, nl);
 	    } else if(cur instanceof List) {
 		List<DrawSlot> ls = (List<DrawSlot>)cur;
 		ls.add(this);
@@ -302,41 +255,61 @@ public class GLDrawList implements DrawList {
 	}
 
 	@SuppressWarnings("unchecked")
-	private void orderunreg() {
-	    Object cur = orderidx.get(ordersrc);
+	private void idxunreg(Map<Pipe, Object> idx, Pipe src) {
+	    Object cur = idx.get(src);
 	    if(cur == null) {
 		throw(new RuntimeException());
 	    } else if(cur == this) {
-		orderidx.remove(ordersrc);
+		idx.remove(src);
 	    } else if(cur instanceof List) {
 		List<DrawSlot> ls = (List<DrawSlot>)cur;
 		ls.remove(this);
 		if(ls.size() < 2)
-		    orderidx.put(ordersrc, ls.get(0));
+		    idx.put(src, ls.get(0));
 	    } else {
 		throw(new RuntimeException());
 	    }
 	}
 
+	private void orderreg() {idxreg(orderidx, ordersrc);}
+	private void orderunreg() {idxunreg(orderidx, ordersrc);}
+
+	private void detailreg(GroupPipe bst) {
+	    int grp = bst.gstate(Rendered.detail.id);
+	    if(grp < 0)
+		return;
+	    detailsrc = bst.group(grp);
+	    idxreg(detailidx, detailsrc);
+	    Rendered.Detailed obj = (Rendered.Detailed)bk.obj();
+	    int lvl = Rendered.Detail.level(bst);
+	    if(lvl > 0) {
+		int full = obj.prims(0), drawn = obj.prims(lvl);
+		if((full >= 0) && (drawn >= 0) && (drawn < full)) {
+		    Rendered.Detail.account(dfull = full, ddrawn = drawn, 1);
+		}
+	    }
+	}
+
+	private void detailunreg() {
+	    idxunreg(detailidx, detailsrc);
+	    if(dfull >= 0)
+		Rendered.Detail.account(dfull, ddrawn, -1);
+	}
+
 	void orderupdate() {
 	    Rendered.Order norder = ordersrc.get(Rendered.order);
-	    boolean fixed = false;
-	    if((Rendered.Order.cmp.compare(gorder, norder) == 0) ||
-	       ((Rendered.Order.cmp.compare(prev().gorder, norder) >= 0) &&
-		(Rendered.Order.cmp.compare(next().gorder, norder) <= 0)))
-	    {
+	    if((bucket == null) || (Rendered.Order.cmp.compare(gorder, norder) == 0)) {
 		gorder = norder;
 	    } else {
-		tremove();
+		remove();
 		gorder = norder;
-		tinsert();
+		insert();
 	    }
 	}
 
 	DrawSlot(Slot<? extends Rendered> bk) {
 	    try {
 		GroupPipe bst = bk.state();
-		this.sortid = uniqid.getAndIncrement();
 		this.bk = bk;
 		this.prog = progfor(bk);
 		this.prog.lock();
@@ -356,6 +329,8 @@ public class GLDrawList implements DrawList {
 		main = BufferBGL.empty;
 		SlotRender g = new SlotRender(this);
 		bk.obj().draw(bst, g);
+		if(bk.obj() instanceof Rendered.Detailed)
+		    detailreg(bst);
 	    } catch(RuntimeException exc) {
 		dispose();
 		throw(exc);
@@ -363,18 +338,15 @@ public class GLDrawList implements DrawList {
 	}
 
 	void insert() {
-	    tinsert();
-	    DrawSlot prev = prev(), next = next();
-	    this.glupdate(prev);
-	    if(next != null)
-		next.glupdate(this);
+	    if(bucket != null)
+		throw(new IllegalStateException());
+	    bucketfor(this).add(this);
 	}
 
 	void remove() {
-	    DrawSlot prev = prev(), next = next();
-	    tremove();
-	    if(next != null)
-		next.glupdate(prev);
+	    if(bucket == null)
+		throw(new IllegalStateException());
+	    bucket.remove(this);
 	}
 
 	void dispose() {
@@ -383,6 +355,8 @@ public class GLDrawList implements DrawList {
 	    this.disposed = true;
 	    if(ordersrc != null)
 		orderunreg();
+	    if(detailsrc != null)
+		detailunreg();
 	    if(settings != null) {
 		for(int i = 0; i < settings.length; i++) {
 		    if(settings[i] != null)
@@ -899,28 +873,24 @@ public class GLDrawList implements DrawList {
 	public void dispose() {}
     }
 
-    private void verify(DrawSlot t) {
-	if(t.tl != null) {
-	    if(t.tl.tp != t)
-		throw(new AssertionError(Long.toString(t.tl.sortid)));
-	    if(order.compare(t.tl, t) >= 0)
-		throw(new AssertionError(Long.toString(t.tl.sortid)));
-	    verify(t.tl);
-	}
-	if(t.tr != null) {
-	    if(t.tr.tp != t)
-		throw(new AssertionError(Long.toString(t.tr.sortid)));
-	    if(order.compare(t.tr, t) <= 0)
-		throw(new AssertionError(Long.toString(t.tr.sortid)));
-	    verify(t.tr);
-	}
-    }
     private void verify() {
-	if(root != null) {
-	    if(root.tp != null)
+	BucketKey pk = null;
+	int n = 0;
+	for(Bucket b : buckets.values()) {
+	    if((pk != null) && (order.compare(pk, b.key) >= 0))
 		throw(new AssertionError());
-	    verify(root);
+	    for(int i = 0; i < b.n; i++) {
+		DrawSlot s = b.slots[i];
+		if(s == null)
+		    continue;
+		if((s.bucket != b) || (s.bidx != i))
+		    throw(new AssertionError());
+		n++;
+	    }
+	    pk = b.key;
 	}
+	if(n != slotmap.size())
+	    throw(new AssertionError());
     }
 
     public GLDrawList(GLEnvironment env) {
@@ -946,9 +916,10 @@ public class GLDrawList implements DrawList {
 	if(!g.env.compatible(this))
 	    throw(new IllegalArgumentException());
 	synchronized(this) {
-	    DrawSlot first = first(), last = null;
-	    if(first == null)
+	    prepare();
+	    if(border.length == 0)
 		return;
+	    DrawSlot first = border[0].slots[0], last = null;
 	    try {
 		settingbuf.get(0);
 	    } catch(InterruptedException e) {
@@ -965,8 +936,18 @@ public class GLDrawList implements DrawList {
 	    if(g.state.prog() != first.prog)
 		throw(new ProgramMismatchException(g.state.prog(), first.prog));
 	    BGL gl = g.gl();
-	    for(DrawSlot cur = first; cur != null; last = cur, cur = cur.next())
-		gl.bglCallList(cur.compiled);
+	    int skipped = 0, applied = 0;
+	    for(Bucket b : border) {
+		DrawSlot head = b.slots[0];
+		head.compile(last);
+		gl.bglCallList(head.compiled);
+		gl.bglCallList(b.body);
+		skipped += head.skipped + b.skipped;
+		applied += head.applied + b.applied;
+		last = b.slots[b.n - 1];
+	    }
+	    fskipped = skipped;
+	    fapplied = applied;
 	    settingbuf.put(gl);
 	    g.state.assume(last.bk.state());
 	}
@@ -1020,6 +1001,20 @@ public class GLDrawList implements DrawList {
 	}
     }
 
+    @SuppressWarnings("unchecked")
+    private void detailupdate(Pipe group) {
+	Object reg = detailidx.get(group);
+	if(reg == null) {
+	} else if(reg instanceof DrawSlot) {
+	    update(((DrawSlot)reg).bk);
+	} else if(reg instanceof List) {
+	    for(DrawSlot slot : new ArrayList<>((List<DrawSlot>)reg))
+		update(slot.bk);
+	} else {
+	    throw(new RuntimeException());
+	}
+    }
+
     public void update(Pipe group, int[] mask) {
 	synchronized(this) {
 	    Object reg = psettings.get(group);
@@ -1039,6 +1034,8 @@ public class GLDrawList implements DrawList {
 	    for(int i = 0; i < mask.length; i++) {
 		if(mask[i] == Rendered.order.id)
 		    orderupdate(group);
+		else if(mask[i] == Rendered.detail.id)
+		    detailupdate(group);
 	    }
 	}
     }
@@ -1047,38 +1044,20 @@ public class GLDrawList implements DrawList {
     public void dispose() {
 	lck.dispose();
 	synchronized(this) {
-	    for(DrawSlot slot; (slot = root) != null; ) {
+	    for(DrawSlot slot : slotmap.values()) {
 		slot.remove();
 		slot.dispose();
 	    }
+	    slotmap.clear();
+	    buckets.clear();
+	    dirty.clear();
+	    border = null;
 	    disposed = true;
 	}
     }
 
-    void treedump(java.io.PrintWriter out, DrawSlot slot) {
-	if(slot == null) {
-	    out.print("nil");
-	    return;
-	}
-	out.print("(");
-	out.print(slot.sortid);
-	out.print(" ");
-	treedump(out, slot.tl);
-	out.print(" ");
-	treedump(out, slot.tr);
-	out.print(")");
-    }
-    String treedump(DrawSlot root) {
-	java.io.StringWriter buf = new java.io.StringWriter();
-	treedump(new java.io.PrintWriter(buf), root);
-	return(buf.toString());
-    }
-    String treedump() {
-	return(treedump(root));
-    }
-
     public String stats() {
-	return(String.format("%,d", btsubsize(root)));
+	return(String.format("%,d (%,d buckets, %,d rebuilt, %,d/%,d settings reused)", slotmap.size(), buckets.size(), frebuilt, fskipped, fskipped + fapplied));
     }
 
     public String toString() {
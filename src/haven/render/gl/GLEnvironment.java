@@ -37,6 +37,7 @@ import static haven.render.DataBuffer.Usage.*;
 public abstract class GLEnvironment implements Environment {
     public static final boolean debuglog = false, labels = false;
     public final Caps caps;
+    public final ProgramCache progcache;
     public int nilfbo_id = 0, nilfbo_db = 0;
     final Object drawmon = new Object();
     final Collection<GLObject> disposed = new LinkedList<>();
@@ -65,6 +66,7 @@ public abstract class GLEnvironment implements Environment {
 	public final int major, minor, glslver;
 	public final Collection<String> exts;
 	public final int maxtargets;
+	public final int nbinfmt;
 	public final float anisotropy;
 	public final float linemin, linemax;
 
@@ -122,6 +124,10 @@ public abstract class GLEnvironment implements Environment {
 		this.exts = Arrays.asList(gl.glGetString(GL.GL_EXTENSIONS).split(" "));
 	    }
 	    this.maxtargets = glcondi(gl, GL.GL_MAX_COLOR_ATTACHMENTS, 1);
+	    if((major > 4) || ((major == 4) && (minor >= 1)) || exts.contains("GL_ARB_get_program_binary"))
+		this.nbinfmt = glcondi(gl, GL.GL_NUM_PROGRAM_BINARY_FORMATS, 0);
+	    else
+		this.nbinfmt = 0;
 	    {
 		int glslver = 0;
 		String slv = glconds(gl, GL.GL_SHADING_LANGUAGE_VERSION);
@@ -177,6 +183,7 @@ public abstract class GLEnvironment implements Environment {
 	this.wnd = wnd;
 	this.caps = mkcaps(initgl);
 	this.caps.checkreq();
+	this.progcache = ProgramCache.get(caps);
 	initialize(initgl);
     }
 
@@ -923,6 +930,22 @@ public abstract class GLEnvironment implements Environment {
 	}
     }
 
+    private static ShaderMacro[] shaders(Pipe state) {
+	State[] st = state.states();
+	ShaderMacro[] shaders = new ShaderMacro[st.length];
+	for(int i = 0; i < st.length; i++)
+	    shaders[i] = (st[i] == null) ? null : st[i].shader();
+	return(shaders);
+    }
+
+    public GLProgram progfor(Pipe state) {
+	ShaderMacro[] shaders = shaders(state);
+	int shash = 0;
+	for(int i = 0; i < shaders.length; i++)
+	    shash ^= System.identityHashCode(shaders[i]);
+	return(getprog(shash, shaders));
+    }
+
     private void cleanprogs() {
 	synchronized(pmon) {
 	    for(int i = 0; i < ptab.length; i++) {
@@ -1080,6 +1103,18 @@ public abstract class GLEnvironment implements Environment {
     }
 
     public int numprogs() {return(nprog);}
+
+    /* Program creation counts and times, updated on the GL thread
+     * only. Compiles include the shader objects. */
+    int pstat_comp, pstat_bin;
+    double pstat_tcomp, pstat_tbin;
+    public String progstats() {
+	String ret = String.format("compiled %,d (%.0f ms), from binary %,d (%.0f ms)", pstat_comp, pstat_tcomp * 1000, pstat_bin, pstat_tbin * 1000);
+	if(progcache != null)
+	    ret = ret + ", " + progcache.stats();
+	ret = ret + ", source " + ProgramSource.stats();
+	return(ret);
+    }
     public Caps caps() {return(caps);}
 
     public String memstats() {
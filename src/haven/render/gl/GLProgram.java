@@ -52,18 +52,11 @@ public class GLProgram implements Disposable {
     private ProgOb glp;
     boolean disposed = false;
 
-    public GLProgram(GLEnvironment env, ProgramContext ctx) {
+    public GLProgram(GLEnvironment env, ProgramSource src) {
 	this.env = env;
-	{
-	    StringWriter buf = new StringWriter();
-	    ctx.fctx.construct(buf);
-	    fsrc = buf.toString();
-	}
-	{
-	    StringWriter buf = new StringWriter();
-	    ctx.vctx.construct(buf);
-	    vsrc = buf.toString();
-	}
+	ProgramContext ctx = src.ctx;
+	this.fsrc = src.fsrc;
+	this.vsrc = src.vsrc;
 	{
 	    Uniform[] uniforms = ctx.uniforms.toArray(new Uniform[0]);
 	    Map<Uniform, String> unifnms = new IdentityHashMap<>();
@@ -131,6 +124,10 @@ public class GLProgram implements Disposable {
 	}
     }
 
+    public GLProgram(GLEnvironment env, ProgramContext ctx) {
+	this(env, new ProgramSource(ctx));
+    }
+
     public static int attrsize(Attribute attr) {
 	if(attr.type == Type.MAT3)
 	    return(3);
@@ -140,11 +137,9 @@ public class GLProgram implements Disposable {
     }
 
     public static GLProgram build(GLEnvironment env, Collection<ShaderMacro> mods) {
-	ProgramContext prog = new ProgramContext();
-	for(ShaderMacro mod : mods)
-	    mod.modify(prog);
-	GLProgram ret = new GLProgram(env, prog);
-	if(dumpall || prog.dump) {
+	ProgramSource src = ProgramSource.get(mods);
+	GLProgram ret = new GLProgram(env, src);
+	if(dumpall || src.ctx.dump) {
 	    System.err.println(mods + ":");
 	    System.err.println("---> Vertex shader:");
 	    System.err.print(ret.vsrc);
@@ -162,12 +157,16 @@ public class GLProgram implements Disposable {
 	public final String text;
 	public final String info;
 	
-	public ShaderException(String msg, ShaderOb shader, String info) {
+	public ShaderException(String msg, int type, String text, String info) {
 	    super(msg);
-	    this.type = shader.type;
-	    this.text = shader.text;
+	    this.type = type;
+	    this.text = text;
 	    this.info = info;
 	}
+
+	public ShaderException(String msg, ShaderOb shader, String info) {
+	    this(msg, shader.type, shader.text, info);
+	}
 	
 	public String toString() {
 	    if(info == null)
@@ -189,29 +188,37 @@ public class GLProgram implements Disposable {
 	    env.prepare(this);
 	}
 
-	public void create(GL gl) {
+	static int compile(GL gl, GLEnvironment env, int type, String text) {
 	    /* Does JOGL use the byte or char length or the supplied
 	     * String, and in case of the former, how does one know
 	     * the coding it encodes the String as so as to supply the
 	     * corrent length? It won't matter since all reasonable
 	     * programs will be ASCII, of course, but it would be
 	     * interesting to know, so to speak. */
-	    this.id = gl.glCreateShader(type);
+	    int id = gl.glCreateShader(type);
 	    GLException.checkfor(gl, env);
-	    gl.glShaderSource(this.id, 1, new String[] {text}, new int[] {text.length()});
-	    gl.glCompileShader(this.id);
+	    gl.glShaderSource(id, 1, new String[] {text}, new int[] {text.length()});
+	    gl.glCompileShader(id);
 	    int[] buf = {0};
-	    gl.glGetShaderiv(this.id, GL.GL_COMPILE_STATUS, buf);
+	    gl.glGetShaderiv(id, GL.GL_COMPILE_STATUS, buf);
 	    if(buf[0] != 1) {
 		String info = null;
-		gl.glGetShaderiv(this.id, GL.GL_INFO_LOG_LENGTH, buf);
+		gl.glGetShaderiv(id, GL.GL_INFO_LOG_LENGTH, buf);
 		if(buf[0] > 0) {
 		    byte[] logbuf = new byte[buf[0]];
-		    gl.glGetShaderInfoLog(this.id, logbuf.length, buf, logbuf);
+		    gl.glGetShaderInfoLog(id, logbuf.length, buf, logbuf);
 		    info = new String(logbuf, 0, buf[0]);
 		}
-		throw(new ShaderException("Failed to compile shader", this, info));
+		gl.glDeleteShader(id);
+		throw(new ShaderException("Failed to compile shader", type, text, info));
 	    }
+	    return(id);
+	}
+
+	public void create(GL gl) {
+	    double st = Utils.rtime();
+	    this.id = compile(gl, env, type, text);
+	    env.pstat_tcomp += Utils.rtime() - st;
 	}
 
 	protected void delete(GL gl) {
@@ -289,11 +296,17 @@ public class GLProgram implements Disposable {
 
     public class ProgOb extends GLObject implements BGL.ID {
 	public final ShaderOb[] shaders;
+	private final ProgramCache.Entry cached;
 	private int id;
 
 	public ProgOb(GLEnvironment env, ShaderOb... shaders) {
+	    this(env, null, shaders);
+	}
+
+	ProgOb(GLEnvironment env, ProgramCache.Entry cached, ShaderOb... shaders) {
 	    super(env);
 	    this.shaders = shaders;
+	    this.cached = cached;
 	    env.prepare(this);
 	    for(Map.Entry<Uniform, String> uni : GLProgram.this.unifnms.entrySet()) {
 		UniformID id = uniresolve(uni.getKey().type, uni.getValue());
@@ -329,15 +342,47 @@ public class GLProgram implements Disposable {
 	    return(ret);
 	}
 
+	private boolean loadbin(GL gl) {
+	    double st = Utils.rtime();
+	    this.id = gl.glCreateProgram();
+	    if(cached.load(gl, this.id)) {
+		env.pstat_bin++;
+		env.pstat_tbin += Utils.rtime() - st;
+		return(true);
+	    }
+	    gl.glDeleteProgram(this.id);
+	    env.progcache.reject(cached);
+	    return(false);
+	}
+
 	public void create(GL gl) {
+	    if((cached != null) && loadbin(gl))
+		return;
+	    double st = Utils.rtime();
 	    this.id = gl.glCreateProgram();
-	    for(ShaderOb sh : shaders)
-		gl.glAttachShader(this.id, sh.glid());
+	    int[] tmp = null;
+	    if(shaders.length > 0) {
+		for(ShaderOb sh : shaders)
+		    gl.glAttachShader(this.id, sh.glid());
+	    } else {
+		/* The cached binary was rejected, most likely after a
+		 * driver update, so compile from source after all. */
+		tmp = new int[] {ShaderOb.compile(gl, env, GL.GL_VERTEX_SHADER, vsrc),
+				 ShaderOb.compile(gl, env, GL.GL_FRAGMENT_SHADER, fsrc)};
+		for(int sh : tmp)
+		    gl.glAttachShader(this.id, sh);
+	    }
 	    for(AttrID attr : amap.values())
 		gl.glBindAttribLocation(this.id, attr.id, attr.name);
 	    for(int i = 0; i < fragdata.length; i++)
 		gl.glBindFragDataLocation(this.id, i, fragnms[i]);
+	    if(env.progcache != null)
+		gl.glProgramParameteri(this.id, GL.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, 1);
 	    gl.glLinkProgram(this.id);
+	    if(tmp != null) {
+		for(int sh : tmp)
+		    gl.glDeleteShader(sh);
+	    }
 	    int[] buf = {0};
 	    gl.glGetProgramiv(this.id, GL.GL_LINK_STATUS, buf);
 	    if(buf[0] != 1) {
@@ -350,6 +395,10 @@ public class GLProgram implements Disposable {
 		}
 		throw(new LinkException("Failed to link GL program", GLProgram.this, info));
 	    }
+	    if(env.progcache != null)
+		env.progcache.save(gl, GLProgram.this, this.id);
+	    env.pstat_comp++;
+	    env.pstat_tcomp += Utils.rtime() - st;
 	}
 
 	protected void delete(GL gl) {
@@ -405,9 +454,14 @@ public class GLProgram implements Disposable {
 		if(disposed)
 		    throw(new RuntimeException("reusing disposed program"));
 		if((glp = this.glp) == null) {
-		    glp = new ProgOb(env,
-				     new ShaderOb(env, GL.GL_VERTEX_SHADER, vsrc),
-				     new ShaderOb(env, GL.GL_FRAGMENT_SHADER, fsrc));
+		    ProgramCache.Entry cached = (env.progcache == null) ? null : env.progcache.get(this);
+		    if(cached != null) {
+			glp = new ProgOb(env, cached);
+		    } else {
+			glp = new ProgOb(env,
+					 new ShaderOb(env, GL.GL_VERTEX_SHADER, vsrc),
+					 new ShaderOb(env, GL.GL_FRAGMENT_SHADER, fsrc));
+		    }
 		    this.glp = glp;
 		}
 	    }
@@ -465,6 +519,24 @@ public class GLProgram implements Disposable {
 	return(r);
     }
 
+    private String cachekey = null;
+    String cachekey(String ident) {
+	if(cachekey == null) {
+	    AttrID[] aorder = amap.values().toArray(new AttrID[0]);
+	    Arrays.sort(aorder, (a, b) -> a.id - b.id);
+	    List<String> parts = new ArrayList<>();
+	    parts.add(ident);
+	    parts.add(vsrc);
+	    parts.add(fsrc);
+	    for(AttrID attr : aorder)
+		parts.add(attr.id + ":" + attr.name);
+	    for(int i = 0; i < fragnms.length; i++)
+		parts.add(i + ":" + fragnms[i]);
+	    cachekey = ProgramCache.digest(parts.toArray(new String[0]));
+	}
+	return(cachekey);
+    }
+
     public void dispose() {
 	synchronized(this) {
 	    if(glp != null) {
@@ -0,0 +1,291 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.render.gl;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import haven.*;
+
+/*
+ * Persistent cache of linked program binaries, stored in the local
+ * resource cache under a key derived from the generated GLSL source,
+ * the attribute and fragment-data bindings, and the driver
+ * identity. ShaderMacro sets are runtime objects without a stable
+ * identity across sessions, so the generated source is what
+ * identifies a program here.
+ *
+ * Programs linked in earlier sessions are read back into memory by
+ * a background thread when the environment starts, so that creating
+ * them again only costs a glProgramBinary call on the render thread
+ * instead of a full compile and link.
+ */
+public class ProgramCache {
+    public static final Config.Variable<Boolean> enabled = Config.Variable.propb("haven.glprogcache", true);
+    public static final int MAXENT = 256;
+    private static final int VER = 1;
+    private static final Map<String, ProgramCache> caches = new HashMap<>();
+    public final ResCache store;
+    public final String ident;
+    private final String idxname;
+    private final Map<String, Entry> loaded = new ConcurrentHashMap<>();
+    private final BlockingQueue<Entry> saveq = new LinkedBlockingQueue<>();
+    private final Set<String> index = new LinkedHashSet<>();
+    private boolean idxdirty = false;
+    private volatile boolean warm = false;
+
+    public static class Entry {
+	public final String key, vsrc, fsrc;
+	public final int format;
+	public final byte[] data;
+
+	public Entry(String key, String vsrc, String fsrc, int format, byte[] data) {
+	    this.key = key;
+	    this.vsrc = vsrc;
+	    this.fsrc = fsrc;
+	    this.format = format;
+	    this.data = data;
+	}
+
+	public boolean load(GL gl, int prog) {
+	    ByteBuffer buf = Utils.mkbbuf(data.length);
+	    buf.put(data);
+	    buf.flip();
+	    gl.glProgramBinary(prog, format, buf, data.length);
+	    /* An unsupported binary format is reported as a GL error
+	     * rather than as a link failure. */
+	    if(clearerr(gl))
+		return(false);
+	    int[] st = {0};
+	    gl.glGetProgramiv(prog, GL.GL_LINK_STATUS, st);
+	    return(st[0] == 1);
+	}
+    }
+
+    private ProgramCache(ResCache store, String ident) {
+	this.store = store;
+	this.ident = ident;
+	this.idxname = "glprog/idx-" + digest(ident).substring(0, 16);
+	Thread th = new HackThread(this::run, "GL program cache");
+	th.setDaemon(true);
+	th.start();
+    }
+
+    public static boolean supported(GLEnvironment.Caps caps) {
+	return(caps.nbinfmt > 0);
+    }
+
+    public static ProgramCache get(GLEnvironment.Caps caps) {
+	if(!enabled.get() || !supported(caps) || (ResCache.global == null))
+	    return(null);
+	String ident = caps.vendor + "\n" + caps.renderer + "\n" + caps.version;
+	synchronized(caches) {
+	    ProgramCache ret = caches.get(ident);
+	    if(ret == null)
+		caches.put(ident, ret = new ProgramCache(ResCache.global, ident));
+	    return(ret);
+	}
+    }
+
+    static boolean clearerr(GL gl) {
+	boolean ret = false;
+	for(int i = 0; (i < 16) && (gl.glGetError() != 0); i++)
+	    ret = true;
+	return(ret);
+    }
+
+    static String digest(String... parts) {
+	try {
+	    java.security.MessageDigest dig = java.security.MessageDigest.getInstance("SHA-256");
+	    for(String part : parts) {
+		byte[] enc = part.getBytes(StandardCharsets.UTF_8);
+		dig.update(new byte[] {(byte)(enc.length >> 24), (byte)(enc.length >> 16), (byte)(enc.length >> 8), (byte)enc.length});
+		dig.update(enc);
+	    }
+	    return(Utils.byte2hex(dig.digest()));
+	} catch(java.security.NoSuchAlgorithmException e) {
+	    throw(new RuntimeException(e));
+	}
+    }
+
+    private void touch(String key) {
+	synchronized(index) {
+	    index.remove(key);
+	    index.add(key);
+	    for(Iterator<String> i = index.iterator(); index.size() > MAXENT;) {
+		i.next();
+		i.remove();
+	    }
+	    idxdirty = true;
+	}
+    }
+
+    /* Returns an in-memory binary for the given program, if one
+     * was found in the cache. Does not block on I/O. */
+    public Entry get(GLProgram prog) {
+	String key = prog.cachekey(ident);
+	Entry e = loaded.get(key);
+	if((e == null) || !e.vsrc.equals(prog.vsrc) || !e.fsrc.equals(prog.fsrc))
+	    return(null);
+	touch(key);
+	return(e);
+    }
+
+    public void reject(Entry e) {
+	loaded.remove(e.key, e);
+    }
+
+    /* Must be called on the GL thread with a freshly linked
+     * program, linked with GL_PROGRAM_BINARY_RETRIEVABLE_HINT
+     * set. */
+    public void save(GL gl, GLProgram prog, int id) {
+	int[] buf = {0};
+	gl.glGetProgramiv(id, GL.GL_PROGRAM_BINARY_LENGTH, buf);
+	if(clearerr(gl) || (buf[0] <= 0))
+	    return;
+	ByteBuffer bin = Utils.mkbbuf(buf[0]);
+	int[] len = {0}, fmt = {0};
+	gl.glGetProgramBinary(id, buf[0], len, fmt, bin);
+	if(clearerr(gl) || (len[0] <= 0))
+	    return;
+	byte[] data = new byte[len[0]];
+	bin.get(data);
+	Entry e = new Entry(prog.cachekey(ident), prog.vsrc, prog.fsrc, fmt[0], data);
+	loaded.put(e.key, e);
+	touch(e.key);
+	saveq.add(e);
+    }
+
+    private static void writestr(DataOutputStream out, String str) throws IOException {
+	byte[] enc = str.getBytes(StandardCharsets.UTF_8);
+	out.writeInt(enc.length);
+	out.write(enc);
+    }
+
+    private static String readstr(DataInputStream in) throws IOException {
+	byte[] enc = new byte[in.readInt()];
+	in.readFully(enc);
+	return(new String(enc, StandardCharsets.UTF_8));
+    }
+
+    private void write(Entry e) throws IOException {
+	try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(store.store("glprog/" + e.key)))) {
+	    out.writeInt(VER);
+	    writestr(out, ident);
+	    writestr(out, e.vsrc);
+	    writestr(out, e.fsrc);
+	    out.writeInt(e.format);
+	    out.writeInt(e.data.length);
+	    out.write(e.data);
+	}
+    }
+
+    private Entry read(String key) throws IOException {
+	try(DataInputStream in = new DataInputStream(new BufferedInputStream(store.fetch("glprog/" + key)))) {
+	    if((in.readInt() != VER) || !readstr(in).equals(ident))
+		return(null);
+	    String vsrc = readstr(in), fsrc = readstr(in);
+	    int format = in.readInt();
+	    byte[] data = new byte[in.readInt()];
+	    in.readFully(data);
+	    return(new Entry(key, vsrc, fsrc, format, data));
+	}
+    }
+
+    private void writeindex() throws IOException {
+	String[] keys;
+	synchronized(index) {
+	    if(!idxdirty)
+		return;
+	    keys = index.toArray(new String[0]);
+	    idxdirty = false;
+	}
+	try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(store.store(idxname)))) {
+	    out.writeInt(VER);
+	    out.writeInt(keys.length);
+	    for(String key : keys)
+		writestr(out, key);
+	}
+    }
+
+    private void prewarm() {
+	List<String> keys = new ArrayList<>();
+	try(DataInputStream in = new DataInputStream(new BufferedInputStream(store.fetch(idxname)))) {
+	    if(in.readInt() != VER)
+		return;
+	    for(int i = 0, n = in.readInt(); i < n; i++)
+		keys.add(readstr(in));
+	} catch(IOException e) {
+	    return;
+	}
+	synchronized(index) {
+	    for(String key : keys) {
+		if(!index.contains(key))
+		    index.add(key);
+	    }
+	}
+	/* Most recently used last, so load in reverse to get the
+	 * likeliest ones first. */
+	for(int i = keys.size() - 1; i >= 0; i--) {
+	    String key = keys.get(i);
+	    if(loaded.containsKey(key))
+		continue;
+	    try {
+		Entry e = read(key);
+		if(e != null)
+		    loaded.putIfAbsent(key, e);
+	    } catch(IOException e) {
+	    }
+	}
+    }
+
+    private void run() {
+	try {
+	    prewarm();
+	    warm = true;
+	    while(true) {
+		Entry e = saveq.poll(5, TimeUnit.SECONDS);
+		try {
+		    if(e != null)
+			write(e);
+		    if(saveq.isEmpty())
+			writeindex();
+		} catch(IOException exc) {
+		    new Warning(exc, "could not store GL program binary").issue();
+		}
+	    }
+	} catch(InterruptedException e) {
+	}
+    }
+
+    public String stats() {
+	return(String.format("%,d cached%s", loaded.size(), warm ? "" : ", loading"));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.render.sl;
+
+import java.util.*;
+import java.io.StringWriter;
+import haven.*;
+
+/*
+ * The environment-independent result of running a set of shader
+ * macros: the populated program context and the GLSL text emitted for
+ * each stage. Results are memoized by macro list, so rebuilding a
+ * program after its GL object has been cleaned up, or building it for
+ * another environment, does not walk the macros again. Identical
+ * stage sources are interned, so programs that share a vertex or
+ * fragment stage also share its text, though each is still generated
+ * in full. The stages cannot be memoized separately: constructing the
+ * fragment stage adds auto-varyings to the vertex stage, and symbol
+ * names (which GLProgram binds uniforms and attributes by) are
+ * allocated across the whole program, so neither stage's text is a
+ * function of some subset of the macros.
+ */
+public class ProgramSource {
+    public final ProgramContext ctx;
+    public final String vsrc, fsrc;
+
+    private static final Map<List<ShaderMacro>, Entry> memo = new CacheMap<>(CacheMap.RefType.SOFT);
+    private static final WeakHashedSet<String> stages = new WeakHashedSet<>(Hash.eq);
+    private static int ngen, nhit, nstage, nshared;
+    private static double tgen;
+
+    public ProgramSource(ProgramContext ctx) {
+	this.ctx = ctx;
+	{
+	    StringWriter buf = new StringWriter();
+	    ctx.fctx.construct(buf);
+	    fsrc = intern(buf.toString());
+	}
+	{
+	    StringWriter buf = new StringWriter();
+	    ctx.vctx.construct(buf);
+	    vsrc = intern(buf.toString());
+	}
+    }
+
+    private static String intern(String src) {
+	synchronized(stages) {
+	    String ret = stages.intern(src);
+	    nstage++;
+	    if(ret != src)
+		nshared++;
+	    return(ret);
+	}
+    }
+
+    public static ProgramSource generate(Collection<ShaderMacro> mods) {
+	ProgramContext ctx = new ProgramContext();
+	for(ShaderMacro mod : mods)
+	    mod.modify(ctx);
+	return(new ProgramSource(ctx));
+    }
+
+    private static class Entry {
+	final List<ShaderMacro> mods;
+	ProgramSource src;
+
+	Entry(List<ShaderMacro> mods) {
+	    this.mods = mods;
+	}
+
+	/* Concurrent requests for the same macro list wait for a
+	 * single generation rather than duplicating it. */
+	synchronized ProgramSource get() {
+	    if(src == null) {
+		double st = Utils.rtime();
+		src = generate(mods);
+		synchronized(memo) {
+		    ngen++;
+		    tgen += Utils.rtime() - st;
+		}
+	    } else {
+		synchronized(memo) {
+		    nhit++;
+		}
+	    }
+	    return(src);
+	}
+    }
+
+    public static ProgramSource get(Collection<ShaderMacro> mods) {
+	List<ShaderMacro> key = new ArrayList<>(mods);
+	Entry e;
+	synchronized(memo) {
+	    if((e = memo.get(key)) == null)
+		memo.put(key, e = new Entry(key));
+	}
+	return(e.get());
+    }
+
+    public static String stats() {
+	synchronized(memo) {
+	    return(String.format("%,d generated (%.0f ms), %,d reused, %,d/%,d stages shared", ngen, tgen * 1000, nhit, nshared, nstage));
+	}
+    }
+}
@@ -84,40 +84,53 @@ public class AvaRender {
 	return(comp);
     }
 
-    public static BufferedImage render(Coord sz, Composited.Desc desc, Resource.Resolver map, String camnm) {
+    public static DrawBuffer.Scene scene(DrawBuffer buf, Composited.Desc desc, Resource.Resolver map, String camnm) {
 	Composited comp = Loading.waitfor(() -> compose(desc, map));;
 	Camera cam = Loading.waitfor(() -> {
 		Skeleton.BoneOffset camoff = desc.base.get().flayer(Skeleton.BoneOffset.class, camnm);
-		Pipe buf = new BufPipe();
-		buf.prep(camoff.from(comp).get());
-		return(Camera.placed(buf.get(Homo3D.loc)));
+		Pipe st = new BufPipe();
+		st.prep(camoff.from(comp).get());
+		return(Camera.placed(st.get(Homo3D.loc)));
 	    });
-	DrawBuffer buf = new DrawBuffer(Context.getdefault().env(), sz);
 
 	float field = 0.5f;
 	float aspect = ((float)buf.sz.y) / ((float)buf.sz.x);
 	Projection proj = Projection.frustum(-field, field, -aspect * field, aspect * field, 1, 5000);
 	RenderTree.Node light = new DirLight(Color.WHITE, Color.WHITE, Color.WHITE, new Coord3f(1, 1, 1).norm());
-	BufferedImage ret = buf.draw(Pipe.Op.compose(proj, cam), RUtils.compose(comp, light));
-	return(ret);
+	return(buf.new Scene(Pipe.Op.compose(proj, cam), RUtils.compose(comp, light)));
+    }
+
+    public static BufferedImage render(Coord sz, Composited.Desc desc, Resource.Resolver map, String camnm) {
+	DrawBuffer buf = new DrawBuffer(Context.getdefault().env(), sz);
+	try {
+	    DrawBuffer.Scene scene = scene(buf, desc, map, camnm);
+	    try {
+		return(buf.draw(Collections.singletonList(scene))[0]);
+	    } finally {
+		scene.dispose();
+	    }
+	} finally {
+	    buf.dispose();
+	}
+    }
+
+    public static byte[] png(BufferedImage img) {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	try {
+	    javax.imageio.ImageIO.write(img, "PNG", buf);
+	} catch(IOException e) {
+	    throw(new Error(e));
+	}
+	return(buf.toByteArray());
     }
 
     public static final Server.Command call = new Server.Command() {
 	    public Object[] run(Server.Client cl, Object... args) throws InterruptedException {
-		Coord sz = UI.scale((Coord)args[0]);
-		Resource.Resolver rr = new ServerRes(Resource.remote());
-		Composited.Desc desc = Composited.Desc.decode(rr, Utils.oav(args[1]));
-		Resource.Resolver map = new Resource.Resolver.ResourceMap(rr, Utils.oav(args[2]));
-		String camnm = Utils.sv(args[3]);
-		BufferedImage ava = render(sz.mul(4), desc, map, camnm);
-		ava = PUtils.convolvedown(ava, sz, new PUtils.Lanczos(2));
-		ByteArrayOutputStream buf = new ByteArrayOutputStream();
-		try {
-		    javax.imageio.ImageIO.write(ava, "PNG", buf);
-		} catch(IOException e) {
-		    throw(new Error(e));
-		}
-		return(new Object[] {"ok", buf.toByteArray()});
+		RenderService.Key key = new RenderService.Key((Coord)args[0], Utils.oav(args[1]), Utils.oav(args[2]), Utils.sv(args[3]));
+		byte[] png = RenderService.get().ava(key);
+		if(png == null)
+		    return(new Object[] {"busy"});
+		return(new Object[] {"ok", png});
 	    }
 	};
 
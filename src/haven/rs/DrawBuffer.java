@@ -28,6 +28,8 @@ package haven.rs;
 
 import haven.*;
 import haven.render.*;
+import java.util.*;
+import java.util.function.*;
 import java.awt.image.BufferedImage;
 
 public class DrawBuffer implements Disposable {
@@ -65,37 +67,75 @@ public class DrawBuffer implements Disposable {
 	env.submit(g.out);
     }
 
-    public BufferedImage draw(Pipe.Op state, RenderTree.Node n) {
-	RenderTree tree = new RenderTree();
-	TickList tick = new TickList();
-	DrawList rnd = env.drawlist();
-	try {
-	    Light.LightList lights = new Light.LightList();
-	    tree.add(tick, TickList.TickNode.class);
-	    tree.add(rnd, Rendered.class);
-	    RenderTree.Slot basic = tree.add((RenderTree.Node)null);
-	    Pipe.Op bstate = Pipe.Op.compose(basic(),
-					     Homo3D.state, new States.Depthtest(States.Depthtest.Test.LE), new States.Facecull(), lights,
-					     state);
-	    basic.ostate(bstate);
-	    Loading.waitfor(() -> basic.add(n));
-	    basic.ostate(Pipe.Op.compose(bstate, lights.compile()));
-	    Render cmd = env.render();
+    /* A scene prepared for drawing into this buffer. Preparing
+     * scenes may be done on any thread, and several of them can
+     * then be drawn and read back in a single submission. */
+    public class Scene implements Disposable {
+	private final TickList tick = new TickList();
+	private final DrawList rnd = env.drawlist();
+	private final RenderTree.Slot basic;
+
+	public Scene(Pipe.Op state, RenderTree.Node n) {
+	    try {
+		RenderTree tree = new RenderTree();
+		Light.LightList lights = new Light.LightList();
+		tree.add(tick, TickList.TickNode.class);
+		tree.add(rnd, Rendered.class);
+		basic = tree.add((RenderTree.Node)null);
+		Pipe.Op bstate = Pipe.Op.compose(basic(),
+						 Homo3D.state, new States.Depthtest(States.Depthtest.Test.LE), new States.Facecull(), lights,
+						 state);
+		basic.ostate(bstate);
+		Loading.waitfor(() -> basic.add(n));
+		basic.ostate(Pipe.Op.compose(bstate, lights.compile()));
+	    } catch(RuntimeException e) {
+		rnd.dispose();
+		throw(e);
+	    }
+	}
+
+	public DrawBuffer buffer() {
+	    return(DrawBuffer.this);
+	}
+
+	void render(Render cmd, Consumer<BufferedImage> cb) {
 	    tick.tick(0);
 	    tick.gtick(cmd);
 	    cmd.clear(basic.state(), FragColor.fragcol, new FColor(0, 0, 0 ,0));
 	    cmd.clear(basic.state(), 1.0);
 	    rnd.draw(cmd);
-	    BufferedImage[] retbuf = {null};
-	    GOut.getimage(cmd, basic.state(), FragColor.fragcol, Area.sized(Coord.z, this.sz), img -> {
-		    retbuf[0] = img;
-		});
-	    env.submit(cmd);
-	    if(retbuf[0] == null)
+	    GOut.getimage(cmd, basic.state(), FragColor.fragcol, Area.sized(Coord.z, sz), cb);
+	}
+
+	public void dispose() {
+	    rnd.dispose();
+	}
+    }
+
+    public BufferedImage[] draw(List<Scene> scenes) {
+	BufferedImage[] ret = new BufferedImage[scenes.size()];
+	Render cmd = env.render();
+	for(int i = 0; i < ret.length; i++) {
+	    Scene sc = scenes.get(i);
+	    if(sc.buffer() != this)
+		throw(new IllegalArgumentException("scene prepared for another buffer"));
+	    int o = i;
+	    sc.render(cmd, img -> ret[o] = img);
+	}
+	env.submit(cmd);
+	for(int i = 0; i < ret.length; i++) {
+	    if(ret[i] == null)
 		throw(new AssertionError());
-	    return(retbuf[0]);
+	}
+	return(ret);
+    }
+
+    public BufferedImage draw(Pipe.Op state, RenderTree.Node n) {
+	Scene sc = new Scene(state, n);
+	try {
+	    return(draw(Collections.singletonList(sc))[0]);
 	} finally {
-	    rnd.dispose();
+	    sc.dispose();
 	}
     }
 
@@ -0,0 +1,288 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+
+package haven.rs;
+
+import haven.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.awt.image.BufferedImage;
+
+/* Renders avatar requests on a bounded pool of worker threads. The
+ * workers do the CPU-bound parts -- resource loading, scene setup,
+ * downsampling and PNG encoding -- in parallel, while all GL work
+ * goes through a single thread which draws every scene waiting for
+ * it in one submission, onto draw buffers shared by size. Finished
+ * images are cached, and identical requests in flight share a single
+ * rendering. Requests that find the queue full are refused rather
+ * than piling up. */
+public class RenderService {
+    public static final Config.Variable<Integer> nworkers = Config.Variable.propi("haven.rs-workers", 0);
+    public static final Config.Variable<Integer> qlen = Config.Variable.propi("haven.rs-queue", 256);
+    public static final Config.Variable<Integer> batchmax = Config.Variable.propi("haven.rs-batch", 16);
+    public static final Config.Variable<Integer> cachesz = Config.Variable.propi("haven.rs-cache", 64);
+    public final Context ctx;
+    private final ThreadPoolExecutor workers;
+    private final BlockingQueue<Draw> drawq = new LinkedBlockingQueue<>();
+    private final Map<Coord, DrawBuffer> bufs = new HashMap<>();
+    private final Map<Key, CompletableFuture<byte[]>> running = new HashMap<>();
+    private final LinkedHashMap<Key, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final long cachemax;
+    private long cachemem = 0;
+    private final long started = System.nanoTime();
+    private long nreq, nhit, nshared, nbusy, nfailed, nrendered, nbatch, ndrawn;
+    private long nserved, latsum, latmax;
+
+    public static class Key {
+	public final Coord sz;
+	public final Object[] desc, map;
+	public final String cam;
+	private final int hash;
+
+	public Key(Coord sz, Object[] desc, Object[] map, String cam) {
+	    this.sz = sz;
+	    this.desc = desc;
+	    this.map = map;
+	    this.cam = cam;
+	    this.hash = Objects.hash(sz, cam, Arrays.deepHashCode(desc), Arrays.deepHashCode(map));
+	}
+
+	public int hashCode() {
+	    return(hash);
+	}
+
+	public boolean equals(Object o) {
+	    if(!(o instanceof Key))
+		return(false);
+	    Key that = (Key)o;
+	    return(sz.equals(that.sz) && cam.equals(that.cam) &&
+		   Arrays.deepEquals(desc, that.desc) && Arrays.deepEquals(map, that.map));
+	}
+    }
+
+    private static class Draw {
+	final DrawBuffer.Scene scene;
+	final CompletableFuture<BufferedImage> img = new CompletableFuture<>();
+
+	Draw(DrawBuffer.Scene scene) {
+	    this.scene = scene;
+	}
+    }
+
+    public RenderService(Context ctx) {
+	this.ctx = ctx;
+	this.cachemax = cachesz.get() * 1024L * 1024L;
+	int n = nworkers.get();
+	if(n <= 0)
+	    n = Runtime.getRuntime().availableProcessors();
+	workers = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(qlen.get(), 1)), tgt -> {
+		Thread th = new HackThread(tgt, "Render worker");
+		th.setDaemon(true);
+		return(th);
+	    });
+	workers.allowCoreThreadTimeOut(true);
+	Thread gl = new HackThread(this::drawloop, "Render service GL");
+	gl.setDaemon(true);
+	gl.start();
+    }
+
+    private static <T> T wait(CompletableFuture<T> f) throws InterruptedException {
+	try {
+	    return(f.get());
+	} catch(ExecutionException e) {
+	    Throwable c = e.getCause();
+	    if(c instanceof RuntimeException)
+		throw((RuntimeException)c);
+	    if(c instanceof Error)
+		throw((Error)c);
+	    throw(new RuntimeException(c));
+	}
+    }
+
+    /* Returns the PNG image for the given request, or null if the
+     * service is too busy to take it. */
+    public byte[] ava(Key key) throws InterruptedException {
+	long st = System.nanoTime();
+	CompletableFuture<byte[]> f;
+	boolean own = false;
+	synchronized(this) {
+	    nreq++;
+	    byte[] hit = cache.get(key);
+	    if(hit != null) {
+		nhit++;
+		served(st);
+		return(hit);
+	    }
+	    if((f = running.get(key)) != null) {
+		nshared++;
+	    } else {
+		running.put(key, f = new CompletableFuture<>());
+		own = true;
+	    }
+	}
+	if(own) {
+	    CompletableFuture<byte[]> rf = f;
+	    try {
+		workers.execute(() -> complete(key, rf));
+	    } catch(RejectedExecutionException e) {
+		synchronized(this) {
+		    running.remove(key);
+		    nbusy++;
+		}
+		rf.complete(null);
+		return(null);
+	    }
+	}
+	byte[] ret = wait(f);
+	if(ret != null) {
+	    synchronized(this) {
+		served(st);
+	    }
+	}
+	return(ret);
+    }
+
+    private void served(long st) {
+	long lat = System.nanoTime() - st;
+	nserved++;
+	latsum += lat;
+	latmax = Math.max(latmax, lat);
+    }
+
+    private void complete(Key key, CompletableFuture<byte[]> f) {
+	try {
+	    byte[] png = render(key);
+	    synchronized(this) {
+		running.remove(key);
+		nrendered++;
+		cache(key, png);
+	    }
+	    f.complete(png);
+	} catch(Throwable t) {
+	    synchronized(this) {
+		running.remove(key);
+		nfailed++;
+	    }
+	    f.completeExceptionally(t);
+	}
+    }
+
+    private void cache(Key key, byte[] png) {
+	if(png.length > cachemax)
+	    return;
+	byte[] prev = cache.put(key, png);
+	cachemem += png.length - ((prev == null) ? 0 : prev.length);
+	for(Iterator<byte[]> i = cache.values().iterator(); (cachemem > cachemax) && i.hasNext();) {
+	    cachemem -= i.next().length;
+	    i.remove();
+	}
+    }
+
+    private DrawBuffer buffer(Coord sz) {
+	synchronized(bufs) {
+	    DrawBuffer ret = bufs.get(sz);
+	    if(ret == null)
+		bufs.put(sz, ret = new DrawBuffer(ctx.env(), sz));
+	    return(ret);
+	}
+    }
+
+    private byte[] render(Key key) throws InterruptedException {
+	Coord sz = UI.scale(key.sz);
+	Resource.Resolver rr = new AvaRender.ServerRes(Resource.remote());
+	Composited.Desc desc = Composited.Desc.decode(rr, key.desc);
+	Resource.Resolver map = new Resource.Resolver.ResourceMap(rr, key.map);
+	DrawBuffer.Scene scene = AvaRender.scene(buffer(sz.mul(4)), desc, map, key.cam);
+	BufferedImage img;
+	try {
+	    Draw d = new Draw(scene);
+	    drawq.put(d);
+	    img = wait(d.img);
+	} finally {
+	    scene.dispose();
+	}
+	img = PUtils.convolvedown(img, sz, new PUtils.Lanczos(2));
+	return(AvaRender.png(img));
+    }
+
+    private void drawloop() {
+	List<Draw> batch = new ArrayList<>();
+	Map<DrawBuffer, List<Draw>> groups = new LinkedHashMap<>();
+	try {
+	    while(true) {
+		batch.add(drawq.take());
+		drawq.drainTo(batch, Math.max(batchmax.get(), 1) - 1);
+		for(Draw d : batch)
+		    groups.computeIfAbsent(d.scene.buffer(), k -> new ArrayList<>()).add(d);
+		for(Map.Entry<DrawBuffer, List<Draw>> grp : groups.entrySet()) {
+		    List<Draw> draws = grp.getValue();
+		    List<DrawBuffer.Scene> scenes = new ArrayList<>(draws.size());
+		    for(Draw d : draws)
+			scenes.add(d.scene);
+		    try {
+			BufferedImage[] imgs = grp.getKey().draw(scenes);
+			for(int i = 0; i < imgs.length; i++)
+			    draws.get(i).img.complete(imgs[i]);
+		    } catch(Throwable t) {
+			for(Draw d : draws)
+			    d.img.completeExceptionally(t);
+		    }
+		}
+		synchronized(this) {
+		    nbatch += groups.size();
+		    ndrawn += batch.size();
+		}
+		groups.clear();
+		batch.clear();
+	    }
+	} catch(InterruptedException e) {
+	}
+    }
+
+    public synchronized String stats() {
+	double up = (System.nanoTime() - started) * 1e-9;
+	return(String.format("%,d requests: %,d cached, %,d shared, %,d rendered, %,d busy, %,d failed; " +
+			     "%,d draws in %,d batches; %.2f served/s, latency %.1f ms avg, %.1f ms max; " +
+			     "%d queued, %d workers active; cache %,d images, %,d kB",
+			     nreq, nhit, nshared, nrendered, nbusy, nfailed,
+			     ndrawn, nbatch, nserved / up,
+			     (nserved > 0) ? (latsum * 1e-6 / nserved) : 0.0, latmax * 1e-6,
+			     workers.getQueue().size(), workers.getActiveCount(), cache.size(), cachemem >> 10));
+    }
+
+    private static volatile RenderService instance = null;
+    public static RenderService get() {
+	RenderService ret = instance;
+	if(ret == null) {
+	    synchronized(RenderService.class) {
+		if((ret = instance) == null)
+		    instance = ret = new RenderService(Context.getdefault());
+	    }
+	}
+	return(ret);
+    }
+}
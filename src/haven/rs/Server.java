@@ -44,6 +44,7 @@ public class Server extends Thread {
 
     static {
 	commands.put("ava", AvaRender.call);
+	commands.put("stats", (cl, args) -> new Object[] {"ok", RenderService.get().stats()});
     }
 
     public class Client extends Thread {
@@ -42,6 +42,7 @@ public class GobTimerData {
 	    Gob g = interacted;
 	    if(Window.ON_PACK.equals(pair.b) && g != null && WindowDetector.isWindowType(pair.a, awaitWnd)) {
 		g.info.timer.wnd = pair.a;
+		g.infoUpdated();
 		if(pair.a instanceof WindowX) {
 		    ((WindowX) pair.a).gob = g;
 		}
@@ -108,6 +109,11 @@ public class GobTimerData {
 	return prev != currentTimerValue;
     }
     
+    /* Nothing to count down, so the gob need not be ticked for it */
+    public boolean idle() {
+	return wnd == null && currentTimerValue <= 0;
+    }
+    
     public BufferedImage img() {
 	if(GobInfoOpts.disabled(InfoPart.TIMER) || !gob.is(GobTag.LIT)) {return null;}
 	return Optional.ofNullable(text.get()).map(t -> t.back).orElse(null);